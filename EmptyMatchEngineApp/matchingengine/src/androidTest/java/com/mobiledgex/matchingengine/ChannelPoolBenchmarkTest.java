@@ -0,0 +1,188 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.app.UiAutomation;
+import android.content.Context;
+import android.location.Location;
+import android.net.Network;
+import android.os.Build;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import distributed_match_engine.AppClient;
+import distributed_match_engine.MatchEngineApiGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/*!
+ * Times registerAndFindCloudlet against a local in-process DME, with the pooled DME channel,
+ * and with a new channel for every call (the behaviour before channel pooling).
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChannelPoolBenchmarkTest {
+    public static final String TAG = "ChannelPoolBenchmarkTest";
+    public static final String DME_NAME = "in-process-dme";
+    public static final int WARMUP = 20;
+    public static final int RUNS = 100;
+
+    private Server dmeServer;
+
+    // Answers RegisterClient and FindCloudlet. FIND_NOTFOUND, so EdgeEvents is not started.
+    static class FakeDme extends MatchEngineApiGrpc.MatchEngineApiImplBase {
+        @Override
+        public void registerClient(AppClient.RegisterClientRequest request,
+                                   StreamObserver<AppClient.RegisterClientReply> responseObserver) {
+            responseObserver.onNext(AppClient.RegisterClientReply.newBuilder()
+                    .setStatus(AppClient.ReplyStatus.RS_SUCCESS)
+                    .setSessionCookie("fake-session-cookie")
+                    .setTokenServerUri("http://127.0.0.1/token")
+                    .build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void findCloudlet(AppClient.FindCloudletRequest request,
+                                 StreamObserver<AppClient.FindCloudletReply> responseObserver) {
+            responseObserver.onNext(AppClient.FindCloudletReply.newBuilder()
+                    .setStatus(AppClient.FindCloudletReply.FindStatus.FIND_NOTFOUND)
+                    .build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    // Creates in-process channels to the fake DME in place of OkHttp channels.
+    static class InProcessMatchingEngine extends MatchingEngine {
+        final AtomicInteger channelsCreated = new AtomicInteger();
+        volatile Network lastNetwork;
+
+        InProcessMatchingEngine(Context context) {
+            super(context);
+        }
+
+        @Override
+        ManagedChannel channelPicker(String host, int port, Network network) {
+            channelsCreated.incrementAndGet();
+            lastNetwork = network;
+            return InProcessChannelBuilder.forName(host).build();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            UiAutomation uiAutomation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
+            String packageName = InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageName();
+            uiAutomation.grantRuntimePermission(packageName, "android.permission.READ_PHONE_STATE");
+            uiAutomation.grantRuntimePermission(packageName, "android.permission.ACCESS_COARSE_LOCATION");
+            uiAutomation.grantRuntimePermission(packageName, "android.permission.ACCESS_FINE_LOCATION");
+        }
+        dmeServer = InProcessServerBuilder.forName(DME_NAME)
+                .addService(new FakeDme())
+                .build()
+                .start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        dmeServer.shutdownNow();
+        dmeServer.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private InProcessMatchingEngine createMatchingEngine() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InProcessMatchingEngine me = new InProcessMatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+        me.setUseWifiOnly(true);
+        me.setEnableEdgeEvents(false);
+        // Every run should reach the DME.
+        me.setSessionPersistenceEnabled(false);
+        return me;
+    }
+
+    // Median of RUNS timed registerAndFindCloudlet calls, in milliseconds.
+    private double timeRegisterAndFindCloudlet(InProcessMatchingEngine me, boolean pooled) throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Location location = MockUtils.createLocation("ChannelPoolBenchmarkTest", 122.3321, 47.6062);
+        long[] timesNs = new long[RUNS];
+        for (int i = -WARMUP; i < RUNS; i++) {
+            long start = System.nanoTime();
+            AppClient.FindCloudletReply reply = me.registerAndFindCloudlet(context, DME_NAME, 50051,
+                    "MobiledgeX-Samples", "ChannelPoolBenchmark", "1.0", location, "",
+                    null, null, null, MatchingEngine.FindCloudletMode.PROXIMITY).get();
+            long elapsed = System.nanoTime() - start;
+            assertNotNull("No reply!", reply);
+            if (!pooled) {
+                // Next call has to create, and connect, a new channel.
+                me.getChannelPool().evict(me.lastNetwork);
+            }
+            if (i >= 0) {
+                timesNs[i] = elapsed;
+            }
+        }
+        Arrays.sort(timesNs);
+        return timesNs[RUNS / 2] / 1e6d;
+    }
+
+    @Test
+    public void registerAndFindCloudletPooledVsFreshChannel() throws Exception {
+        InProcessMatchingEngine fresh = createMatchingEngine();
+        double freshMedianMs;
+        try {
+            freshMedianMs = timeRegisterAndFindCloudlet(fresh, false);
+            assertEquals("Each call should create a channel!", WARMUP + RUNS, fresh.channelsCreated.get());
+        } finally {
+            fresh.close();
+        }
+
+        InProcessMatchingEngine pooled = createMatchingEngine();
+        double pooledMedianMs;
+        try {
+            pooledMedianMs = timeRegisterAndFindCloudlet(pooled, true);
+            assertEquals("Calls should share one pooled channel!", 1, pooled.channelsCreated.get());
+        } finally {
+            pooled.close();
+        }
+
+        Log.i(TAG, "registerAndFindCloudlet median over " + RUNS + " runs. Fresh channel: " +
+                freshMedianMs + "ms, pooled channel: " + pooledMedianMs + "ms.");
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeNotNull;
+
+@RunWith(AndroidJUnit4.class)
+public class DmeDnsCacheTest {
+    public static final String TAG = "DmeDnsCacheTest";
+    // Resolves without a DNS server. Each lookup returns a new array, so a cache hit is the same array.
+    public static final String HOST = "localhost";
+    public static final String MCC_MNC = "001-01";
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    // Runs after anything already submitted, such as a background refresh.
+    private void drain() throws Exception {
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCachedUntilExpired() throws Exception {
+        DmeDnsCache cache = new DmeDnsCache(executorService);
+        cache.setTtlMs(500);
+
+        InetAddress[] first = cache.resolve(MCC_MNC, HOST, null);
+        assertNotNull("Should resolve!", first);
+        assertSame("Fresh entry should be cached!", first, cache.resolve(MCC_MNC, HOST, null));
+        assertEquals("One entry expected!", 1, cache.size());
+
+        Thread.sleep(600);
+        InetAddress[] second = cache.resolve(MCC_MNC, HOST, null);
+        assertNotSame("Expired entry should be resolved again!", first, second);
+        assertSame("New entry should be cached!", second, cache.resolve(MCC_MNC, HOST, null));
+    }
+
+    @Test
+    public void testRefreshBeforeExpiry() throws Exception {
+        DmeDnsCache cache = new DmeDnsCache(executorService);
+        cache.setTtlMs(1000);
+
+        InetAddress[] first = cache.resolve(MCC_MNC, HOST, null);
+
+        // Past the refresh point, but not expired: the old entry is served, and refreshed behind it.
+        Thread.sleep(800);
+        assertSame("Old entry should be served during refresh!", first, cache.resolve(MCC_MNC, HOST, null));
+        drain();
+
+        InetAddress[] refreshed = cache.resolve(MCC_MNC, HOST, null);
+        assertNotSame("Entry should have been refreshed in the background!", first, refreshed);
+        assertSame("Refreshed entry should be cached!", refreshed, cache.resolve(MCC_MNC, HOST, null));
+    }
+
+    @Test
+    public void testRefreshDroppedAfterInvalidate() throws Exception {
+        DmeDnsCache cache = new DmeDnsCache(executorService);
+        cache.setTtlMs(1000);
+        cache.resolve(MCC_MNC, HOST, null);
+
+        // Hold the executor, so the refresh is still pending when the cache is invalidated.
+        final CountDownLatch release = new CountDownLatch(1);
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Thread.sleep(800);
+        cache.resolve(MCC_MNC, HOST, null); // Starts the background refresh.
+        cache.invalidate(null);
+        release.countDown();
+        drain();
+        assertEquals("Refresh started before invalidate should not be cached!", 0, cache.size());
+
+        // Lookups after the invalidate are cached as usual.
+        InetAddress[] next = cache.resolve(MCC_MNC, HOST, null);
+        assertSame("New entry should be cached!", next, cache.resolve(MCC_MNC, HOST, null));
+    }
+
+    @Test
+    public void testInvalidateNetwork() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivityManager.getActiveNetwork();
+        assumeNotNull(network);
+
+        DmeDnsCache cache = new DmeDnsCache(executorService);
+        InetAddress[] onDefault = cache.resolve(MCC_MNC, HOST, null);
+        InetAddress[] onNetwork = cache.resolve(MCC_MNC, HOST, network);
+        assertEquals("One entry per network expected!", 2, cache.size());
+
+        // A change on any network drops the default network entry, which may have used it.
+        cache.onNetworkChanged(network);
+        assertEquals("Entries should be dropped!", 0, cache.size());
+        assertNotSame("Dropped entry should be resolved again!", onDefault, cache.resolve(MCC_MNC, HOST, null));
+        assertNotSame("Dropped entry should be resolved again!", onNetwork, cache.resolve(MCC_MNC, HOST, network));
+
+        cache.invalidate(null);
+        assertEquals("Only the default network entry should be dropped!", 1, cache.size());
+
+        cache.onSubscriptionsChanged();
+        assertEquals("All entries should be dropped!", 0, cache.size());
+    }
+}
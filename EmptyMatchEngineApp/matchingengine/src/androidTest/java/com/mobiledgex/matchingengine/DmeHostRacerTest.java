@@ -0,0 +1,144 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+@RunWith(AndroidJUnit4.class)
+public class DmeHostRacerTest {
+    public static final String TAG = "DmeHostRacerTest";
+    // Listening on 127.0.0.1 only, so "::1" is refused right away, with no DNS lookup.
+    public static final String REACHABLE = "127.0.0.1";
+    public static final String PREFERRED = "localhost";
+    public static final String REFUSED = "::1";
+    public static final String[] CACHE_KEYS = {"001-01", "001-02"};
+
+    private ExecutorService executorService;
+    private ServerSocket serverSocket;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName(REACHABLE));
+        port = serverSocket.getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executorService.shutdownNow();
+        serverSocket.close();
+    }
+
+    private DmeHostRacer newRacer(long headStartMs) {
+        DmeHostRacer racer = new DmeHostRacer(executorService, new DmeDnsCache(executorService));
+        racer.setHeadStartMs(headStartMs);
+        return racer;
+    }
+
+    @Test
+    public void testPreferredWinsWithinHeadStart() throws DmeDnsException {
+        DmeHostRacer racer = newRacer(2000);
+        String winner = racer.race(CACHE_KEYS, new String[] {PREFERRED, REACHABLE}, port, null, 5000);
+        assertEquals("Preferred host should win during its head start!", PREFERRED, winner);
+    }
+
+    @Test
+    public void testFailureEndsHeadStart() throws DmeDnsException {
+        DmeHostRacer racer = newRacer(5000);
+        long start = SystemClock.elapsedRealtime();
+        String winner = racer.race(CACHE_KEYS, new String[] {REFUSED, REACHABLE}, port, null, 3000);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals("Next host should win when the preferred one fails!", REACHABLE, winner);
+        assertTrue("Next host should not wait out the head start: " + elapsed + "ms!", elapsed < 2000);
+    }
+
+    @Test
+    public void testAllFail() throws IOException {
+        DmeHostRacer racer = newRacer(100);
+        serverSocket.close();
+        try {
+            racer.race(CACHE_KEYS, new String[] {REFUSED, REACHABLE}, port, null, 3000);
+            assertTrue("Race should fail with no reachable host!", false);
+        } catch (DmeDnsException dde) {
+            // Expected.
+        }
+        assertNull("Nothing should be remembered!", racer.getWinner(null));
+    }
+
+    @Test
+    public void testWinnerRememberedPerNetwork() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivityManager.getActiveNetwork();
+        assumeNotNull(network);
+
+        DmeHostRacer racer = newRacer(2000);
+        String[] hosts = {PREFERRED, REACHABLE};
+        assertEquals(PREFERRED, racer.race(CACHE_KEYS, hosts, port, null, 5000));
+        assertNull("Winner should only be remembered for its network!", racer.getWinner(network));
+        assertEquals(PREFERRED, racer.race(CACHE_KEYS, hosts, port, network, 5000));
+        assertEquals("Winner should be remembered!", PREFERRED, racer.getWinner(network));
+
+        // Remembered winners are returned without connecting.
+        serverSocket.close();
+        assertEquals("Remembered winner should be used!", PREFERRED, racer.race(CACHE_KEYS, hosts, port, network, 1000));
+        assertEquals("Remembered winner should be used!", PREFERRED, racer.race(CACHE_KEYS, hosts, port, null, 1000));
+
+        // A winner that is no longer a candidate is not used.
+        try {
+            racer.race(CACHE_KEYS, new String[] {REACHABLE}, port, network, 1000);
+            assertTrue("Race should run again for new candidates!", false);
+        } catch (DmeDnsException dde) {
+            // Expected: nothing is listening now.
+        }
+
+        racer.onNetworkChanged(network);
+        assertNull("Winner should be forgotten on network change!", racer.getWinner(network));
+        assertNull("Default network winner should be forgotten on any network change!", racer.getWinner(null));
+        try {
+            racer.race(CACHE_KEYS, hosts, port, network, 1000);
+            assertTrue("Race should run again after a network change!", false);
+        } catch (DmeDnsException dde) {
+            // Expected: nothing is listening now.
+        }
+    }
+}
@@ -228,6 +228,46 @@ public class EdgeEventsConnectionTest {
         return "Android".equals(name);
     }
 
+    @Test
+    public void testLatencyTestPortByProtocol() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+        try {
+            AppConnectionManager appConnectionManager = me.getAppConnectionManager();
+            Appcommon.AppPort tcpPort = Appcommon.AppPort.newBuilder()
+                    .setProto(Appcommon.LProto.L_PROTO_TCP)
+                    .setInternalPort(8008)
+                    .setPublicPort(3000)
+                    .build();
+            Appcommon.AppPort udpPort = Appcommon.AppPort.newBuilder()
+                    .setProto(Appcommon.LProto.L_PROTO_UDP)
+                    .setInternalPort(8009)
+                    .setPublicPort(3001)
+                    .build();
+            AppClient.FindCloudletReply reply = AppClient.FindCloudletReply.newBuilder()
+                    .setStatus(FIND_FOUND)
+                    .setFqdn("cloudlet.example.net")
+                    .addPorts(tcpPort)
+                    .addPorts(udpPort)
+                    .build();
+
+            // TCP is listed first, but UDP echo probes must go to the UDP port.
+            Appcommon.AppPort appPort = EdgeEventsConnection.latencyTestAppPort(appConnectionManager, reply, NetTest.TestType.UDP_ECHO, 0);
+            assertEquals("UDP echo should use the UDP port!", udpPort, appPort);
+            assertEquals("Wrong public port!", 3001, EdgeEventsConnection.latencyTestPublicPort(appConnectionManager, appPort, 0));
+
+            appPort = EdgeEventsConnection.latencyTestAppPort(appConnectionManager, reply, NetTest.TestType.CONNECT, 0);
+            assertEquals("Connect test should use the first port!", tcpPort, appPort);
+            assertEquals("Wrong public port!", 3000, EdgeEventsConnection.latencyTestPublicPort(appConnectionManager, appPort, 0));
+
+            AppClient.FindCloudletReply tcpOnly = reply.toBuilder().clearPorts().addPorts(tcpPort).build();
+            assertEquals("No UDP port, so nothing to echo to!", null,
+                    EdgeEventsConnection.latencyTestAppPort(appConnectionManager, tcpOnly, NetTest.TestType.UDP_ECHO, 0));
+        } finally {
+            me.close();
+        }
+    }
+
     @Test
     public void testDefaultConfigNoChanges() {
         Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
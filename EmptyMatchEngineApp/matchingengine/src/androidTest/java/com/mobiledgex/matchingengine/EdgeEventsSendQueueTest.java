@@ -0,0 +1,284 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.mobiledgex.matchingengine.edgeeventsconfig.EdgeEventsConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import distributed_match_engine.AppClient;
+import io.grpc.stub.ClientCallStreamObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class EdgeEventsSendQueueTest {
+    public static final String TAG = "EdgeEventsSendQueueTest";
+
+    // Runs writer tasks only when asked.
+    static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+    }
+
+    static class FakeStream extends ClientCallStreamObserver<AppClient.ClientEdgeEvent> {
+        final List<AppClient.ClientEdgeEvent> written = new ArrayList<>();
+        volatile boolean ready;
+        Runnable onReadyHandler;
+
+        void setReady() {
+            ready = true;
+            onReadyHandler.run();
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+
+        @Override
+        public void onNext(AppClient.ClientEdgeEvent value) {
+            written.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    static class RecordingListener implements EdgeEventsSendQueue.Listener {
+        final List<AppClient.ClientEdgeEvent> overflowed = new ArrayList<>();
+        volatile boolean hold;
+
+        @Override
+        public EdgeEventsSendQueue.Decision beforeSend(AppClient.ClientEdgeEvent event) {
+            if (hold && event.getEventType() != AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION) {
+                return EdgeEventsSendQueue.Decision.HOLD;
+            }
+            return EdgeEventsSendQueue.Decision.SEND;
+        }
+
+        @Override
+        public void onOverflow(AppClient.ClientEdgeEvent dropped) {
+            overflowed.add(dropped);
+        }
+    }
+
+    private static AppClient.ClientEdgeEvent event(String seq) {
+        return AppClient.ClientEdgeEvent.newBuilder()
+                .setEventType(AppClient.ClientEdgeEvent.ClientEventType.EVENT_LATENCY_SAMPLES)
+                .putTags("seq", seq)
+                .build();
+    }
+
+    private static AppClient.ClientEdgeEvent init() {
+        return AppClient.ClientEdgeEvent.newBuilder()
+                .setEventType(AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION)
+                .build();
+    }
+
+    private static String seqs(List<AppClient.ClientEdgeEvent> events) {
+        StringBuilder sb = new StringBuilder();
+        for (AppClient.ClientEdgeEvent e : events) {
+            if (e.getEventType() == AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION) {
+                sb.append("I");
+            } else {
+                sb.append(e.getTagsMap().get("seq"));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testOrderWhenReady() {
+        ManualExecutor executor = new ManualExecutor();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, new RecordingListener());
+        FakeStream stream = new FakeStream();
+        queue.attach(stream);
+
+        queue.offer(event("1"));
+        queue.offer(event("2"));
+        queue.offer(event("3"));
+        executor.runAll();
+        assertEquals("Nothing should be written before ready!", 0, stream.written.size());
+
+        stream.setReady();
+        executor.runAll();
+        assertEquals("Order wrong!", "123", seqs(stream.written));
+        assertEquals("Queue should be empty!", 0, queue.size());
+    }
+
+    @Test
+    public void testDropOldest() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, listener);
+        queue.configure(2, EdgeEventsConfig.OutboundOverflowPolicy.DROP_OLDEST);
+        FakeStream stream = new FakeStream();
+        stream.ready = true;
+        queue.attach(stream);
+
+        assertTrue(queue.offer(event("1")));
+        assertTrue(queue.offer(event("2")));
+        assertTrue("Newest should be kept!", queue.offer(event("3")));
+        assertEquals("Capacity exceeded!", 2, queue.size());
+        assertEquals("Dropped count wrong!", 1, queue.getDroppedCount());
+        assertEquals("Oldest should be dropped!", "1", seqs(listener.overflowed));
+
+        executor.runAll();
+        assertEquals("Order wrong!", "23", seqs(stream.written));
+    }
+
+    @Test
+    public void testDropNewest() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, listener);
+        queue.configure(2, EdgeEventsConfig.OutboundOverflowPolicy.DROP_NEWEST);
+        FakeStream stream = new FakeStream();
+        stream.ready = true;
+        queue.attach(stream);
+
+        assertTrue(queue.offer(event("1")));
+        assertTrue(queue.offer(event("2")));
+        assertFalse("Newest should be dropped!", queue.offer(event("3")));
+        assertEquals("Newest should be dropped!", "3", seqs(listener.overflowed));
+
+        executor.runAll();
+        assertEquals("Order wrong!", "12", seqs(stream.written));
+    }
+
+    @Test
+    public void testInitIsKeptAndLeads() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, listener);
+        queue.configure(1, EdgeEventsConfig.OutboundOverflowPolicy.DROP_OLDEST);
+        FakeStream stream = new FakeStream();
+        stream.ready = true;
+        queue.attach(stream);
+
+        queue.offer(event("1"));
+        queue.offer(init());
+        queue.offer(event("2"));
+        assertEquals("INIT must not be dropped!", "1", seqs(listener.overflowed));
+
+        executor.runAll();
+        assertEquals("INIT should lead!", "I2", seqs(stream.written));
+    }
+
+    @Test
+    public void testHoldUntilResume() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, listener);
+        FakeStream stream = new FakeStream();
+        stream.ready = true;
+        queue.attach(stream);
+
+        listener.hold = true;
+        queue.offer(event("1"));
+        queue.offer(event("2"));
+        executor.runAll();
+        assertEquals("Held events should wait!", "", seqs(stream.written));
+
+        // INIT goes ahead of the held event.
+        queue.offer(init());
+        executor.runAll();
+        assertEquals("INIT should bypass held events!", "I", seqs(stream.written));
+
+        listener.hold = false;
+        queue.resume();
+        executor.runAll();
+        assertEquals("Held events should follow, in order!", "I12", seqs(stream.written));
+    }
+
+    @Test
+    public void testCloseDropsHead() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        EdgeEventsSendQueue queue = new EdgeEventsSendQueue(executor, listener);
+        FakeStream stream = new FakeStream();
+        stream.ready = true;
+        queue.attach(stream);
+
+        listener.hold = true;
+        queue.offer(event("1"));
+        executor.runAll();
+        queue.close(null);
+
+        FakeStream next = new FakeStream();
+        next.ready = true;
+        queue.attach(next);
+        listener.hold = false;
+        queue.resume();
+        executor.runAll();
+        assertEquals("Events from the old stream should not be sent!", "", seqs(next.written));
+    }
+}
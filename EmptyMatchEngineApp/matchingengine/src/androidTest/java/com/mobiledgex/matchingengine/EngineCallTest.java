@@ -20,9 +20,12 @@ package com.mobiledgex.matchingengine;
 import android.app.UiAutomation;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Environment;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.common.base.Stopwatch;
@@ -55,7 +58,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
@@ -65,6 +70,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -81,12 +87,15 @@ import java.util.concurrent.TimeoutException;
 import distributed_match_engine.AppClient;
 import distributed_match_engine.Appcommon;
 import distributed_match_engine.Appcommon.AppPort;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 
 import static junit.framework.TestCase.assertNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
 
 import android.location.Location;
 import android.util.Log;
@@ -357,6 +366,30 @@ public class EngineCallTest {
         MatchingEngine me = new MatchingEngine(context);
     }
 
+    @Test
+    public void pooledChannelReuseTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+
+        try {
+            Network network = me.getNetworkManager().getActiveNetwork();
+            assertNotNull("Need an active network for this test", network);
+
+            // Channels connect lazily, so no DME round trip is needed here.
+            ManagedChannel first = me.pooledChannel(hostOverride, portOverride, network);
+            ManagedChannel second = me.pooledChannel(hostOverride, portOverride, network);
+            assertTrue("Same destination should reuse the pooled channel", first == second);
+            assertEquals(1, me.getChannelPool().size());
+
+            ManagedChannel other = me.pooledChannel(hostOverride, portOverride + 1, network);
+            assertFalse("Different port should get its own channel", first == other);
+            assertEquals(2, me.getChannelPool().size());
+        } finally {
+            me.close();
+        }
+        assertEquals(0, me.getChannelPool().size());
+    }
+
     // Every call needs registration to be called first at some point.
     // Test only!
     public void registerClient(MatchingEngine me) {
@@ -551,6 +584,220 @@ public class EngineCallTest {
         assertEquals(AppClient.ReplyStatus.RS_SUCCESS, reply.getStatus());
     }
 
+    @Test
+    public void registerClientAsyncTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+
+        CompletableFuture<AppClient.RegisterClientReply> registerReplyFuture;
+        AppClient.RegisterClientReply reply = null;
+
+        try {
+            AppClient.RegisterClientRequest request = me.createDefaultRegisterClientRequest(context, organizationName)
+                    .setAppName(applicationName)
+                    .setAppVers(appVersion)
+                    .build();
+            if (useHostOverride) {
+                registerReplyFuture = me.registerClientAsync(request, hostOverride, portOverride, GRPC_TIMEOUT_MS);
+            } else {
+                registerReplyFuture = me.registerClientAsync(request, GRPC_TIMEOUT_MS);
+            }
+            reply = registerReplyFuture.get();
+            assert(reply != null);
+            assertEquals("Sessions must be equal.", reply.getSessionCookie(), me.getSessionCookie());
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            Log.e(TAG, Log.getStackTraceString(nnfe));
+            assertFalse("ExecutionException registering using PackageManager.", true);
+        } catch (DmeDnsException dde) {
+            Log.e(TAG, Log.getStackTraceString(dde));
+            assertFalse("ExecutionException registering client.", true);
+        } catch (ExecutionException ee) {
+            Log.e(TAG, Log.getStackTraceString(ee));
+            assertFalse("registerClientAsyncTest: ExecutionException!", true);
+        } catch (InterruptedException ie) {
+            Log.e(TAG, Log.getStackTraceString(ie));
+            assertFalse("registerClientAsyncTest: InterruptedException!", true);
+        } finally {
+            me.close();
+            enableMockLocation(context,false);
+        }
+
+        assertEquals(0, reply.getVer());
+        assertEquals(AppClient.ReplyStatus.RS_SUCCESS, reply.getStatus());
+    }
+
+    @Test
+    public void singleFlightRegisterClientTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+
+        final int calls = 4;
+        List<CompletableFuture<AppClient.RegisterClientReply>> futures = new ArrayList<>();
+        HashSet<String> sessions = new HashSet<>();
+
+        try {
+            AppClient.RegisterClientRequest request = me.createDefaultRegisterClientRequest(context, organizationName)
+                    .setAppName(applicationName)
+                    .setAppVers(appVersion)
+                    .build();
+            for (int i = 0; i < calls; i++) {
+                if (useHostOverride) {
+                    futures.add(me.registerClientAsync(request, hostOverride, portOverride, GRPC_TIMEOUT_MS));
+                } else {
+                    futures.add(me.registerClientAsync(request, GRPC_TIMEOUT_MS));
+                }
+            }
+            for (CompletableFuture<AppClient.RegisterClientReply> f : futures) {
+                AppClient.RegisterClientReply reply = f.get();
+                assertEquals(AppClient.ReplyStatus.RS_SUCCESS, reply.getStatus());
+                sessions.add(reply.getSessionCookie());
+            }
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            Log.e(TAG, Log.getStackTraceString(nnfe));
+            assertFalse("ExecutionException registering using PackageManager.", true);
+        } catch (DmeDnsException dde) {
+            Log.e(TAG, Log.getStackTraceString(dde));
+            assertFalse("ExecutionException registering client.", true);
+        } catch (ExecutionException ee) {
+            Log.e(TAG, Log.getStackTraceString(ee));
+            assertFalse("singleFlightRegisterClientTest: ExecutionException!", true);
+        } catch (InterruptedException ie) {
+            Log.e(TAG, Log.getStackTraceString(ie));
+            assertFalse("singleFlightRegisterClientTest: InterruptedException!", true);
+        } finally {
+            me.close();
+            enableMockLocation(context,false);
+        }
+
+        // Merged calls share the one reply, so they share its session.
+        long merged = me.getMergedRegisterClientCount();
+        Log.d(TAG, "Merged registerClient calls: " + merged);
+        assertEquals("Each DME call should give one session", calls - merged, sessions.size());
+    }
+
+    @Test
+    public void findCloudletCacheTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AppClient.FindCloudletReply findCloudletReply1 = null;
+        AppClient.FindCloudletReply findCloudletReply2 = null;
+        MatchingEngine me = new MatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+        me.getFindCloudletCache().setEnabled(true);
+
+        Location location = getTestLocation();
+
+        try {
+            registerClient(me);
+
+            AppClient.FindCloudletRequest findCloudletRequest = me.createDefaultFindCloudletRequest(context, location)
+                .setCarrierName(findCloudletCarrierOverride)
+                .build();
+            if (useHostOverride) {
+                findCloudletReply1 = me.findCloudlet(findCloudletRequest, hostOverride, portOverride, GRPC_TIMEOUT_MS);
+                findCloudletReply2 = me.findCloudlet(findCloudletRequest, hostOverride, portOverride, GRPC_TIMEOUT_MS);
+            } else {
+                findCloudletReply1 = me.findCloudlet(findCloudletRequest, GRPC_TIMEOUT_MS);
+                findCloudletReply2 = me.findCloudlet(findCloudletRequest, GRPC_TIMEOUT_MS);
+            }
+            assertEquals("Second call should be a cache hit.", 1, me.getFindCloudletCache().getHitCount());
+            assertEquals("Cached reply should be the same.", findCloudletReply1, findCloudletReply2);
+            assertEquals("A cache hit should set the current cloudlet.", findCloudletReply2,
+                    me.getEdgeEventsConnection().lastConnectionDetails.currentCloudlet);
+
+            // Without location permission, the cached answer must not come back.
+            me.setMatchingEngineLocationAllowed(false);
+            try {
+                AppClient.FindCloudletReply denied = useHostOverride ?
+                        me.findCloudlet(findCloudletRequest, hostOverride, portOverride, GRPC_TIMEOUT_MS) :
+                        me.findCloudlet(findCloudletRequest, GRPC_TIMEOUT_MS);
+                assertFalse("Cached reply returned without location permission.", findCloudletReply1.equals(denied));
+            } catch (Exception e) {
+                Log.i(TAG, "Expected, FindCloudlet refused without location permission: " + e.getMessage());
+            }
+            assertEquals("Cache should not be used without location permission.", 1, me.getFindCloudletCache().getHitCount());
+            me.setMatchingEngineLocationAllowed(true);
+
+            me.getFindCloudletCache().invalidateAll();
+            assertEquals(0, me.getFindCloudletCache().size());
+        } catch (DmeDnsException dde) {
+            Log.e(TAG, Log.getStackTraceString(dde));
+            assertFalse("findCloudletCacheTest: DmeDnsException", true);
+        } catch (ExecutionException ee) {
+            Log.e(TAG, Log.getStackTraceString(ee));
+            assertFalse("findCloudletCacheTest: ExecutionException!", true);
+        } catch (InterruptedException ie) {
+            Log.e(TAG, Log.getStackTraceString(ie));
+            assertFalse("findCloudletCacheTest: InterruptedException!", true);
+        } finally {
+            me.close();
+            enableMockLocation(context,false);
+        }
+
+        assertEquals(AppClient.FindCloudletReply.FindStatus.FIND_FOUND, findCloudletReply1.getStatus());
+    }
+
+    @Test
+    public void findCloudletAnytimeTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AnytimeFindCloudletReply anytimeReply = null;
+        final CountDownLatch refined = new CountDownLatch(1);
+        MatchingEngine me = new MatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+
+        Location location = getTestLocation();
+
+        AnytimeFindCloudletReply.RefinementListener listener = new AnytimeFindCloudletReply.RefinementListener() {
+            @Override
+            public void onRefined(AnytimeFindCloudletReply refinedReply) {
+                Log.d(TAG, "Refined: " + refinedReply);
+                assertTrue("Refined answer should be final.", refinedReply.isFinal());
+                refined.countDown();
+            }
+        };
+
+        try {
+            registerClient(me);
+
+            AppClient.FindCloudletRequest findCloudletRequest = me.createDefaultFindCloudletRequest(context, location)
+                .setCarrierName(findCloudletCarrierOverride)
+                .build();
+            // Short deadline, so latency tests are likely still running.
+            long deadlineMs = 1500;
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            if (useHostOverride) {
+                anytimeReply = me.findCloudletAnytime(findCloudletRequest, hostOverride, portOverride, deadlineMs, listener);
+            } else {
+                anytimeReply = me.findCloudletAnytime(findCloudletRequest, deadlineMs, listener);
+            }
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            Log.d(TAG, "Anytime reply: " + anytimeReply + ", elapsed: " + elapsed);
+            // Allow some scheduling slack past the deadline.
+            assertTrue("Should return near the deadline. Elapsed: " + elapsed, elapsed < deadlineMs + 500);
+            assertTrue(anytimeReply.getConfidence() >= 0d && anytimeReply.getConfidence() <= 1d);
+            if (!anytimeReply.isFinal()) {
+                assertTrue("Refined answer should arrive.", refined.await(GRPC_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS));
+            }
+        } catch (DmeDnsException dde) {
+            Log.e(TAG, Log.getStackTraceString(dde));
+            assertFalse("findCloudletAnytimeTest: DmeDnsException", true);
+        } catch (ExecutionException ee) {
+            Log.e(TAG, Log.getStackTraceString(ee));
+            assertFalse("findCloudletAnytimeTest: ExecutionException!", true);
+        } catch (InterruptedException ie) {
+            Log.e(TAG, Log.getStackTraceString(ie));
+            assertFalse("findCloudletAnytimeTest: InterruptedException!", true);
+        } finally {
+            me.close();
+            enableMockLocation(context,false);
+        }
+    }
+
     @Test
     public void findCloudletTest() {
         Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
@@ -1990,6 +2237,99 @@ public class EngineCallTest {
     }
 
 
+    @Test
+    public void registerAndFindCloudletSingleDeadline() throws IOException, InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+        me.setUseWifiOnly(true);
+        me.setSSLEnabled(false);
+        final long timeoutMs = 2000;
+        me.getNetworkManager().setTimeout(timeoutMs);
+
+        // Accepts connections (via the backlog), but never answers, so each step waits for its deadline.
+        ServerSocket silentDme = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        try {
+            Location location = MockUtils.createLocation("registerAndFindCloudletSingleDeadline", 122.3321, 47.6062);
+            long start = SystemClock.elapsedRealtime();
+            Future<AppClient.FindCloudletReply> future = me.registerAndFindCloudlet(context,
+                    "127.0.0.1", silentDme.getLocalPort(), organizationName, applicationName, appVersion,
+                    location, "", null, null, null, MatchingEngine.FindCloudletMode.PROXIMITY);
+            try {
+                future.get(timeoutMs * 3, TimeUnit.MILLISECONDS);
+                assertFalse("A silent DME should not reply!", true);
+            } catch (ExecutionException ee) {
+                Log.i(TAG, "Expected failure: " + ee.getCause());
+            } catch (TimeoutException te) {
+                assertFalse("Did not finish within the deadline!", true);
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.i(TAG, "registerAndFindCloudlet gave up after " + elapsed + "ms.");
+            // One deadline for the whole chain, plus slack for thread scheduling.
+            assertTrue("Took " + elapsed + "ms, more than the " + timeoutMs + "ms deadline!", elapsed < timeoutMs + 1000);
+        } finally {
+            silentDme.close();
+            me.close();
+        }
+    }
+
+    @Test
+    public void registerAndFindCloudletDeadlineDuringNetworkAcquisition() throws InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // Needs a cellular request that never completes, so skip on devices with a cellular network.
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean hasCellular = false;
+        for (Network network : connectivityManager.getAllNetworks()) {
+            NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            hasCellular |= capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR);
+        }
+        assumeFalse("Device has a cellular network.", hasCellular);
+
+        // Claims a SIM, so RegisterClient waits for cellular before it falls back to WiFi.
+        MatchingEngine me = new MatchingEngine(context) {
+            @Override
+            String getMccMnc(Context context) {
+                return "001-01";
+            }
+        };
+        me.setMatchingEngineLocationAllowed(true);
+        me.setAllowSwitchIfNoSubscriberInfo(true);
+        me.setNetworkSwitchingEnabled(true);
+        me.setSSLEnabled(false);
+        final long timeoutMs = 2000;
+        me.getNetworkManager().setTimeout(timeoutMs);
+
+        try {
+            Location location = MockUtils.createLocation("registerAndFindCloudletDeadlineDuringNetworkAcquisition", 122.3321, 47.6062);
+            long start = SystemClock.elapsedRealtime();
+            Future<AppClient.FindCloudletReply> future = me.registerAndFindCloudlet(context,
+                    "127.0.0.1", 50051, organizationName, applicationName, appVersion,
+                    location, "", null, null, null, MatchingEngine.FindCloudletMode.PROXIMITY);
+            try {
+                future.get(timeoutMs * 3, TimeUnit.MILLISECONDS);
+                assertFalse("Should not get a network in time!", true);
+            } catch (ExecutionException ee) {
+                // The cellular wait uses up the deadline, so the WiFi fallback has no time left.
+                boolean timedOut = false;
+                for (Throwable t = ee.getCause(); t != null; t = t.getCause()) {
+                    timedOut |= t instanceof TimeoutException ||
+                            t instanceof NetworkRequestTimeoutException ||
+                            (t instanceof StatusRuntimeException &&
+                                    ((StatusRuntimeException) t).getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED);
+                }
+                assertTrue("Expected a network timeout, got: " + ee.getCause(), timedOut);
+            } catch (TimeoutException te) {
+                assertFalse("Did not finish within the deadline!", true);
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.i(TAG, "registerAndFindCloudlet gave up on the network after " + elapsed + "ms.");
+            assertTrue("Took " + elapsed + "ms, more than the " + timeoutMs + "ms deadline!", elapsed < timeoutMs + 1000);
+        } finally {
+            me.close();
+        }
+    }
+
     @Test
     public void NoRegisterAppInstList() {
         Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeNotNull;
+
+@RunWith(AndroidJUnit4.class)
+public class HttpClientCacheTest {
+    public static final String TAG = "HttpClientCacheTest";
+
+    private Network network;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        network = connectivityManager.getActiveNetwork();
+        assumeNotNull(network);
+        // Shared by the whole process, so start from a clean state.
+        HttpClientCache.getInstance().evictAll();
+    }
+
+    @Test
+    public void testReusedPerNetwork() {
+        HttpClientCache cache = HttpClientCache.getInstance();
+        assertNull("No client without a network!", cache.getClient(null));
+
+        OkHttpClient client = cache.getClient(network);
+        assertNotNull("Should have a client for the network!", client);
+        assertSame("Client should be reused!", client, cache.getClient(network));
+
+        OkHttpClient clone = client.clone();
+        assertSame("Clones should share the pool!", client.getConnectionPool(), clone.getConnectionPool());
+
+        OkHttpClient unpooled = cache.getUnpooledClient(network);
+        assertNotNull("Should have an unpooled client for the network!", unpooled);
+        assertSame("Unpooled client should be reused!", unpooled, cache.getUnpooledClient(network));
+        assertNotSame("Unpooled client should not share the pool!", client.getConnectionPool(), unpooled.getConnectionPool());
+    }
+
+    @Test
+    public void testEvictedOnNetworkChange() {
+        HttpClientCache cache = HttpClientCache.getInstance();
+        OkHttpClient client = cache.getClient(network);
+        OkHttpClient unpooled = cache.getUnpooledClient(network);
+        assertNotNull(client);
+
+        cache.onNetworkChanged(network);
+        assertEquals("Idle connections should be closed!", 0, client.getConnectionPool().getConnectionCount());
+
+        OkHttpClient next = cache.getClient(network);
+        assertNotSame("Client should be new after a network change!", client, next);
+        assertNotSame("Connection pool should be new after a network change!", client.getConnectionPool(), next.getConnectionPool());
+        assertNotSame("Unpooled client should be new after a network change!", unpooled, cache.getUnpooledClient(network));
+
+        // SIM changes do not reuse a Network, so nothing is dropped.
+        cache.onSubscriptionsChanged();
+        assertSame("Client should survive a subscription change!", next, cache.getClient(network));
+    }
+}
@@ -24,17 +24,34 @@ import android.os.Looper;
 import androidx.test.platform.app.InstrumentationRegistry;
 import android.util.Log;
 
+import com.mobiledgex.matchingengine.performancemetrics.LatencyHistoryStore;
 import com.mobiledgex.matchingengine.performancemetrics.NetTest;
 import com.mobiledgex.matchingengine.performancemetrics.Site;
+import com.mobiledgex.matchingengine.performancemetrics.SiteScorer;
+import com.mobiledgex.matchingengine.performancemetrics.SiteStats;
+import com.mobiledgex.matchingengine.performancemetrics.UdpEchoResponder;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import distributed_match_engine.AppClient;
+import distributed_match_engine.LocOuterClass;
 
 import static android.content.pm.PackageManager.*;
 import static com.mobiledgex.matchingengine.performancemetrics.NetTest.TestType.PING;
@@ -124,6 +141,21 @@ public class NetMetricsTest {
         // Might fail:
         assertEquals("cv-gpu-cluster.montreal-pitfield.cerust.mobiledgex.net", bestSite.host);
 
+        netTest.testSitesOnSelector(TimeoutMS);
+        bestSite = netTest.bestSite();
+        Log.d(TAG, "Host expected: " + site2.host + ", avg: " + site2.average + ", got: " + "Got best site: " + bestSite.host + ", avg: " + bestSite.average);
+        if (!site2.host.equals(bestSite.host)) {
+            assertTrue("Selector winner Not within 10% margin: ", Math.abs(bestSite.average-site2.average)/site2.average < 0.1d);
+        }
+        assertTrue("Selector probes should have samples", bestSite.hasSuccessfulTests());
+
+        int probes = netTest.testSitesRacing(TimeoutMS);
+        bestSite = netTest.bestSite();
+        Log.d(TAG, "Racing probes: " + probes + ", got best site: " + bestSite.host + ", avg: " + bestSite.average);
+        assertTrue("Race should not probe more than a full run", probes <= 2 * 5);
+        if (!site2.host.equals(bestSite.host)) {
+            assertTrue("Racing winner Not within 10% margin: ", Math.abs(bestSite.average-site2.average)/site2.average < 0.1d);
+        }
     }
 
     @Test
@@ -310,4 +342,408 @@ public class NetMetricsTest {
         }
         assertEquals("Not correct maximum!", 800d, site.max(), .0001d);
     }
+
+    @Test
+    public void testRunningStats() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        double samples[] = {12d, 15d, 11d, 40d, 13d, 14d, 12d, 90d, 13d};
+        int numSamples = 5;
+        Site site = new Site(context, PING, numSamples, "aHost", 9999);
+
+        for (int i = 0; i < samples.length; i++) {
+            site.addSample(samples[i]);
+            site.recalculateStats();
+
+            // Brute force over the current window:
+            int start = Math.max(0, i + 1 - numSamples);
+            int n = i + 1 - start;
+            double acc = 0d;
+            for (int j = start; j <= i; j++) {
+                acc += samples[j];
+            }
+            double mean = acc / n;
+            double vsum = 0d;
+            for (int j = start; j <= i; j++) {
+                vsum += (samples[j] - mean) * (samples[j] - mean);
+            }
+            double stddev = Math.sqrt(n > 1 ? vsum / (n - 1) : vsum);
+
+            assertEquals("Running average wrong!", mean, site.average, .0001d);
+            assertEquals("Running stddev wrong!", stddev, site.stddev, .0001d);
+        }
+
+        // Window is {13, 14, 12, 90, 13}. Histogram buckets are within 5%.
+        assertEquals("p50 wrong!", 13d, site.p50(), 13d * 0.05d);
+        assertEquals("p99 wrong!", 90d, site.p99(), 90d * 0.05d);
+    }
+
+    @Test
+    public void testEwmaStats() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Site site = new Site(context, PING, 5, "aHost", 9999);
+        site.setEwmaHalfLifeMs(1000);
+
+        // Samples at the same time weigh the same.
+        long t0 = 1000000000L;
+        site.addSample(100d, t0);
+        site.addSample(80d, t0);
+        site.recalculateStats();
+        assertEquals("EWMA average wrong!", 90d, site.ewmaAverage, .0001d);
+
+        // 10 half-lives later, the old samples barely count, but are still in the window.
+        site.addSample(10d, t0 + 10 * 1000 * 1000000L);
+        site.recalculateStats();
+        assertEquals("Window average wrong!", 190d / 3d, site.average, .0001d);
+        assertEquals("EWMA should follow the new sample!", 10d, site.ewmaAverage, 0.2d);
+        assertTrue("Sample time not set!", site.sampleTimeMillis(2) > 0);
+        assertEquals("Empty slot has no time!", 0, site.sampleTimeMillis(4));
+    }
+
+    @Test
+    public void testLossRanking() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        long t0 = 1000000000L;
+
+        Site steady = new Site(context, PING, 3, "steady", 9999);
+        for (int i = 0; i < 3; i++) {
+            steady.addSample(20d, t0);
+        }
+        steady.recalculateStats();
+
+        // Faster on its one success, but 2 of 3 tests failed.
+        Site lossy = new Site(context, PING, 3, "lossy", 9999);
+        lossy.addSample(15d, t0);
+        lossy.addFailure(t0);
+        lossy.addFailure(t0);
+        lossy.recalculateStats();
+        assertEquals("Attempts wrong!", 3, lossy.attempts);
+        assertEquals("Failures wrong!", 2, lossy.failures);
+        assertEquals("Loss rate wrong!", 2d / 3d, lossy.lossRate(), .0001d);
+        assertEquals("No loss expected!", 0d, steady.lossRate(), .0001d);
+
+        NetTest netTest = new NetTest();
+        netTest.addSite(lossy);
+        netTest.addSite(steady);
+        assertEquals("Lossy site should not win!", "steady", netTest.bestSite().host);
+        assertEquals("Lossy site should not win so far!", "steady", netTest.bestSiteSoFar().host);
+    }
+
+    @Test
+    public void testSiteScorer() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        long t0 = 1000000000L;
+
+        Site steady = new Site(context, PING, 3, "steady", 9999);
+        steady.setAppinstance(AppClient.Appinstance.newBuilder().setFqdn("steady").build());
+        steady.addSample(20d, t0);
+        steady.addSample(20d, t0);
+        steady.recalculateStats();
+
+        // Lower average, but jittery.
+        Site jittery = new Site(context, PING, 3, "jittery", 9999);
+        jittery.setAppinstance(AppClient.Appinstance.newBuilder().setFqdn("jittery").build());
+        jittery.addSample(10d, t0);
+        jittery.addSample(26d, t0);
+        jittery.recalculateStats();
+
+        NetTest netTest = new NetTest();
+        netTest.addSite(steady);
+        netTest.addSite(jittery);
+        assertEquals("Default ranks by average!", "jittery", netTest.bestSite().host);
+
+        SiteScorer.Weights weights = new SiteScorer.Weights();
+        weights.jitter = 1d;
+        weights.stickinessBonusMs = 10d;
+        SiteScorer scorer = new SiteScorer(weights);
+        netTest.setSiteScorer(scorer, null);
+        assertEquals("Score wrong!", 26d, jittery.score, .0001d);
+        assertEquals("Jitter should count!", "steady", netTest.bestSite().host);
+
+        // Staying on the current cloudlet is worth 10ms.
+        netTest.setSiteScorer(scorer, new SiteScorer.Context(null, "jittery", -1, null));
+        assertEquals("Stickiness should count!", "jittery", netTest.bestSite().host);
+
+        assertTrue("Presets should score!", SiteScorer.gaming().score(steady, null) > 0);
+    }
+
+    @Test
+    public void testThroughputScoring() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        long t0 = 1000000000L;
+
+        Site fast = new Site(context, PING, 3, "fast", 9999);
+        fast.addSample(10d, t0);
+        fast.recalculateStats();
+        fast.throughputMbps = 2d;
+
+        Site wide = new Site(context, PING, 3, "wide", 9999);
+        wide.addSample(30d, t0);
+        wide.recalculateStats();
+        wide.throughputMbps = 20d;
+
+        // Not tested for throughput: no penalty.
+        Site untested = new Site(context, PING, 3, "untested", 9999);
+        untested.addSample(40d, t0);
+        untested.recalculateStats();
+
+        NetTest netTest = new NetTest();
+        netTest.addSite(fast);
+        netTest.addSite(wide);
+        netTest.addSite(untested);
+        assertEquals("Default ignores throughput!", "fast", netTest.bestSite().host);
+
+        netTest.setSiteScorer(SiteScorer.streaming(), null);
+        assertEquals("Below target throughput should count!", "wide", netTest.bestSite().host);
+        double wideScore = wide.score;
+        wide.throughputMbps = Double.NaN;
+        assertEquals("Above target is not penalized!", wideScore, SiteScorer.streaming().score(wide, null), .0001d);
+    }
+
+    @Test
+    public void testSiteIndex() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        long t0 = 1000000000L;
+
+        NetTest netTest = new NetTest();
+        Site a = new Site(context, PING, 3, "a", 9999);
+        Site b = new Site(context, PING, 3, "b", 9999);
+        assertTrue("Add failed!", netTest.addSite(a));
+        assertTrue("Add failed!", netTest.addSite(b));
+        Assert.assertFalse("Same host and port should not be added twice!", netTest.addSite(new Site(context, PING, 3, "a", 9999)));
+        assertEquals("Lookup failed!", b, netTest.getSite("b"));
+        Assert.assertNull("Unknown site found!", netTest.getSite("c"));
+
+        // No results yet: first added.
+        assertEquals("Untested order wrong!", "a", netTest.bestSite().host);
+
+        // Stats changed directly on a Site re-rank it, without siteChanged().
+        b.addSample(10d, t0);
+        b.recalculateStats();
+        assertEquals("Tested site should lead!", "b", netTest.bestSite().host);
+
+        a.addSample(5d, t0);
+        a.recalculateStats();
+        assertEquals("Faster site should lead!", "a", netTest.bestSiteSoFar().host);
+        assertEquals("Snapshot should follow direct changes!", 5d, netTest.rankedStats().get(0).ewmaAverage, .0001d);
+        assertEquals("Ranked list wrong!", "b", netTest.sortedSiteList().get(1).host);
+        assertEquals("Ranked list size wrong!", 2, netTest.sortedSiteList().size());
+
+        // A custom comparator sorts instead.
+        netTest.setSiteComparator(new NetTest.TailLatencySiteComparator());
+        assertEquals("Custom comparator wrong!", "a", netTest.bestSite().host);
+    }
+
+    @Test
+    public void testUdpEcho() {
+        UdpEchoResponder responder = null;
+        try {
+            responder = new UdpEchoResponder(0);
+            responder.start();
+
+            // No Network: loopback, on the default route.
+            Site site = new Site((Network) null, NetTest.TestType.UDP_ECHO, 10, "127.0.0.1", responder.getLocalPort());
+            NetTest netTest = new NetTest();
+            netTest.udpEchoBurst = 5;
+            netTest.addSite(site);
+            double rtt = netTest.testSite(site);
+            assertTrue("Echo expected!", rtt >= 0);
+            assertEquals("Every datagram should be echoed!", 5, site.attempts);
+            assertEquals("No loss expected!", 0, site.failures);
+            assertTrue("RTT expected!", site.hasSuccessfulTests());
+
+            // Anything that is not a probe packet is not echoed.
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.setSoTimeout(200);
+                byte[] junk = new byte[64];
+                socket.send(new DatagramPacket(junk, junk.length, InetAddress.getByName("127.0.0.1"), responder.getLocalPort()));
+                socket.receive(new DatagramPacket(new byte[128], 128));
+                Assert.assertFalse("Non-probe datagram should not be echoed!", true);
+            } catch (SocketTimeoutException ste) {
+                // Expected.
+            }
+        } catch (IOException ioe) {
+            Assert.assertFalse("UDP echo setup failed: " + ioe.getMessage(), true);
+        } finally {
+            if (responder != null) {
+                try {
+                    responder.close();
+                } catch (IOException ioe) {
+                    // Done.
+                }
+            }
+        }
+
+        // Nothing listening: every datagram is a failed test.
+        Site closed = new Site((Network) null, NetTest.TestType.UDP_ECHO, 10, "127.0.0.1", 9);
+        NetTest netTest = new NetTest();
+        netTest.TestTimeoutMS = 200;
+        netTest.udpEchoBurst = 3;
+        assertEquals("No echo expected!", -1d, netTest.testSite(closed), .0001d);
+        assertEquals("Lost datagrams are failures!", 3, closed.failures);
+    }
+
+    @Test
+    public void testContinuousTest() throws Exception {
+        UdpEchoResponder responder = new UdpEchoResponder(0);
+        try {
+            responder.start();
+            Site site = new Site((Network) null, NetTest.TestType.UDP_ECHO, 10, "127.0.0.1", responder.getLocalPort());
+            NetTest netTest = new NetTest();
+            netTest.TestIntervalMS = 10;
+            netTest.udpEchoBurst = 2;
+            netTest.addSite(site);
+
+            assertTrue("Should be running!", netTest.doTest(true));
+            long deadline = System.currentTimeMillis() + TimeoutMS;
+            while (netTest.getCompletedRounds() < 3 && System.currentTimeMillis() < deadline) {
+                // Readers do not wait for rounds in progress.
+                netTest.bestSite();
+                netTest.rankedStats();
+                Thread.sleep(5);
+            }
+            Assert.assertFalse("Should be stopped!", netTest.doTest(false));
+            assertTrue("Rounds expected!", netTest.getCompletedRounds() >= 3);
+            // Stopping waits for the round in progress, so nothing runs after it returns.
+            long rounds = netTest.getCompletedRounds();
+            Thread.sleep(100);
+            assertEquals("Round ran after stop!", rounds, netTest.getCompletedRounds());
+
+            // Restarts.
+            assertTrue("Should be running again!", netTest.doTest(true));
+            deadline = System.currentTimeMillis() + TimeoutMS;
+            while (netTest.getCompletedRounds() <= rounds && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertFalse("Should be stopped!", netTest.doTest(false));
+            assertTrue("Restarted test should run rounds!", netTest.getCompletedRounds() > rounds);
+
+            SiteStats stats = netTest.rankedStats().get(0);
+            assertEquals("Snapshot is of the wrong site!", site, stats.site);
+            assertTrue("Snapshot should have samples!", stats.hasSuccessfulTests());
+
+            // Sites can be added while tests run.
+            assertTrue("Add failed!", netTest.addSite(new Site((Network) null, NetTest.TestType.UDP_ECHO, 10, "localhost", responder.getLocalPort())));
+        } finally {
+            responder.close();
+        }
+    }
+
+    @Test
+    public void testSitesOnExecutorDeadline() throws Exception {
+        List<UdpEchoResponder> responders = new ArrayList<>();
+        // Takes datagrams, never answers: every probe waits out TestTimeoutMS.
+        DatagramSocket blackhole = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            NetTest netTest = new NetTest();
+            netTest.TestTimeoutMS = 1000;
+            netTest.udpEchoBurst = 1;
+            netTest.setExecutorService(executorService);
+
+            List<Site> fastSites = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                UdpEchoResponder responder = new UdpEchoResponder(0);
+                responders.add(responder);
+                responder.start();
+                Site site = new Site((Network) null, NetTest.TestType.UDP_ECHO, 5, "127.0.0.1", responder.getLocalPort());
+                fastSites.add(site);
+                assertTrue("Add failed!", netTest.addSite(site));
+            }
+            Site slow = new Site((Network) null, NetTest.TestType.UDP_ECHO, 5, "127.0.0.1", blackhole.getLocalPort());
+            assertTrue("Add failed!", netTest.addSite(slow));
+
+            // Two threads: the slow site's probes hold them 1s at a time, so only some of its
+            // probes can start before the 1.5s deadline.
+            long timeoutMs = 1500;
+            long start = System.currentTimeMillis();
+            netTest.testSitesOnExecutor(timeoutMs);
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Should return by the deadline! Took: " + elapsed, elapsed < timeoutMs + 500);
+
+            for (Site site : fastSites) {
+                assertTrue("Fast site should have samples: " + site.port, site.hasSuccessfulTests());
+            }
+            synchronized (slow) {
+                Assert.assertFalse("Slow site should have no samples!", slow.hasSuccessfulTests());
+                assertTrue("Slow site should have failed tests!", slow.failures > 0);
+                assertTrue("Slow site should not finish every probe by the deadline! Attempts: " + slow.attempts,
+                        slow.attempts < slow.samples.length);
+            }
+            assertTrue("A fast site should rank best!", fastSites.contains(netTest.bestSite()));
+        } finally {
+            executorService.shutdownNow();
+            blackhole.close();
+            for (UdpEchoResponder responder : responders) {
+                responder.close();
+            }
+        }
+    }
+
+    private static AppClient.CloudletLocation cloudlet(String fqdn, double lat, double lon) {
+        return AppClient.CloudletLocation.newBuilder()
+                .setCloudletName(fqdn)
+                .setGpsLocation(LocOuterClass.Loc.newBuilder().setLatitude(lat).setLongitude(lon).build())
+                .addAppinstances(AppClient.Appinstance.newBuilder().setFqdn(fqdn).build())
+                .build();
+    }
+
+    @Test
+    public void testCandidateSelection() {
+        // Paris to London is about 344km.
+        assertEquals(344d, CloudletCandidateSelector.haversineKm(48.8566d, 2.3522d, 51.5074d, -0.1278d), 2d);
+
+        LocOuterClass.Loc from = LocOuterClass.Loc.newBuilder().setLatitude(52.52d).setLongitude(13.405d).build(); // Berlin
+        List<AppClient.CloudletLocation> cloudlets = new ArrayList<>();
+        cloudlets.add(cloudlet("madrid", 40.4168d, -3.7038d));
+        cloudlets.add(cloudlet("hamburg", 53.5511d, 9.9937d));
+        cloudlets.add(cloudlet("tokyo", 35.6762d, 139.6503d));
+        cloudlets.add(cloudlet("munich", 48.1351d, 11.582d));
+        cloudlets.add(cloudlet("warsaw", 52.2297d, 21.0122d));
+
+        List<AppClient.CloudletLocation> selected = CloudletCandidateSelector.select(cloudlets, from, 2, null);
+        assertEquals(2, selected.size());
+        assertEquals("Nearest first.", "hamburg", selected.get(0).getCloudletName());
+        assertEquals("munich", selected.get(1).getCloudletName());
+
+        // A far cloudlet with good latency history is kept too.
+        Set<String> history = new HashSet<>();
+        history.add("tokyo");
+        selected = CloudletCandidateSelector.select(cloudlets, from, 2, history);
+        assertEquals(3, selected.size());
+        assertEquals("tokyo", selected.get(2).getCloudletName());
+    }
+
+    @Test
+    public void testLatencyHistory() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File dir = new File(context.getCacheDir(), "latencyHistoryTest");
+        dir.mkdirs();
+        new File(dir, LatencyHistoryStore.FILE_NAME).delete();
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+
+        LatencyHistoryStore store = new LatencyHistoryStore(dir, direct, 0);
+        LatencyHistoryStore.Key key = new LatencyHistoryStore.Key("aHost", 9999, "wifi", "u33db");
+        assertTrue("Expected no history!", store.get(key) == null);
+
+        double samples[] = {10d, 20d, -1d, 30d};
+        store.record(key, samples, samples.length);
+        LatencyHistoryStore.Summary summary = store.get(key);
+        assertEquals("History average wrong!", 20d, summary.average, .0001d);
+        assertEquals("Failed test should be skipped!", 3d, summary.weight, .0001d);
+
+        // Written on record, so a new store reads the same history back.
+        LatencyHistoryStore reloaded = new LatencyHistoryStore(dir, direct, 0);
+        assertTrue("History not loaded!", reloaded.isLoaded());
+        assertEquals("Reloaded average wrong!", 20d, reloaded.get(key).average, .0001d);
+
+        reloaded.clear();
+        assertTrue("History not cleared!", reloaded.get(key) == null);
+        assertTrue("History file not deleted!", !new File(dir, LatencyHistoryStore.FILE_NAME).exists());
+    }
 }
@@ -157,6 +157,55 @@ public class RegisterClientTest {
     }
   }
 
+  @Test
+  public void savedSessionTest() {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    MatchingEngine me1 = new MatchingEngine(context);
+    me1.setMatchingEngineLocationAllowed(true);
+    me1.setSessionPersistenceEnabled(true);
+    me1.clearSavedSession();
+
+    MatchingEngine me2 = new MatchingEngine(context);
+    me2.setMatchingEngineLocationAllowed(true);
+    me2.setSessionPersistenceEnabled(true);
+
+    AppClient.RegisterClientReply reply1 = null;
+    AppClient.RegisterClientReply reply2 = null;
+
+    try {
+      AppClient.RegisterClientRequest request = me1.createDefaultRegisterClientRequest(context, organizationName)
+        .setAppName(applicationName)
+        .setAppVers(appVersion)
+        .build();
+      if (useHostOverride) {
+        reply1 = me1.registerClient(request, hostOverride, portOverride, GRPC_TIMEOUT_MS);
+        // A new instance, as after a process restart, reuses the saved session.
+        reply2 = me2.registerClient(request, hostOverride, portOverride, GRPC_TIMEOUT_MS);
+      } else {
+        reply1 = me1.registerClient(request, GRPC_TIMEOUT_MS);
+        reply2 = me2.registerClient(request, GRPC_TIMEOUT_MS);
+      }
+      assertEquals("Saved session should be reused.", reply1.getSessionCookie(), reply2.getSessionCookie());
+      assertEquals(reply1.getSessionCookie(), me2.getSessionCookie());
+    } catch (PackageManager.NameNotFoundException nnfe) {
+      Log.e(TAG, Log.getStackTraceString(nnfe));
+      assertFalse("ExecutionException registering using PackageManager.", true);
+    } catch (DmeDnsException dde) {
+      Log.e(TAG, Log.getStackTraceString(dde));
+      assertFalse("savedSessionTest: DmeDnsException!", true);
+    } catch (ExecutionException ee) {
+      Log.e(TAG, Log.getStackTraceString(ee));
+      assertFalse("savedSessionTest: ExecutionException!", true);
+    } catch (InterruptedException ie) {
+      Log.e(TAG, Log.getStackTraceString(ie));
+      assertFalse("savedSessionTest: InterruptedException!", true);
+    } finally {
+      me1.clearSavedSession();
+      me1.close();
+      me2.close();
+    }
+  }
+
   @Test
   public void registerClientTest() {
     Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
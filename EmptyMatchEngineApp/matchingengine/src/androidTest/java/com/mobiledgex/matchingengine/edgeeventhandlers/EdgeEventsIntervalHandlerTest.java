@@ -0,0 +1,95 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.edgeeventhandlers;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.mobiledgex.matchingengine.MatchingEngine;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class EdgeEventsIntervalHandlerTest {
+    public static final String TAG = "EdgeEventsIntervalHandlerTest";
+
+    static class TestHandler extends EdgeEventsIntervalHandler {
+        TestHandler(MatchingEngine me, Runnable task, long intervalMs) {
+            schedule(me, task, intervalMs);
+        }
+    }
+
+    @Test
+    public void testAlignment() {
+        // First run on the first whole second at least one interval away.
+        assertEquals(3766, EdgeEventsIntervalHandler.alignedDelayMs(1234, 3000));
+        assertEquals(3000, EdgeEventsIntervalHandler.alignedDelayMs(5000, 3000));
+        assertEquals(0, (1234 + EdgeEventsIntervalHandler.alignedDelayMs(1234, 500)) % EdgeEventsIntervalHandler.ALIGNMENT_MS);
+
+        // On time: one interval later.
+        assertEquals(11000, EdgeEventsIntervalHandler.nextRunMs(10000, 1000, 10500));
+        // Late: missed runs are skipped, and the next run stays on the same steps.
+        assertEquals(14000, EdgeEventsIntervalHandler.nextRunMs(10000, 1000, 13500));
+        assertEquals(14000, EdgeEventsIntervalHandler.nextRunMs(10000, 1000, 13000));
+    }
+
+    @Test
+    public void testRunsOnThreadPoolAndCancel() throws InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MatchingEngine me = new MatchingEngine(context);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            final AtomicReference<String> threadName = new AtomicReference<>();
+            final CountDownLatch twoRuns = new CountDownLatch(2);
+            TestHandler handler = new TestHandler(me, new Runnable() {
+                @Override
+                public void run() {
+                    threadName.set(Thread.currentThread().getName());
+                    runs.incrementAndGet();
+                    twoRuns.countDown();
+                }
+            }, 100);
+            assertFalse("Should be scheduled!", handler.isDone());
+
+            assertTrue("Task should repeat!", twoRuns.await(5, TimeUnit.SECONDS));
+            assertNotEquals("Task should not run on the scheduler thread!", "EdgeEventsScheduler", threadName.get());
+
+            handler.cancel();
+            assertTrue("Should be done!", handler.isDone());
+            Thread.sleep(200); // A run already in progress may finish.
+            int runsAfterCancel = runs.get();
+            Thread.sleep(500);
+            assertEquals("Task ran after cancel!", runsAfterCancel, runs.get());
+        } finally {
+            me.close();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.net.Network;
 import android.util.Log;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -81,7 +82,7 @@ class AddUserToGroup implements Callable {
             nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
@@ -89,14 +90,29 @@ class AddUserToGroup implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during AddUserToGroup: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
 
         mMatchingEngine.setDynamicLocGroupReply(reply);
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(), using the gRPC future stub. No thread waits on the reply.
+     * \return CompletableFuture<DynamicLocGroupReply>
+     */
+    CompletableFuture<DynamicLocGroupReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<DynamicLocGroupReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: AddUserToGroup does not have a request object!"));
+            return failed;
+        }
+        final DynamicLocGroupRequest request = mRequest;
+        mRequest = null;
+
+        return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                stub -> stub.addUserToGroup(request),
+                reply -> {
+                    mMatchingEngine.setDynamicLocGroupReply(reply);
+                });
+    }
 }
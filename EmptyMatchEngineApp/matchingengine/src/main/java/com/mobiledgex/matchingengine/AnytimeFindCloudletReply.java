@@ -0,0 +1,88 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import com.mobiledgex.matchingengine.performancemetrics.Site;
+
+import distributed_match_engine.AppClient;
+
+/*!
+ * Result of MatchingEngine.findCloudletAnytime(): the best cloudlet found by the deadline, and
+ * how sure that choice is.
+ * \ingroup classes_util
+ */
+public class AnytimeFindCloudletReply {
+
+    /*!
+     * Receives the answer from latency tests that were still running at the deadline.
+     */
+    public interface RefinementListener {
+        /*!
+         * Called once, on a MatchingEngine thread, when the remaining tests finish.
+         * \param refined (AnytimeFindCloudletReply) isFinal() is true.
+         */
+        void onRefined(AnytimeFindCloudletReply refined);
+    }
+
+    private final AppClient.FindCloudletReply mReply;
+    private final Site mSite;
+    private final double mConfidence;
+    private final boolean mFinal;
+
+    AnytimeFindCloudletReply(AppClient.FindCloudletReply reply, Site site, double confidence, boolean isFinal) {
+        mReply = reply;
+        mSite = site;
+        mConfidence = confidence;
+        mFinal = isFinal;
+    }
+
+    /*!
+     * \return FindCloudletReply for the best site so far. FIND_UNKNOWN if the deadline passed before there were sites to choose from.
+     */
+    public AppClient.FindCloudletReply getReply() {
+        return mReply;
+    }
+
+    /*!
+     * \return Site chosen, with its latency stats at the time. May be null.
+     */
+    public Site getSite() {
+        return mSite;
+    }
+
+    /*!
+     * \return double 0.0 to 1.0. Estimated probability that the chosen site has the lowest mean latency.
+     */
+    public double getConfidence() {
+        return mConfidence;
+    }
+
+    /*!
+     * \return boolean true if all latency tests had finished. If false, and a RefinementListener was given, a refined answer follows.
+     */
+    public boolean isFinal() {
+        return mFinal;
+    }
+
+    @Override
+    public String toString() {
+        return "AnytimeFindCloudletReply{fqdn=" + (mReply == null ? null : mReply.getFqdn()) +
+                ", confidence=" + mConfidence +
+                ", final=" + mFinal + "}";
+    }
+}
@@ -256,6 +256,29 @@ public class AppConnectionManager {
         return null;
     }
 
+    /*!
+     * Gets the AppPort with the internal port, of the given protocol only.
+     * \param findCloudletReply (FindCloudletReply)
+     * \param protocol (LProto)
+     * \param internalPort (int) 0 for the first AppPort of that protocol.
+     * \return AppPort, or null if there is none of that protocol.
+     */
+    public AppPort getAppPort(AppClient.FindCloudletReply findCloudletReply, LProto protocol, int internalPort) {
+        for (Appcommon.AppPort p : findCloudletReply.getPortsList()) {
+            if (p.getProto() != protocol) {
+                continue;
+            }
+            try {
+                if (getPort(p, internalPort) != 0) {
+                    return p;
+                }
+            } catch (InvalidPortException e) {
+                Log.d(TAG, "Internal Port [" + internalPort + "] not found in this " + protocol + " AppPort, continuing to next AppPort...");
+            }
+        }
+        return null;
+    }
+
     /*!
      * Returns a Future with a TCP SSL Socket from a default SSL Socket Factory, created on
      * a cellular data network interface, where available. The created socket is already connected.
@@ -424,7 +447,8 @@ public class AppConnectionManager {
      * if a requested cellular network is not available or not allowed.
      *
      * Convenience method. Get the network from NetworkManager, and set the SSLSocket factory
-     * for different communication protocols.
+     * for different communication protocols. Clients for the same network share one keep-alive
+     * connection pool (see HttpClientCache).
      *
      * \param timeoutMs (long): connect timeout in milliseconds.
      * \return Future<OkHttpClient>: null can be returned if the network does not exist, if network switching is disabled,
@@ -442,18 +466,13 @@ public class AppConnectionManager {
                     return null;
                 }
 
-                MobiledgeXSSLSocketFactory mobiledgexSSLSocketFactory = (MobiledgeXSSLSocketFactory)MobiledgeXSSLSocketFactory.getDefault(net);
-                if (mobiledgexSSLSocketFactory == null) {
+                // Shared per network, so connections are pooled across calls. The clone shares the pool.
+                OkHttpClient sharedClient = HttpClientCache.getInstance().getClient(net);
+                if (sharedClient == null) {
                     return null;
                 }
 
-                OkHttpClient client = new OkHttpClient();
-                client.setConnectTimeout(mNetworkManager.getTimeout(), TimeUnit.MILLISECONDS);
-
-                SocketFactory sf = net.getSocketFactory();
-                client.setSocketFactory(sf);
-
-                client.setSslSocketFactory(mobiledgexSSLSocketFactory);
+                OkHttpClient client = sharedClient.clone();
                 client.setConnectTimeout(timeoutMs, TimeUnit.MILLISECONDS);
 
                 mNetworkManager.resetNetworkToDefault();
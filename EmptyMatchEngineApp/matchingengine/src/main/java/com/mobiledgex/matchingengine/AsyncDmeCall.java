@@ -0,0 +1,143 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.Network;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import distributed_match_engine.MatchEngineApiGrpc;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+
+/*!
+ * Non-blocking DME calls on the gRPC future stub. No thread is parked while an RPC is in flight;
+ * the returned CompletableFuture is completed from the gRPC transport callback.
+ * \ingroup classes_util
+ */
+class AsyncDmeCall {
+    public static final String TAG = "AsyncDmeCall";
+
+    private AsyncDmeCall() {
+    }
+
+    /*!
+     * Picks the DME network, then issues the RPC on a pooled channel with a future stub.
+     * Network selection may briefly use a MatchingEngine pool thread if a network switch is
+     * needed; the RPC wait itself does not hold a thread. Cancelling the returned future cancels
+     * the RPC.
+     * \param me (MatchingEngine)
+     * \param host (String)
+     * \param port (int)
+     * \param timeoutInMilliseconds (long)
+     * \param rpc (Function<MatchEngineApiFutureStub, ListenableFuture<T>>) The stub call to make.
+     * \param onReply (Consumer<T>) Bookkeeping to run on a reply, before the future completes. May be null.
+     * \return CompletableFuture<T>
+     */
+    static <T> CompletableFuture<T> call(final MatchingEngine me,
+                                         final String host, final int port,
+                                         final long timeoutInMilliseconds,
+                                         final Function<MatchEngineApiGrpc.MatchEngineApiFutureStub, ListenableFuture<T>> rpc,
+                                         final Consumer<T> onReply) {
+        // Deadline is set up front, so time spent picking a network counts against it.
+        final Deadline deadline = Deadline.after(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        final AtomicReference<Future<?>> inFlight = new AtomicReference<>();
+
+        final CompletableFuture<T> result = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                Future<?> f = inFlight.get();
+                if (f != null) {
+                    f.cancel(mayInterruptIfRunning);
+                }
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        CompletableFuture<Network> networkFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return me.getNetworkManager().getCellularNetworkOrWifiBlocking(false, me.getMccMnc(me.mContext), deadline);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, me.threadpool);
+        inFlight.set(networkFuture);
+
+        networkFuture.whenComplete((network, networkThrowable) -> {
+            if (networkThrowable != null) {
+                result.completeExceptionally(unwrap(networkThrowable));
+                return;
+            }
+            if (result.isDone()) {
+                return; // Cancelled while picking a network.
+            }
+            try {
+                ManagedChannel channel = me.pooledChannel(host, port, network);
+                if (channel == null) {
+                    throw new IllegalStateException("Unable to create DME channel to " + host + ":" + port);
+                }
+                MatchEngineApiGrpc.MatchEngineApiFutureStub stub = MatchEngineApiGrpc.newFutureStub(channel)
+                        .withDeadline(deadline);
+
+                ListenableFuture<T> rpcFuture = rpc.apply(stub);
+                inFlight.set(rpcFuture);
+                if (result.isCancelled()) {
+                    rpcFuture.cancel(false);
+                    return;
+                }
+                Futures.addCallback(rpcFuture, new FutureCallback<T>() {
+                    @Override
+                    public void onSuccess(T reply) {
+                        if (onReply != null && reply != null) {
+                            onReply.accept(reply);
+                        }
+                        result.complete(reply);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        Log.e(TAG, "Async DME call to " + host + ":" + port + " failed: " + t.getMessage());
+                        result.completeExceptionally(t);
+                    }
+                }, MoreExecutors.directExecutor());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            return t.getCause();
+        }
+        return t;
+    }
+}
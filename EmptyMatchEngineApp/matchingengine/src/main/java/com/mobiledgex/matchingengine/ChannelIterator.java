@@ -31,10 +31,16 @@ public class ChannelIterator<T> implements Iterator<T> {
 
     private ManagedChannel mManagedChannel;
     private Iterator<T> mIterator;
+    private boolean mPooled;
 
     public ChannelIterator (ManagedChannel channel, Iterator<T> iterator) {
+        this(channel, iterator, false);
+    }
+
+    ChannelIterator (ManagedChannel channel, Iterator<T> iterator, boolean pooled) {
         mManagedChannel = channel;
         mIterator = iterator;
+        mPooled = pooled;
     }
 
     @Override
@@ -53,9 +59,12 @@ public class ChannelIterator<T> implements Iterator<T> {
     }
 
     /*!
-     * Shutdown the channel.
+     * Shutdown the channel. A channel shared from the MatchingEngine channel pool is left open.
      */
     public void shutdown() {
+        if (mPooled) {
+            return;
+        }
         mManagedChannel.shutdown();
     }
 }
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+
+/*!
+ * Keeps DME gRPC channels alive between API calls, so each call does not pay for a new TCP, TLS
+ * and HTTP/2 handshake. Channels are keyed by host, port, Network and SSL mode. Idle channels are
+ * shut down by a sweep on the MatchingEngine's EdgeEvents scheduler, scheduled only while the
+ * pool has channels. Channels on a lost Network are dropped right away.
+ * \ingroup classes_util
+ */
+class ChannelPool {
+    public static final String TAG = "ChannelPool";
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private final MatchingEngine mMatchingEngine;
+    private final ConnectivityManager mConnectivityManager;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+
+    private final Map<ChannelKey, PooledChannel> mChannels = new HashMap<>();
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private boolean mShutdown = false;
+    // At most one idle sweep is scheduled.
+    private boolean mSweepPending = false;
+    private ScheduledFuture<?> mSweep;
+
+    static final class ChannelKey {
+        final String host;
+        final int port;
+        final Network network;
+        final boolean sslEnabled;
+
+        ChannelKey(String host, int port, Network network, boolean sslEnabled) {
+            this.host = host;
+            this.port = port;
+            this.network = network;
+            this.sslEnabled = sslEnabled;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChannelKey)) {
+                return false;
+            }
+            ChannelKey k = (ChannelKey) o;
+            return port == k.port &&
+                    sslEnabled == k.sslEnabled &&
+                    host.equals(k.host) &&
+                    network.equals(k.network);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + port;
+            result = 31 * result + network.hashCode();
+            result = 31 * result + (sslEnabled ? 1 : 0);
+            return result;
+        }
+    }
+
+    private static final class PooledChannel {
+        final ManagedChannel channel;
+        long lastUsedMs;
+
+        PooledChannel(ManagedChannel channel, long now) {
+            this.channel = channel;
+            this.lastUsedMs = now;
+        }
+    }
+
+    ChannelPool(MatchingEngine matchingEngine, ConnectivityManager connectivityManager) {
+        mMatchingEngine = matchingEngine;
+        mConnectivityManager = connectivityManager;
+
+        if (mConnectivityManager != null) {
+            mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onLost(Network network) {
+                    Log.i(TAG, "Network lost, dropping pooled channels for: " + network);
+                    evict(network);
+                }
+            };
+            try {
+                mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkCallback);
+            } catch (SecurityException se) {
+                Log.w(TAG, "Cannot watch for lost networks. Pooled channels are only dropped when idle: " + se.getMessage());
+                mNetworkCallback = null;
+            }
+        }
+    }
+
+    long getIdleTimeoutMs() {
+        return mIdleTimeoutMs;
+    }
+
+    /*!
+     * Sets how long an unused channel is kept before it is shut down.
+     * \param idleTimeoutMs idle time in milliseconds. If <= 0, uses default.
+     */
+    void setIdleTimeoutMs(long idleTimeoutMs) {
+        synchronized (this) {
+            mIdleTimeoutMs = idleTimeoutMs <= 0 ? DEFAULT_IDLE_TIMEOUT_MS : idleTimeoutMs;
+            cancelSweep();
+        }
+        scheduleSweep();
+    }
+
+    /*!
+     * Returns a pooled channel for the destination, creating one if needed. Callers must not shut
+     * down the returned channel; the pool owns it.
+     * \param host (String)
+     * \param port (int)
+     * \param network (Network)
+     * \param sslEnabled (boolean)
+     * \return ManagedChannel, or null if a channel cannot be created.
+     */
+    ManagedChannel acquire(String host, int port, Network network, boolean sslEnabled) {
+        ManagedChannel channel = acquireChannel(host, port, network, sslEnabled);
+        // Outside the pool lock: the scheduler is behind the MatchingEngine lock.
+        scheduleSweep();
+        return channel;
+    }
+
+    private synchronized ManagedChannel acquireChannel(String host, int port, Network network, boolean sslEnabled) {
+        if (mShutdown) {
+            throw new IllegalStateException("ChannelPool is shut down.");
+        }
+        if (network == null) {
+            Log.e(TAG, "Network parameter is missing!");
+            throw new IllegalArgumentException("Missing required network parameter: " + network);
+        }
+        if (host == null) {
+            Log.e(TAG, "host parameter is missing!");
+            throw new IllegalArgumentException("Missing required host parameter: " + host);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        evictIdle(now);
+
+        ChannelKey key = new ChannelKey(host, port, network, sslEnabled);
+        PooledChannel pooled = mChannels.get(key);
+        if (pooled != null && pooled.channel.isShutdown()) {
+            mChannels.remove(key);
+            pooled = null;
+        }
+
+        if (pooled == null) {
+            ManagedChannel channel = mMatchingEngine.channelPicker(host, port, network);
+            if (channel == null) {
+                return null;
+            }
+            Log.d(TAG, "New pooled channel to " + host + ":" + port + " on network " + network);
+            pooled = new PooledChannel(channel, now);
+            mChannels.put(key, pooled);
+        }
+        pooled.lastUsedMs = now;
+        return pooled.channel;
+    }
+
+    /*!
+     * Shuts down and removes every channel bound to the given network.
+     * \param network (Network)
+     */
+    synchronized void evict(Network network) {
+        Iterator<Map.Entry<ChannelKey, PooledChannel>> it = mChannels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ChannelKey, PooledChannel> entry = it.next();
+            if (entry.getKey().network.equals(network)) {
+                entry.getValue().channel.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    // Schedules the next idle sweep, for when the least recently used channel times out.
+    private void scheduleSweep() {
+        long delayMs;
+        synchronized (this) {
+            if (mSweepPending || mShutdown || mChannels.isEmpty()) {
+                return;
+            }
+            long oldest = Long.MAX_VALUE;
+            for (PooledChannel pooled : mChannels.values()) {
+                oldest = Math.min(oldest, pooled.lastUsedMs);
+            }
+            delayMs = Math.max(0, oldest + mIdleTimeoutMs - SystemClock.elapsedRealtime()) + 1;
+            mSweepPending = true;
+        }
+        try {
+            ScheduledFuture<?> sweep = mMatchingEngine.getEdgeEventsScheduler().schedule(this::sweep, delayMs, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                mSweep = sweep;
+            }
+        } catch (RejectedExecutionException ree) {
+            Log.w(TAG, "Scheduler is shut down. Idle channels are dropped on the next acquire.");
+            synchronized (this) {
+                mSweepPending = false;
+            }
+        }
+    }
+
+    private void sweep() {
+        synchronized (this) {
+            mSweepPending = false;
+            mSweep = null;
+            if (mShutdown) {
+                return;
+            }
+            evictIdle(SystemClock.elapsedRealtime());
+        }
+        scheduleSweep();
+    }
+
+    // Caller holds the lock.
+    private void cancelSweep() {
+        if (mSweep != null) {
+            mSweep.cancel(false);
+            mSweep = null;
+        }
+        mSweepPending = false;
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Map.Entry<ChannelKey, PooledChannel>> it = mChannels.entrySet().iterator();
+        while (it.hasNext()) {
+            PooledChannel pooled = it.next().getValue();
+            if (now - pooled.lastUsedMs > mIdleTimeoutMs) {
+                // Graceful. Any call still running on it completes.
+                pooled.channel.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mChannels.size();
+    }
+
+    /*!
+     * Shuts down all pooled channels. The pool cannot be used afterwards.
+     */
+    synchronized void shutdown() {
+        if (mShutdown) {
+            return;
+        }
+        mShutdown = true;
+        cancelSweep();
+        if (mConnectivityManager != null && mNetworkCallback != null) {
+            try {
+                mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            } catch (IllegalArgumentException iae) {
+                Log.d(TAG, "NetworkCallback already unregistered.");
+            }
+            mNetworkCallback = null;
+        }
+        for (PooledChannel pooled : mChannels.values()) {
+            pooled.channel.shutdown();
+        }
+        mChannels.clear();
+    }
+}
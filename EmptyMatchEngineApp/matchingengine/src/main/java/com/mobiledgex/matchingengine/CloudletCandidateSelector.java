@@ -0,0 +1,132 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import distributed_match_engine.AppClient;
+import distributed_match_engine.LocOuterClass;
+
+/*!
+ * Picks which cloudlets from a GetAppInstList reply are worth latency testing: the K nearest
+ * to the device by great circle distance, plus any cloudlet with an AppInst that had good latency
+ * before. Uses a bounded heap, so it is O(N log K) for N cloudlets.
+ * \ingroup classes_util
+ */
+class CloudletCandidateSelector {
+    public static final String TAG = "CloudletCandidateSelector";
+    static final double EARTH_RADIUS_KM = 6371.0088d;
+
+    private static final class Candidate {
+        final AppClient.CloudletLocation cloudlet;
+        final double distanceKm;
+
+        Candidate(AppClient.CloudletLocation cloudlet, double distanceKm) {
+            this.cloudlet = cloudlet;
+            this.distanceKm = distanceKm;
+        }
+    }
+
+    private static final Comparator<Candidate> NEAREST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            return Double.compare(c1.distanceKm, c2.distanceKm);
+        }
+    };
+
+    private CloudletCandidateSelector() {
+    }
+
+    /*!
+     * Great circle distance, by the haversine formula.
+     * \return double kilometers.
+     */
+    static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1d, Math.sqrt(a)));
+    }
+
+    /*!
+     * \param cloudlets (List<CloudletLocation>) from AppInstListReply.
+     * \param from (Loc) device location.
+     * \param k (int) number of nearest cloudlets to keep.
+     * \param preferredFqdns (Set<String>) AppInst fqdns with good latency history. Their cloudlets are always kept. May be null.
+     * \return List<CloudletLocation> candidates, nearest first.
+     */
+    static List<AppClient.CloudletLocation> select(List<AppClient.CloudletLocation> cloudlets,
+                                                   LocOuterClass.Loc from,
+                                                   int k,
+                                                   Set<String> preferredFqdns) {
+        if (cloudlets == null || k <= 0 || cloudlets.size() <= k) {
+            return cloudlets;
+        }
+
+        // Max heap on distance: the root is the farthest of the K kept so far.
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>(k + 1, Collections.reverseOrder(NEAREST_FIRST));
+        List<Candidate> preferred = new ArrayList<>();
+        for (AppClient.CloudletLocation cloudlet : cloudlets) {
+            LocOuterClass.Loc loc = cloudlet.getGpsLocation();
+            Candidate candidate = new Candidate(cloudlet,
+                    haversineKm(from.getLatitude(), from.getLongitude(), loc.getLatitude(), loc.getLongitude()));
+            if (hasPreferredAppInst(cloudlet, preferredFqdns)) {
+                preferred.add(candidate);
+                continue;
+            }
+            if (nearest.size() < k) {
+                nearest.add(candidate);
+            } else if (candidate.distanceKm < nearest.peek().distanceKm) {
+                nearest.poll();
+                nearest.add(candidate);
+            }
+        }
+
+        List<Candidate> kept = new ArrayList<>(nearest);
+        kept.addAll(preferred);
+        Collections.sort(kept, NEAREST_FIRST);
+
+        List<AppClient.CloudletLocation> selected = new ArrayList<>(kept.size());
+        for (Candidate c : kept) {
+            selected.add(c.cloudlet);
+        }
+        Log.d(TAG, "Cloudlets to test: " + selected.size() + " of " + cloudlets.size() + ", kept for latency history: " + preferred.size());
+        return selected;
+    }
+
+    private static boolean hasPreferredAppInst(AppClient.CloudletLocation cloudlet, Set<String> preferredFqdns) {
+        if (preferredFqdns == null || preferredFqdns.isEmpty()) {
+            return false;
+        }
+        for (AppClient.Appinstance appInstance : cloudlet.getAppinstancesList()) {
+            if (preferredFqdns.contains(appInstance.getFqdn())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
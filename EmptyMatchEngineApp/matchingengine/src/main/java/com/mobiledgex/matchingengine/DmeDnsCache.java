@@ -0,0 +1,270 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.grpc.Deadline;
+
+/*!
+ * Caches DME hostname lookups, keyed by mcc-mnc and Network, so DME API calls without an
+ * explicit host do not do a DNS lookup every time. Entries are refreshed in the background once
+ * they pass the refresh point, before they expire. Entries for a network are dropped when that
+ * network changes, and all entries are dropped when the SIM subscriptions change.
+ * \ingroup classes_util
+ */
+class DmeDnsCache implements NetworkManager.NetworkChangeListener {
+    public static final String TAG = "DmeDnsCache";
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+    // Refresh in the background once this fraction of the TTL has passed.
+    private static final double REFRESH_FRACTION = 0.75d;
+
+    private final ExecutorService mExecutorService;
+    private final Map<Key, Entry> mEntries = new HashMap<>();
+    private long mTtlMs = DEFAULT_TTL_MS;
+    // Bumped on every invalidate. A lookup started before an invalidate must not put its result back.
+    private long mGeneration;
+
+    static final class Key {
+        final String mccMnc;
+        final Network network; // May be null, for the process default network.
+
+        Key(String mccMnc, Network network) {
+            this.mccMnc = mccMnc;
+            this.network = network;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return mccMnc.equals(k.mccMnc) &&
+                    (network == null ? k.network == null : network.equals(k.network));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mccMnc.hashCode() + (network == null ? 0 : network.hashCode());
+        }
+    }
+
+    private static final class Entry {
+        final String host;
+        final InetAddress[] addresses;
+        final long resolvedAtMs;
+        boolean refreshing;
+
+        Entry(String host, InetAddress[] addresses, long resolvedAtMs) {
+            this.host = host;
+            this.addresses = addresses;
+            this.resolvedAtMs = resolvedAtMs;
+        }
+    }
+
+    DmeDnsCache(ExecutorService executorService) {
+        mExecutorService = executorService;
+    }
+
+    long getTtlMs() {
+        return mTtlMs;
+    }
+
+    /*!
+     * \param ttlMs (long) How long a lookup is used before it must be resolved again. If <= 0, uses default.
+     */
+    synchronized void setTtlMs(long ttlMs) {
+        mTtlMs = ttlMs <= 0 ? DEFAULT_TTL_MS : ttlMs;
+    }
+
+    /*!
+     * Resolves the DME host for this mcc-mnc and network, using the cache if it is still fresh.
+     * \param mccMnc (String)
+     * \param host (String) DME hostname for the mcc-mnc.
+     * \param network (Network) Network to resolve on. Null uses the process default.
+     * \return InetAddress[] resolved addresses.
+     * \exception DmeDnsException if the host has no DNS entry.
+     */
+    InetAddress[] resolve(String mccMnc, String host, Network network) throws DmeDnsException {
+        return resolve(mccMnc, host, network, null);
+    }
+
+    /*!
+     * Resolves the DME host, giving up on a lookup that is still running at the deadline.
+     * \param deadline (Deadline) May be null, to wait for the lookup however long it takes.
+     * \exception DmeDnsException if the host has no DNS entry, or the deadline passed.
+     */
+    InetAddress[] resolve(String mccMnc, String host, Network network, Deadline deadline) throws DmeDnsException {
+        final Key key = new Key(mccMnc, network);
+        long now = SystemClock.elapsedRealtime();
+        long generation;
+
+        synchronized (this) {
+            generation = mGeneration;
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.host.equals(host)) {
+                long age = now - entry.resolvedAtMs;
+                if (age < mTtlMs) {
+                    if (age >= (long)(mTtlMs * REFRESH_FRACTION) && !entry.refreshing) {
+                        entry.refreshing = true;
+                        refreshInBackground(key, host, generation);
+                    }
+                    return entry.addresses;
+                }
+            }
+        }
+
+        // Missing or expired. Resolve on the caller's thread, unless it has a deadline.
+        InetAddress[] addresses = deadline == null ?
+                lookup(host, network) : lookup(host, network, deadline);
+        putIfCurrent(key, new Entry(host, addresses, SystemClock.elapsedRealtime()), generation);
+        return addresses;
+    }
+
+    // Drops the result of a lookup that an invalidate overtook, since it may be for the old network.
+    private synchronized void putIfCurrent(Key key, Entry entry, long generation) {
+        if (generation != mGeneration) {
+            Log.d(TAG, "Cache invalidated during lookup. Not caching " + entry.host);
+            return;
+        }
+        mEntries.put(key, entry);
+    }
+
+    private void refreshInBackground(final Key key, final String host, final long generation) {
+        try {
+            mExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InetAddress[] addresses = lookup(host, key.network);
+                        putIfCurrent(key, new Entry(host, addresses, SystemClock.elapsedRealtime()), generation);
+                    } catch (DmeDnsException dde) {
+                        // Keep serving the old entry until it expires.
+                        Log.w(TAG, "Background refresh failed for " + host + ": " + dde.getMessage());
+                        synchronized (DmeDnsCache.this) {
+                            Entry entry = mEntries.get(key);
+                            if (entry != null) {
+                                entry.refreshing = false;
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Executor is shut down. Not refreshing " + host);
+        }
+    }
+
+    // InetAddress lookups cannot be interrupted, so the lookup runs on the executor, and is
+    // abandoned (not stopped) at the deadline.
+    private InetAddress[] lookup(final String host, final Network network, Deadline deadline) throws DmeDnsException {
+        long remainingMs = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+        if (remainingMs <= 0) {
+            throw new DmeDnsException("Deadline passed before DNS lookup of DME server: " + host);
+        }
+        Future<InetAddress[]> lookupFuture;
+        try {
+            lookupFuture = mExecutorService.submit(new Callable<InetAddress[]>() {
+                @Override
+                public InetAddress[] call() throws DmeDnsException {
+                    return lookup(host, network);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            return lookup(host, network);
+        }
+        try {
+            return lookupFuture.get(remainingMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof DmeDnsException) {
+                throw (DmeDnsException) ee.getCause();
+            }
+            throw new DmeDnsException("DNS lookup failed for DME server: " + host, ee);
+        } catch (TimeoutException te) {
+            lookupFuture.cancel(true);
+            throw new DmeDnsException("DNS lookup of DME server did not finish before the deadline: " + host, te);
+        } catch (InterruptedException ie) {
+            lookupFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DmeDnsException("Interrupted during DNS lookup of DME server: " + host, ie);
+        }
+    }
+
+    private static InetAddress[] lookup(String host, Network network) throws DmeDnsException {
+        InetAddress[] addresses;
+        try {
+            addresses = network != null ? network.getAllByName(host) : InetAddress.getAllByName(host);
+        } catch (UnknownHostException uhe) {
+            throw new DmeDnsException(("Could not find mcc-mnc.dme.mobiledgex.net DME server: " + host), uhe);
+        }
+        if (addresses == null || addresses.length < 1) {
+            throw new DmeDnsException(("No IP address for mcc-mnc.dme.mobiledgex.net DME server: " + host));
+        }
+        return addresses;
+    }
+
+    synchronized void invalidate(Network network) {
+        mGeneration++;
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            if (key.network == null || key.network.equals(network)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public void onNetworkChanged(Network network) {
+        // Entries on the default network (null key) may have been resolved on this network too.
+        invalidate(network);
+    }
+
+    @Override
+    public void onSubscriptionsChanged() {
+        invalidateAll();
+    }
+}
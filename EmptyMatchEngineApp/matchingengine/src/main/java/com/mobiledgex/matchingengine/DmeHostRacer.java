@@ -0,0 +1,179 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.Network;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*!
+ * Races several candidate DME hosts (happy-eyeballs style). Each candidate is resolved and a TCP
+ * connection is made to it; the first to connect wins, and is remembered for that network until
+ * the network changes. Later candidates start after a short head start, or right away if an
+ * earlier one fails.
+ * \ingroup classes_util
+ */
+class DmeHostRacer implements NetworkManager.NetworkChangeListener {
+    public static final String TAG = "DmeHostRacer";
+    public static final long DEFAULT_HEAD_START_MS = 250;
+
+    private final ExecutorService mExecutorService;
+    private final DmeDnsCache mDmeDnsCache;
+    private final Map<Network, String> mWinners = new HashMap<>();
+    private String mDefaultNetworkWinner; // Winner when no network is known.
+    private long mHeadStartMs = DEFAULT_HEAD_START_MS;
+
+    DmeHostRacer(ExecutorService executorService, DmeDnsCache dmeDnsCache) {
+        mExecutorService = executorService;
+        mDmeDnsCache = dmeDnsCache;
+    }
+
+    synchronized void setHeadStartMs(long headStartMs) {
+        mHeadStartMs = headStartMs < 0 ? DEFAULT_HEAD_START_MS : headStartMs;
+    }
+
+    synchronized String getWinner(Network network) {
+        return network == null ? mDefaultNetworkWinner : mWinners.get(network);
+    }
+
+    private synchronized void setWinner(Network network, String host) {
+        if (network == null) {
+            mDefaultNetworkWinner = host;
+        } else {
+            mWinners.put(network, host);
+        }
+    }
+
+    /*!
+     * Returns the first DME host to accept a TCP connection, in order of preference.
+     * \param cacheKeys (String[]) DmeDnsCache key for each host (ie. mcc-mnc).
+     * \param hosts (String[]) candidate DME hosts, most preferred first.
+     * \param port (int)
+     * \param network (Network) May be null for the process default network.
+     * \param timeoutMs (long) Overall time limit for the race.
+     * \return String winning DME host.
+     * \exception DmeDnsException if no candidate could be reached.
+     */
+    String race(final String[] cacheKeys, final String[] hosts, final int port,
+                final Network network, final long timeoutMs) throws DmeDnsException {
+        String winner = getWinner(network);
+        if (winner != null) {
+            for (String host : hosts) {
+                if (host.equals(winner)) {
+                    return winner;
+                }
+            }
+        }
+
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch[] failed = new CountDownLatch[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            failed[i] = new CountDownLatch(1);
+        }
+        final long headStartMs;
+        synchronized (this) {
+            headStartMs = mHeadStartMs;
+        }
+
+        for (int i = 0; i < hosts.length; i++) {
+            final int index = i;
+            mExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Give the more preferred candidate a head start, unless it already failed.
+                        if (index > 0) {
+                            failed[index - 1].await(headStartMs * index, TimeUnit.MILLISECONDS);
+                        }
+                        if (result.isDone()) {
+                            return;
+                        }
+                        InetAddress[] addresses = mDmeDnsCache.resolve(cacheKeys[index], hosts[index], network);
+                        connect(addresses[0], port, network, (int)timeoutMs);
+                        if (result.complete(hosts[index])) {
+                            Log.i(TAG, "DME host race won by: " + hosts[index]);
+                        }
+                    } catch (Exception e) {
+                        Log.d(TAG, "DME candidate " + hosts[index] + " failed: " + e.getMessage());
+                        failed[index].countDown();
+                        if (failures.incrementAndGet() == hosts.length) {
+                            result.completeExceptionally(new DmeDnsException("No DME host reachable. Last error: " + e.getMessage(), e));
+                        }
+                    }
+                }
+            });
+        }
+
+        try {
+            winner = result.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new DmeDnsException("Interrupted while racing DME hosts.", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof DmeDnsException) {
+                throw (DmeDnsException) cause;
+            }
+            throw new DmeDnsException("DME host race failed: " + cause.getMessage(), ee);
+        } catch (TimeoutException te) {
+            result.cancel(false);
+            throw new DmeDnsException("No DME host reachable within " + timeoutMs + "ms.", te);
+        }
+        setWinner(network, winner);
+        return winner;
+    }
+
+    private static void connect(InetAddress address, int port, Network network, int timeoutMs) throws IOException {
+        Socket socket = network != null ? network.getSocketFactory().createSocket() : new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+        } finally {
+            socket.close();
+        }
+    }
+
+    synchronized void clear() {
+        mWinners.clear();
+        mDefaultNetworkWinner = null;
+    }
+
+    @Override
+    public synchronized void onNetworkChanged(Network network) {
+        mWinners.remove(network);
+        mDefaultNetworkWinner = null;
+    }
+
+    @Override
+    public void onSubscriptionsChanged() {
+        clear();
+    }
+}
@@ -24,14 +24,20 @@ import java.net.UnknownHostException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import distributed_match_engine.AppClient;
 import distributed_match_engine.Appcommon;
 import distributed_match_engine.LocOuterClass;
 import distributed_match_engine.MatchEngineApiGrpc;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
 import static distributed_match_engine.AppClient.ServerEdgeEvent.ServerEventType;
@@ -44,6 +50,12 @@ import static distributed_match_engine.AppClient.ServerEdgeEvent.ServerEventType
 public class EdgeEventsConnection {
 
     public static final String TAG = "EdgeEventsConnection";
+    // Longest wait for the stream to terminate on close.
+    public static final long TERMINATE_TIMEOUT_MS = 10 * 1000;
+    // ClientEdgeEvent tags for the loss metrics of posted latency samples.
+    public static final String TAG_ATTEMPTS = "latency_test_attempts";
+    public static final String TAG_FAILURES = "latency_test_failures";
+    public static final String TAG_LOSS_RATE = "latency_test_loss_rate";
 
     // Persistent connection:
     private MatchingEngine me;
@@ -56,6 +68,10 @@ public class EdgeEventsConnection {
 
     StreamObserver<AppClient.ClientEdgeEvent> sender;
     StreamObserver<AppClient.ServerEdgeEvent> receiver;
+    // Outbound events, written to sender by one writer at a time.
+    private final EdgeEventsSendQueue mSendQueue;
+    // Set while a reconnect started by the writer is running.
+    private final AtomicBoolean mReconnecting = new AtomicBoolean(false);
     public boolean reconnectOnError = true;
 
     enum ChannelStatus {
@@ -90,6 +106,8 @@ public class EdgeEventsConnection {
     }
 
     private Location mLastLocationPosted = null;
+    // Kept across latency tests of the current AppInst, so its EWMA spans test intervals.
+    private Site mLatencySite = null;
 
     // TODO: Use Site.DEFAULT_NUM_SAMPLES ?
     final int DEFAULT_NUM_SAMPLES = 5;
@@ -198,7 +216,9 @@ public class EdgeEventsConnection {
         eventTriggeredButCurrentCloudletIsBest,
         eventTriggeredButFindCloudletError,
 
-        missingDmeDnsEntry
+        missingDmeDnsEntry,
+
+        outboundQueueFull
     }
 
     /*!
@@ -226,6 +246,20 @@ public class EdgeEventsConnection {
         } else {
             mEdgeEventsConfig = new EdgeEventsConfig(eeConfig);
         }
+
+        mSendQueue = new EdgeEventsSendQueue(me.threadpool, new EdgeEventsSendQueue.Listener() {
+            @Override
+            public EdgeEventsSendQueue.Decision beforeSend(AppClient.ClientEdgeEvent clientEdgeEvent) {
+                return prepareToSend(clientEdgeEvent);
+            }
+
+            @Override
+            public void onOverflow(AppClient.ClientEdgeEvent dropped) {
+                Log.w(TAG, "Outbound queue is full (" + mEdgeEventsConfig.outboundOverflowPolicy + "). Dropped: " + dropped.getEventType());
+                postErrorToEventHandler(EdgeEventsError.outboundQueueFull);
+            }
+        });
+        mSendQueue.configure(mEdgeEventsConfig.outboundQueueCapacity, mEdgeEventsConfig.outboundOverflowPolicy);
     }
 
     boolean awaitOpen() {
@@ -426,6 +460,7 @@ public class EdgeEventsConnection {
         } else {
             mEdgeEventsConfig = new EdgeEventsConfig(eeConfig);
         }
+        mSendQueue.configure(mEdgeEventsConfig.outboundQueueCapacity, mEdgeEventsConfig.outboundOverflowPolicy);
 
         if (mEdgeEventsConfig.latencyUpdateConfig != null &&
                 mEdgeEventsConfig.locationUpdateConfig != null) {
@@ -478,7 +513,12 @@ public class EdgeEventsConnection {
         this.channel = me.channelPicker(lastConnectionDetails.host, lastConnectionDetails.port, lastConnectionDetails.network);
         this.asyncStub = MatchEngineApiGrpc.newStub(channel);
 
-        receiver = new StreamObserver<AppClient.ServerEdgeEvent>() {
+        receiver = new ClientResponseObserver<AppClient.ClientEdgeEvent, AppClient.ServerEdgeEvent>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<AppClient.ClientEdgeEvent> requestStream) {
+                mSendQueue.attach(requestStream);
+            }
+
             @Override
             public void onNext(AppClient.ServerEdgeEvent value) {
                 // If nothing is subscribed, it just goes to deadEvent.
@@ -487,9 +527,16 @@ public class EdgeEventsConnection {
                     me.getEdgeEventsBus().post(value);
                 }
 
+                if (FindCloudletCache.invalidatedBy(value.getEventType())) {
+                    // Cached replies may no longer be the best cloudlet.
+                    me.getFindCloudletCache().invalidateAll();
+                }
+
                 if (value.getEventType() == ServerEventType.EVENT_INIT_CONNECTION) {
                     channelStatus = ChannelStatus.open;
                     notifyOpenAwaiter();
+                    // Events held while the stream was opening.
+                    mSendQueue.resume();
                     runEdgeEvents();
                 }
                 if (value.hasNewCloudlet()) {
@@ -579,6 +626,14 @@ public class EdgeEventsConnection {
      * Peer connection clear from onComplete, onError.
      */
     synchronized void closeInternal() {
+        closeInternal(null);
+    }
+
+    /*!
+     * closeInternal, waiting for the stream to terminate no later than the deadline.
+     * \param deadline (Deadline) May be null, to wait up to TERMINATE_TIMEOUT_MS.
+     */
+    synchronized void closeInternal(Deadline deadline) {
         if (channelStatus == ChannelStatus.closed) {
             return;
         }
@@ -586,7 +641,7 @@ public class EdgeEventsConnection {
         Log.d(TAG, "stream closing...");
         channelStatus = ChannelStatus.closing;
         if (channel != null && !isShutdown()) {
-            sendTerminate();
+            sendTerminate(deadline);
         }
         channel = null;
         channelStatus = ChannelStatus.closed;
@@ -643,6 +698,12 @@ public class EdgeEventsConnection {
         return channel.isShutdown();
     }
 
+    /*!
+     * Queues a client event for the DME. Events are written in order by a single writer, at the
+     * rate the stream accepts them. If the queue is full, EdgeEventsConfig.outboundOverflowPolicy
+     * picks the event to drop, and EdgeEventsError.outboundQueueFull is posted.
+     * \return false if the event was not queued.
+     */
     synchronized public boolean send(final AppClient.ClientEdgeEvent clientEdgeEvent) {
 
         if (!me.isEnableEdgeEvents()) {
@@ -655,52 +716,80 @@ public class EdgeEventsConnection {
             return false;
         }
 
-        // Submit from one thread to GRPC.
-        CompletableFuture.runAsync(
-                () -> {
-                    try {
-                        // Check again at execution time:
-                        if (!me.isEnableEdgeEvents()) {
-                            Log.e(TAG, "EdgeEvents is disabled. Message is not sent.");
-                            return;
-                        }
-                        if (me.isShutdown()) {
-                            Log.w(TAG, "MatchingEngine is shutdown. Message is not Posted!");
-                            return;
-                        }
-                        if ((channelStatus == ChannelStatus.opening ||
-                                channelStatus == ChannelStatus.closing) &&
-                                clientEdgeEvent.getEventType() !=
-                                        AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION)
-                        {
-                            Log.i(TAG, "Dropping message send until EdgeEventsConnection is initialized.");
-                            return;
-                        }
-
-                        Log.d(TAG, "Received this event to post to server: " + clientEdgeEvent);
-                        if (channelStatus == ChannelStatus.closed) {
-                            Log.d(TAG, "Reconnecting to post: Channel status: " + channelStatus);
-                            reconnect(mEdgeEventsConfig);
-                        }
-                        if (sender != null) {
-                            synchronized (sender) {
-                                sender.onNext(clientEdgeEvent);
-                            }
-                            Log.d(TAG, "Posted!");
-                        } else {
-                            Log.d(TAG, "Sender does not exist. NOT Posted!");
-                        }
-                    } catch (DmeDnsException dde) {
-                        Log.e(TAG, "DME Not found!" + dde.getMessage() + ", cause: " + dde.getCause() + ", stack: " + dde.getStackTrace());
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage() + ", cause: " + e.getCause() + ", stack: " + e.getStackTrace());
-                    }
-                }, me.threadpool);
+        if (!mSendQueue.offer(clientEdgeEvent)) {
+            return false;
+        }
         Log.d(TAG, "Submitted for posting!");
         return true;
     }
 
+    /*!
+     * Checks, on the writer, whether a queued event can still be sent. Must not block: if the
+     * stream is closed, a reconnect starts on the threadpool, and the event is held until the
+     * DME answers the new stream's INIT.
+     */
+    private EdgeEventsSendQueue.Decision prepareToSend(AppClient.ClientEdgeEvent clientEdgeEvent) {
+        // Check again at execution time:
+        if (!me.isEnableEdgeEvents()) {
+            Log.e(TAG, "EdgeEvents is disabled. Message is not sent.");
+            return EdgeEventsSendQueue.Decision.DROP;
+        }
+        if (me.isShutdown()) {
+            Log.w(TAG, "MatchingEngine is shutdown. Message is not Posted!");
+            return EdgeEventsSendQueue.Decision.DROP;
+        }
+        if (clientEdgeEvent.getEventType() == AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION) {
+            return EdgeEventsSendQueue.Decision.SEND;
+        }
+        if (channelStatus == ChannelStatus.closed) {
+            Log.d(TAG, "Reconnecting to post: Channel status: " + channelStatus);
+            reconnectAsync();
+            return EdgeEventsSendQueue.Decision.HOLD;
+        }
+        if (channelStatus == ChannelStatus.opening || channelStatus == ChannelStatus.closing) {
+            Log.i(TAG, "Holding message send until EdgeEventsConnection is initialized.");
+            return EdgeEventsSendQueue.Decision.HOLD;
+        }
+        Log.d(TAG, "Received this event to post to server: " + clientEdgeEvent);
+        return EdgeEventsSendQueue.Decision.SEND;
+    }
+
+    // One reconnect at a time, off the writer. The INIT reply resumes the writer.
+    private void reconnectAsync() {
+        if (!mReconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    reconnect(mEdgeEventsConfig);
+                } catch (DmeDnsException dde) {
+                    Log.e(TAG, "DME Not found!" + dde.getMessage() + ", cause: " + dde.getCause());
+                } catch (Exception e) {
+                    Log.e(TAG, "Reconnect failed: " + e.getMessage() + ", cause: " + e.getCause());
+                } finally {
+                    mReconnecting.set(false);
+                }
+            }, me.threadpool);
+        } catch (RejectedExecutionException ree) {
+            mReconnecting.set(false);
+            Log.w(TAG, "Executor is shut down. Not reconnecting.");
+        }
+    }
+
     boolean sendTerminate() {
+        return sendTerminate(null);
+    }
+
+    // Time to wait for the terminate message and channel termination, bounded by the deadline.
+    private static long terminateWaitMs(Deadline deadline) {
+        if (deadline == null) {
+            return TERMINATE_TIMEOUT_MS;
+        }
+        return Math.max(0, Math.min(TERMINATE_TIMEOUT_MS, deadline.timeRemaining(TimeUnit.MILLISECONDS)));
+    }
+
+    boolean sendTerminate(Deadline deadline) {
         channelStatus = ChannelStatus.closed;
         if (isShutdown() || me.isShutdown())  {
             return false;
@@ -715,13 +804,16 @@ public class EdgeEventsConnection {
             try {
                 CompletableFuture.runAsync(
                         () -> {
-                            sender.onNext(clientEdgeEvent);
+                            // Queued events are dropped. Terminate is the last write.
+                            mSendQueue.close(clientEdgeEvent);
                             sender = null;
-                        }, me.threadpool).get();
+                        }, me.threadpool).get(terminateWaitMs(deadline), TimeUnit.MILLISECONDS);
             } catch (ExecutionException e) {
                 e.printStackTrace();
             } catch (InterruptedException e) {
                 e.printStackTrace();
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Terminate message not sent before the deadline.");
             }
             Log.d(TAG, "Posted!");
         }
@@ -730,7 +822,7 @@ public class EdgeEventsConnection {
         channel.shutdown();
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            channel.awaitTermination(10, TimeUnit.SECONDS);
+            channel.awaitTermination(terminateWaitMs(deadline), TimeUnit.MILLISECONDS);
             Log.e(TAG, "Time to terminate: " + stopwatch.elapsed(TimeUnit.MILLISECONDS));
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -865,13 +957,7 @@ public class EdgeEventsConnection {
                 .setEventType(AppClient.ClientEdgeEvent.ClientEventType.EVENT_LATENCY_SAMPLES)
                 .setGpsLocation(loc);
 
-        for (int i = 0; i < site.samples.length; i++) {
-            LocOuterClass.Sample.Builder sampleBuilder = LocOuterClass.Sample.newBuilder()
-                    //.setLoc(loc) Location is not synchronous with measurement.
-                    // Samples are not timestamped.
-                    .setValue(site.samples[i]);
-            clientEdgeEventBuilder.addSamples(sampleBuilder.build());
-        }
+        addLatencySamples(clientEdgeEventBuilder, site);
         Appcommon.DeviceInfoDynamic deviceInfoDynamic = me.getDeviceInfoDynamicProto();
         if (deviceInfoDynamic != null) {
             clientEdgeEventBuilder.mergeDeviceInfoDynamic(deviceInfoDynamic);
@@ -943,16 +1029,14 @@ public class EdgeEventsConnection {
             clientEdgeEventBuilder.mergeDeviceInfoDynamic(deviceInfoDynamic);
         }
 
-        Site site = new Site(me.mContext, NetTest.TestType.PING,
-                Site.DEFAULT_NUM_SAMPLES,
-                host, port);
+        Site site = latencyTestSite(NetTest.TestType.PING, Site.DEFAULT_NUM_SAMPLES, host, port);
         NetTest netTest = new NetTest();
         netTest.addSite(site);
         // Test list of sites:
         netTest.testSites(netTest.TestTimeoutMS);
 
         // Trigger(s):
-        if (site.average >= mEdgeEventsConfig.latencyThresholdTrigger) {
+        if (site.ewmaAverage >= mEdgeEventsConfig.latencyThresholdTrigger) {
             Log.i(TAG, "Latency higher than requested during Ping latency test.");
             doClientFindCloudlet(FindCloudletEventTrigger.LatencyTooHigh).thenApply( result -> {
                 if (!result) {
@@ -962,13 +1046,7 @@ public class EdgeEventsConnection {
             });
         }
 
-        for (int i = 0; i < site.samples.length; i++) {
-            LocOuterClass.Sample.Builder sampleBuilder = LocOuterClass.Sample.newBuilder()
-                    //.setLoc(loc) Location is not synchronous with measurement.
-                    // Samples are not timestamped.
-                    .setValue(site.samples[i]);
-            clientEdgeEventBuilder.addSamples(sampleBuilder.build());
-        }
+        addLatencySamples(clientEdgeEventBuilder, site);
 
         AppClient.ClientEdgeEvent clientEdgeEvent = clientEdgeEventBuilder.build();
 
@@ -1008,6 +1086,25 @@ public class EdgeEventsConnection {
      * \ingroup functions_edge_events_api
      */
     synchronized public boolean testConnectAndPostLatencyUpdate(int internalPort, Location location) {
+        return testAndPostLatencyUpdate(NetTest.TestType.CONNECT, internalPort, location);
+    }
+
+    /*!
+     * Outbound ClientEdgeEvent to DME. Like testConnectAndPostLatencyUpdate, but tests with UDP echo
+     * probes. The AppInst must echo them, ie. with UdpEchoResponder on its latency test port.
+     *
+     * This utility function uses the default network path. It does not swap network interfaces.
+     *
+     * \param android format GPS location.
+     * \return boolean indicating whether the site results are posted or not.
+     * \ingroup functions_edge_events_api
+     */
+    synchronized public boolean testUdpEchoAndPostLatencyUpdate(Location location) {
+        return testAndPostLatencyUpdate(NetTest.TestType.UDP_ECHO, 0, location);
+    }
+
+    // CONNECT or UDP_ECHO test of the current AppInst, posted as EVENT_LATENCY_SAMPLES.
+    private synchronized boolean testAndPostLatencyUpdate(NetTest.TestType testType, int internalPort, Location location) {
         if (isShutdown() || me.isShutdown())  {
             Log.w(TAG, "Connection not currently open. Message dropped.");
             return false;
@@ -1023,10 +1120,16 @@ public class EdgeEventsConnection {
             Log.w(TAG, "Unable to test. A previous successful FindCloudletReply is required to test edge AppInst");
             return false;
         }
-        String host = me.getAppConnectionManager().getHost(lastFc, mEdgeEventsConfig.latencyInternalPort);
+        AppConnectionManager appConnectionManager = me.getAppConnectionManager();
+        Appcommon.AppPort appPort = latencyTestAppPort(appConnectionManager, lastFc, testType, mEdgeEventsConfig.latencyInternalPort);
+        if (appPort == null) {
+            postErrorToEventHandler(EdgeEventsError.portDoesNotExist);
+            return false;
+        }
+        String host = appConnectionManager.getHost(lastFc, appPort);
         int port = internalPort;
         if (port <= 0) {
-            port = me.getAppConnectionManager().getPublicPort(lastFc, mEdgeEventsConfig.latencyInternalPort);
+            port = latencyTestPublicPort(appConnectionManager, appPort, mEdgeEventsConfig.latencyInternalPort);
         }
 
         if (host == null || host.length() == 0) {
@@ -1058,18 +1161,15 @@ public class EdgeEventsConnection {
                 .setEventType(AppClient.ClientEdgeEvent.ClientEventType.EVENT_LATENCY_SAMPLES)
                 .setGpsLocation(loc);
 
-        Site site = new Site(me.mContext, NetTest.TestType.CONNECT,
-                Site.DEFAULT_NUM_SAMPLES,
-                host,
-                port);
+        Site site = latencyTestSite(testType, Site.DEFAULT_NUM_SAMPLES, host, port);
         NetTest netTest = new NetTest();
         netTest.addSite(site);
         // Test list of sites:
         netTest.testSites(netTest.TestTimeoutMS);
 
         // Trigger(s):
-        if (site.average >= mEdgeEventsConfig.latencyThresholdTrigger) {
-            Log.i(TAG, "Latency higher than requested during Connect latency test.");
+        if (site.ewmaAverage >= mEdgeEventsConfig.latencyThresholdTrigger) {
+            Log.i(TAG, "Latency higher than requested during " + testType + " latency test.");
             doClientFindCloudlet(FindCloudletEventTrigger.LatencyTooHigh).thenApply( result -> {
                 if (!result) {
                     postErrorToEventHandler(EdgeEventsError.eventTriggeredButCurrentCloudletIsBest);
@@ -1078,13 +1178,7 @@ public class EdgeEventsConnection {
             });
         }
 
-        for (int i = 0; i < site.samples.length; i++) {
-            LocOuterClass.Sample.Builder sampleBuilder = LocOuterClass.Sample.newBuilder()
-                    //.setLoc(loc) Location is not synchronous with measurement.
-                    // Samples are not timestamped.
-                    .setValue(site.samples[i]);
-            clientEdgeEventBuilder.addSamples(sampleBuilder.build());
-        }
+        addLatencySamples(clientEdgeEventBuilder, site);
         Appcommon.DeviceInfoDynamic deviceInfoDynamic = me.getDeviceInfoDynamicProto();
         if (deviceInfoDynamic != null) {
             clientEdgeEventBuilder.mergeDeviceInfoDynamic(deviceInfoDynamic);
@@ -1099,6 +1193,91 @@ public class EdgeEventsConnection {
         return false;
     }
 
+    /*!
+     * Site for latency tests of the current AppInst. The same Site is reused while the AppInst,
+     * test type and network stay the same, so the latency trigger uses a time-decayed average over
+     * recent tests instead of only the last few samples.
+     */
+    /*!
+     * AppPort to test latency on. UDP echo probes need a UDP AppPort; other tests use the first
+     * AppPort with the internal port.
+     * \param appConnectionManager (AppConnectionManager)
+     * \param findCloudletReply (FindCloudletReply)
+     * \param testType (NetTest.TestType)
+     * \param internalPort (int) 0 for any port.
+     * \return AppPort, or null if there is no suitable AppPort.
+     */
+    static Appcommon.AppPort latencyTestAppPort(AppConnectionManager appConnectionManager,
+                                                AppClient.FindCloudletReply findCloudletReply,
+                                                NetTest.TestType testType, int internalPort) {
+        if (testType == NetTest.TestType.UDP_ECHO) {
+            return appConnectionManager.getAppPort(findCloudletReply, Appcommon.LProto.L_PROTO_UDP, internalPort);
+        }
+        return appConnectionManager.getAppPort(findCloudletReply, internalPort);
+    }
+
+    // Public port of an AppPort from latencyTestAppPort, or 0.
+    static int latencyTestPublicPort(AppConnectionManager appConnectionManager, Appcommon.AppPort appPort, int internalPort) {
+        try {
+            return appConnectionManager.getPort(appPort, internalPort);
+        } catch (InvalidPortException ipe) {
+            return 0;
+        }
+    }
+
+    private synchronized Site latencyTestSite(NetTest.TestType testType, int numSamples, String host, int port) {
+        Network network = me.getNetworkManager().getActiveNetwork();
+        Site site = mLatencySite;
+        if (site == null || site.testType != testType || site.samples.length != numSamples ||
+                site.port != port || !host.equals(site.host) ||
+                (network != null && !network.equals(site.network))) {
+            site = new Site(me.mContext, testType, numSamples, host, port);
+            // The previous test interval counts about half as much as the current one.
+            UpdateConfig latencyUpdateConfig = mEdgeEventsConfig == null ? null : mEdgeEventsConfig.latencyUpdateConfig;
+            if (latencyUpdateConfig != null && latencyUpdateConfig.updateIntervalSeconds > 0) {
+                site.setEwmaHalfLifeMs(Math.max(Site.DEFAULT_EWMA_HALF_LIFE_MS,
+                        (long) (latencyUpdateConfig.updateIntervalSeconds * 1000)));
+            }
+            mLatencySite = site;
+        }
+        return site;
+    }
+
+    /*!
+     * Adds the site's latency samples, with loss metrics as event tags. Empty sample slots are
+     * skipped; failed tests are counted in the tags instead.
+     */
+    private static void addLatencySamples(AppClient.ClientEdgeEvent.Builder clientEdgeEventBuilder, Site site) {
+        synchronized (site) {
+            for (int i = 0; i < site.samples.length; i++) {
+                if (site.samples[i] < 0) {
+                    continue;
+                }
+                //.setLoc(loc) Location is not synchronous with measurement.
+                clientEdgeEventBuilder.addSamples(toSample(site, i));
+            }
+            clientEdgeEventBuilder.putTags(TAG_ATTEMPTS, String.valueOf(site.attempts));
+            clientEdgeEventBuilder.putTags(TAG_FAILURES, String.valueOf(site.failures));
+            clientEdgeEventBuilder.putTags(TAG_LOSS_RATE, String.valueOf(site.lossRate()));
+        }
+    }
+
+    /*!
+     * One latency sample for the DME, with the wall clock time it was taken.
+     */
+    private static LocOuterClass.Sample toSample(Site site, int i) {
+        LocOuterClass.Sample.Builder sampleBuilder = LocOuterClass.Sample.newBuilder()
+                .setValue(site.samples[i]);
+        long timeMs = site.sampleTimeMillis(i);
+        if (timeMs > 0) {
+            sampleBuilder.setTimestamp(LocOuterClass.Timestamp.newBuilder()
+                    .setSeconds(timeMs / 1000)
+                    .setNanos((int) (timeMs % 1000) * 1000000)
+                    .build());
+        }
+        return sampleBuilder.build();
+    }
+
     private void validateStartConfig(String host, EdgeEventsConfig edgeEventsConfig) {
         if (host == null || host.trim().isEmpty()) {
             throw new IllegalArgumentException("Host cannot be null!");
@@ -1541,26 +1720,29 @@ public class EdgeEventsConnection {
                         return false;
                     }
 
-                    int publicPort = me.getAppConnectionManager().getPublicPort(lastConnectionDetails.currentCloudlet, internalPort);
-                    if (publicPort == 0) {
-                        Log.i(TAG, "Your expected server (or port) doesn't seem to be here! Internal Port: " + internalPort);
-                    }
+                    NetTest.TestType testType = mEdgeEventsConfig.latencyTestType == NetTest.TestType.UDP_ECHO ?
+                            NetTest.TestType.UDP_ECHO : NetTest.TestType.CONNECT;
 
                     // Test with default network in use:
-                    Appcommon.AppPort appPort = me.getAppConnectionManager().getAppPort(lastConnectionDetails.currentCloudlet, internalPort);
+                    AppConnectionManager appConnectionManager = me.getAppConnectionManager();
+                    Appcommon.AppPort appPort = latencyTestAppPort(appConnectionManager, lastConnectionDetails.currentCloudlet, testType, internalPort);
                     if (appPort == null) {
                         postErrorToEventHandler(EdgeEventsError.portDoesNotExist);
                         return false;
                     }
+                    int publicPort = latencyTestPublicPort(appConnectionManager, appPort, internalPort);
+                    if (publicPort == 0) {
+                        Log.i(TAG, "Your expected server (or port) doesn't seem to be here! Internal Port: " + internalPort);
+                    }
                     String host = appPort.getFqdnPrefix() + lastConnectionDetails.currentCloudlet.getFqdn();
 
-                    Site site = new Site(me.mContext, NetTest.TestType.CONNECT, DEFAULT_NUM_SAMPLES, host, publicPort);
+                    Site site = latencyTestSite(testType, DEFAULT_NUM_SAMPLES, host, publicPort);
                     netTest.addSite(site);
                     // Blocks.
                     netTest.testSites(netTest.TestTimeoutMS); // Test the one we just added.
 
                     // Trigger(s):
-                    if (site.average >= mEdgeEventsConfig.latencyThresholdTrigger) {
+                    if (site.ewmaAverage >= mEdgeEventsConfig.latencyThresholdTrigger) {
                         Log.i(TAG, "Latency higher than requested");
                         doClientFindCloudlet(FindCloudletEventTrigger.LatencyTooHigh).thenApply( result -> {
                             if (!result) {
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.util.Log;
+
+import com.mobiledgex.matchingengine.edgeeventsconfig.EdgeEventsConfig;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import distributed_match_engine.AppClient;
+import io.grpc.stub.ClientCallStreamObserver;
+
+/*!
+ * Bounded outbound queue for the EdgeEvents stream. Any thread may add events; one writer task at
+ * a time drains them, in order, onto the gRPC stream. The writer only writes while the stream
+ * isReady(), and the stream's onReady handler restarts it, so events wait here rather than in
+ * gRPC's unbounded buffer. When the queue is full, the configured OutboundOverflowPolicy decides
+ * which event is dropped. EVENT_INIT_CONNECTION has a slot of its own: it is written before any
+ * queued event, and is never dropped for space.
+ * \ingroup classes_util
+ */
+class EdgeEventsSendQueue {
+    public static final String TAG = "EdgeEventsSendQueue";
+
+    /*!
+     * What the writer does with the next event.
+     */
+    enum Decision {
+        SEND,
+        DROP,
+        HOLD, //!< Keep it first in line, and stop writing until resume().
+    }
+
+    interface Listener {
+        /*!
+         * Called on the writer, just before an event is written. Must not block.
+         * \return Decision
+         */
+        Decision beforeSend(AppClient.ClientEdgeEvent event);
+
+        /*!
+         * Called on the adding thread when an event is dropped because the queue is full.
+         */
+        void onOverflow(AppClient.ClientEdgeEvent dropped);
+    }
+
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final ConcurrentLinkedQueue<AppClient.ClientEdgeEvent> mQueue = new ConcurrentLinkedQueue<>();
+    // Latest EVENT_INIT_CONNECTION, not yet written. Goes ahead of the head and the queue.
+    private final AtomicReference<AppClient.ClientEdgeEvent> mInit = new AtomicReference<>();
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile int mCapacity = EdgeEventsConfig.OUTBOUND_QUEUE_CAPACITY_DEFAULT;
+    private volatile EdgeEventsConfig.OutboundOverflowPolicy mPolicy = EdgeEventsConfig.OutboundOverflowPolicy.DROP_OLDEST;
+    private volatile ClientCallStreamObserver<AppClient.ClientEdgeEvent> mStream;
+    // Taken from the queue, and waiting for the stream to be ready, or for resume(). Written by the
+    // writer, and cleared by close().
+    private volatile AppClient.ClientEdgeEvent mHead;
+    // Set when the listener holds the head. Only an INIT, or resume(), restarts the writer.
+    private volatile boolean mHolding;
+
+    EdgeEventsSendQueue(Executor executor, Listener listener) {
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    void configure(int capacity, EdgeEventsConfig.OutboundOverflowPolicy policy) {
+        mCapacity = capacity <= 0 ? EdgeEventsConfig.OUTBOUND_QUEUE_CAPACITY_DEFAULT : capacity;
+        mPolicy = policy == null ? EdgeEventsConfig.OutboundOverflowPolicy.DROP_OLDEST : policy;
+    }
+
+    /*!
+     * Sets the stream to write to. Call from ClientResponseObserver.beforeStart(), since the
+     * onReady handler can only be set before the call starts.
+     */
+    void attach(ClientCallStreamObserver<AppClient.ClientEdgeEvent> stream) {
+        stream.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                scheduleDrain();
+            }
+        });
+        mStream = stream;
+    }
+
+    /*!
+     * Drops queued events and detaches the stream. If last is not null, it is written to the
+     * detached stream first (ie. a terminate message).
+     */
+    void close(AppClient.ClientEdgeEvent last) {
+        ClientCallStreamObserver<AppClient.ClientEdgeEvent> stream = mStream;
+        mStream = null;
+        mInit.set(null);
+        mHead = null;
+        mHolding = false;
+        clear();
+        if (stream != null && last != null) {
+            synchronized (stream) {
+                stream.onNext(last);
+            }
+        }
+    }
+
+    void clear() {
+        while (mQueue.poll() != null) {
+            mCount.decrementAndGet();
+        }
+    }
+
+    int size() {
+        return mCount.get();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /*!
+     * Restarts a writer stopped by Decision.HOLD, ie. once the stream is open.
+     */
+    void resume() {
+        mHolding = false;
+        scheduleDrain();
+    }
+
+    /*!
+     * Adds an event for the writer. An EVENT_INIT_CONNECTION is never the one dropped: it replaces
+     * any INIT not yet written, and does not count against the capacity.
+     * \return false if this event was dropped.
+     */
+    boolean offer(AppClient.ClientEdgeEvent event) {
+        if (event.getEventType() == AppClient.ClientEdgeEvent.ClientEventType.EVENT_INIT_CONNECTION) {
+            mInit.set(event);
+            scheduleDrain();
+            return true;
+        }
+        if (mCount.incrementAndGet() > mCapacity) {
+            if (mPolicy == EdgeEventsConfig.OutboundOverflowPolicy.DROP_NEWEST) {
+                mCount.decrementAndGet();
+                mDropped.incrementAndGet();
+                mListener.onOverflow(event);
+                return false;
+            }
+            AppClient.ClientEdgeEvent oldest = mQueue.poll();
+            if (oldest != null) {
+                mCount.decrementAndGet();
+                mDropped.incrementAndGet();
+                mListener.onOverflow(oldest);
+            }
+        }
+        mQueue.offer(event);
+        scheduleDrain();
+        return true;
+    }
+
+    private boolean hasWork() {
+        ClientCallStreamObserver<AppClient.ClientEdgeEvent> stream = mStream;
+        if (mInit.get() != null) {
+            return stream != null && stream.isReady();
+        }
+        if (mHolding) {
+            return false;
+        }
+        if (mHead != null) {
+            return stream != null && stream.isReady();
+        }
+        return !mQueue.isEmpty();
+    }
+
+    private void scheduleDrain() {
+        if (!mDraining.compareAndSet(false, true)) {
+            return; // The writer is already running.
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drain();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Writer failed: " + e.getMessage());
+                    } finally {
+                        mDraining.set(false);
+                        // Events added, or the stream turned ready, after drain() stopped looking.
+                        if (hasWork()) {
+                            scheduleDrain();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            mDraining.set(false);
+            Log.w(TAG, "Executor is shut down. Outbound events are not sent.");
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            boolean isInit = false;
+            AppClient.ClientEdgeEvent event = mInit.getAndSet(null);
+            if (event != null) {
+                isInit = true;
+            } else {
+                if (mHolding) {
+                    return;
+                }
+                event = mHead;
+                mHead = null;
+            }
+            if (event == null) {
+                event = mQueue.poll();
+                if (event == null) {
+                    return;
+                }
+                mCount.decrementAndGet();
+            }
+
+            Decision decision = mListener.beforeSend(event);
+            if (decision == Decision.DROP) {
+                continue;
+            }
+            if (decision == Decision.HOLD) {
+                if (isInit) {
+                    mInit.compareAndSet(null, event);
+                } else {
+                    mHead = event;
+                }
+                mHolding = true;
+                return;
+            }
+            ClientCallStreamObserver<AppClient.ClientEdgeEvent> stream = mStream;
+            if (stream == null) {
+                Log.d(TAG, "Sender does not exist. NOT Posted!");
+                continue;
+            }
+            if (!stream.isReady()) {
+                // Keep it first in line. The onReady handler starts the writer again.
+                if (isInit) {
+                    mInit.compareAndSet(null, event);
+                } else {
+                    mHead = event;
+                }
+                return;
+            }
+            synchronized (stream) {
+                stream.onNext(event);
+            }
+            Log.d(TAG, "Posted!");
+        }
+    }
+}
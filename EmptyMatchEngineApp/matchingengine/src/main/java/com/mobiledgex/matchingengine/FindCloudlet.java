@@ -20,15 +20,20 @@ package com.mobiledgex.matchingengine;
 import android.net.Network;
 import android.util.Log;
 
-import com.google.common.base.Stopwatch;
+import com.mobiledgex.matchingengine.performancemetrics.LatencyHistoryStore;
 import com.mobiledgex.matchingengine.performancemetrics.NetTest;
 import com.mobiledgex.matchingengine.performancemetrics.Site;
+import com.mobiledgex.matchingengine.performancemetrics.SiteScorer;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Callable;
 
 import distributed_match_engine.AppClient;
@@ -36,12 +41,17 @@ import distributed_match_engine.AppClient.FindCloudletRequest;
 import distributed_match_engine.Appcommon;
 import distributed_match_engine.MatchEngineApiGrpc;
 
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 
 public class FindCloudlet implements Callable {
     public static final String TAG = "FindCloudlet";
+    // A site from the last test within this ratio of the last best average is worth testing again.
+    static final double GOOD_HISTORY_RATIO = 1.25d;
+    // Geohash length of the location cell for latency history. About 4.9km x 4.9km.
+    static final int HISTORY_GEOHASH_PRECISION = 5;
 
     private MatchingEngine mMatchingEngine;
     private FindCloudletRequest mRequest;
@@ -50,6 +60,7 @@ public class FindCloudlet implements Callable {
     private long mTimeoutInMilliseconds = -1;
     private long mMaximumLatencyMs = -1;
     private MatchingEngine.FindCloudletMode mMode;
+    private Deadline mDeadline;
 
     private boolean mDoLatencyMigration = false;
 
@@ -89,6 +100,14 @@ public class FindCloudlet implements Callable {
         return true;
     }
 
+    /*!
+     * Bounds the call by a deadline shared with other calls, instead of its own timeout.
+     * \param deadline (Deadline) null to use the timeout.
+     */
+    void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
     private AppClient.FindCloudletReply.Builder createFindCloudletReplyFromBestSite(AppClient.AppInstListReply reply, Site bestSite) {
         if (bestSite != null) {
             AppClient.FindCloudletReply.Builder builder = AppClient.FindCloudletReply.newBuilder()
@@ -139,10 +158,12 @@ public class FindCloudlet implements Callable {
     }
 
     // If UDP, then ICMP must respond. TODO: Allow UDP "response"?
-    private void insertAppInstances(NetTest netTest, Network network, AppClient.AppInstListReply appInstListReply) {
-        int numSamples = Site.DEFAULT_NUM_SAMPLES;
-        if (appInstListReply != null) {
-            List<AppClient.CloudletLocation> cloudletsList = appInstListReply.getCloudletsList();
+    private void insertAppInstances(NetTest netTest, Network network, List<AppClient.CloudletLocation> cloudletsList) {
+        // Racing stops sampling losing sites early, so close contenders can use a bigger window.
+        int numSamples = mMatchingEngine.isAdaptivePerformanceTest() ?
+                NetTest.RACING_MAX_SAMPLES : Site.DEFAULT_NUM_SAMPLES;
+        String throughputPath = mMatchingEngine.getThroughputTestPath();
+        if (cloudletsList != null) {
             for (AppClient.CloudletLocation cloudletLocation : cloudletsList) {
 
                 List<AppClient.Appinstance> appInstances = cloudletLocation.getAppinstancesList();
@@ -172,12 +193,20 @@ public class FindCloudlet implements Callable {
                             int port = appPort.getPublicPort();
                             String host = appPort.getFqdnPrefix() + appInstance.getFqdn();
                             site = new Site(network, NetTest.TestType.CONNECT, numSamples, host, port);
+                            if (throughputPath != null) {
+                                site.throughputL7Path = (appPort.getTls() ? "https://" : "http://") +
+                                        host + ":" + port + throughputPath;
+                            }
                             break;
                         }
                         case L_PROTO_UDP: {
                             int port = appPort.getPublicPort();
                             String host = appPort.getFqdnPrefix() + appInstance.getFqdn();
-                            site = new Site(network, NetTest.TestType.PING, numSamples, host, port);
+                            // UDP echo needs an echo server on the AppInst. Opt in with the EdgeEvents latency test type.
+                            NetTest.TestType udpTestType = mMatchingEngine.mEdgeEventsConfig != null &&
+                                    mMatchingEngine.mEdgeEventsConfig.latencyTestType == NetTest.TestType.UDP_ECHO ?
+                                    NetTest.TestType.UDP_ECHO : NetTest.TestType.PING;
+                            site = new Site(network, udpTestType, numSamples, host, port);
                             break;
                         }
                         default:
@@ -196,30 +225,186 @@ public class FindCloudlet implements Callable {
         return;
     }
 
-    private void rankSites(NetTest netTest, boolean threaded, long timeout, Stopwatch stopwatch) {
-        if (!threaded) {
-            netTest.testSites(timeout - stopwatch.elapsed((TimeUnit.MILLISECONDS)));
+    /*!
+     * AppInst fqdns that tested well last time: the last best site, and others close to it.
+     */
+    private Set<String> goodLatencyHistory(NetTest previous) {
+        Set<String> fqdns = new HashSet<>();
+        EdgeEventsConnection edgeEventsConnection = mMatchingEngine.getEdgeEventsConnection();
+        if (edgeEventsConnection != null && edgeEventsConnection.lastConnectionDetails != null) {
+            EdgeEventsConnection.AppInstDetails appInstDetails = edgeEventsConnection.lastConnectionDetails.appInstPerformanceDetails;
+            if (appInstDetails != null && appInstDetails.lastSite != null && appInstDetails.lastSite.appInstance != null) {
+                fqdns.add(appInstDetails.lastSite.appInstance.getFqdn());
+            }
+        }
+        if (previous == null) {
+            return fqdns;
+        }
+        List<Site> sites = previous.sortedSiteList();
+        double best = Double.POSITIVE_INFINITY;
+        for (Site site : sites) {
+            if (site.hasSuccessfulTests()) {
+                best = Math.min(best, site.ewmaAverage);
+            }
+        }
+        for (Site site : sites) {
+            if (site.hasSuccessfulTests() && site.appInstance != null && site.ewmaAverage <= best * GOOD_HISTORY_RATIO) {
+                fqdns.add(site.appInstance.getFqdn());
+            }
+        }
+        return fqdns;
+    }
+
+    /*!
+     * Cloudlets to latency test. If a candidate limit is set, and the request has a location, only
+     * the nearest cloudlets and those with good latency history.
+     */
+    private List<AppClient.CloudletLocation> selectCandidates(AppClient.AppInstListReply appInstListReply, NetTest previous) {
+        int limit = mMatchingEngine.getPerformanceCandidateLimit();
+        if (limit <= 0 || !mRequest.hasGpsLocation()) {
+            return appInstListReply.getCloudletsList();
+        }
+        return CloudletCandidateSelector.select(appInstListReply.getCloudletsList(),
+                mRequest.getGpsLocation(), limit, goodLatencyHistory(previous));
+    }
+
+    /*!
+     * Ranks by the configured SiteScorer, if any, with the device state at the start of the test.
+     */
+    private void applySiteScorer(NetTest netTest, Network network) {
+        SiteScorer scorer = mMatchingEngine.getSiteScorer();
+        if (scorer == null) {
+            return;
+        }
+        netTest.setSiteScorer(scorer, scoringContext(network));
+    }
+
+    private SiteScorer.Context scoringContext(Network network) {
+        String currentFqdn = null;
+        EdgeEventsConnection edgeEventsConnection = mMatchingEngine.getEdgeEventsConnection();
+        if (edgeEventsConnection != null && edgeEventsConnection.lastConnectionDetails != null &&
+                edgeEventsConnection.lastConnectionDetails.currentCloudlet != null) {
+            currentFqdn = edgeEventsConnection.lastConnectionDetails.currentCloudlet.getFqdn();
+        }
+        boolean cellular = "cellular".equals(mMatchingEngine.getNetworkManager().getTransportName(network));
+        return new SiteScorer.Context(
+                mRequest.hasGpsLocation() ? mRequest.getGpsLocation() : null,
+                currentFqdn,
+                cellular ? DeviceInfoUtil.getSignalStrengthLevel(mMatchingEngine.mContext) : -1,
+                cellular ? network : null);
+    }
+
+    private LatencyHistoryStore.Key historyKey(Site site, String networkType, String cell) {
+        return new LatencyHistoryStore.Key(site.host, site.port, networkType, cell);
+    }
+
+    private String historyCell() {
+        if (!mRequest.hasGpsLocation()) {
+            return "";
+        }
+        return FindCloudletCache.geohash(mRequest.getGpsLocation().getLatitude(),
+                mRequest.getGpsLocation().getLongitude(), HISTORY_GEOHASH_PRECISION);
+    }
+
+    /*!
+     * Seeds sites from latency history, and tests the historically best sites first.
+     */
+    private void seedFromHistory(NetTest netTest, Network network) {
+        LatencyHistoryStore store = mMatchingEngine.getLatencyHistoryStore();
+        if (store == null) {
+            return;
+        }
+        String networkType = mMatchingEngine.getNetworkManager().getTransportName(network);
+        String cell = historyCell();
+        for (Site site : netTest.sortedSiteList()) {
+            LatencyHistoryStore.Summary summary = store.get(historyKey(site, networkType, cell));
+            if (summary != null) {
+                site.seedHistory(summary.average, summary.stddev);
+            }
+        }
+        netTest.orderByHistory();
+    }
+
+    /*!
+     * Adds this test's samples to the latency history. Memory only; written to disk later.
+     */
+    private void recordHistory(NetTest netTest, Network network) {
+        LatencyHistoryStore store = mMatchingEngine.getLatencyHistoryStore();
+        if (store == null) {
+            return;
+        }
+        String networkType = mMatchingEngine.getNetworkManager().getTransportName(network);
+        String cell = historyCell();
+        for (Site site : netTest.sortedSiteList()) {
+            double[] samples;
+            synchronized (site) {
+                samples = site.samples.clone();
+            }
+            store.record(historyKey(site, networkType, cell), samples, samples.length);
+        }
+    }
+
+    private void rankSites(NetTest netTest, boolean threaded, Deadline deadline) {
+        if (mMatchingEngine.isAdaptivePerformanceTest()) {
+            // Sequential race. Clearly slower sites are dropped after a few rounds.
+            netTest.testSitesRacing(deadline.timeRemaining(TimeUnit.MILLISECONDS));
+        } else if (!threaded) {
+            // One thread, with all TCP connect probes in flight at once.
+            netTest.testSitesOnSelector(deadline.timeRemaining(TimeUnit.MILLISECONDS));
         } else {
-            // Threaded version, which might finish faster:
-            ExecutorService executorService = null;
+            // Threaded version, which might finish faster. All sites share one deadline.
             try {
-                int np = Runtime.getRuntime().availableProcessors() - 2;
-                executorService = (np > 1) ? Executors.newFixedThreadPool(np) : mMatchingEngine.threadpool;
-
-                netTest.setExecutorService(executorService);
-                netTest.testSitesOnExecutor(timeout - stopwatch.elapsed(TimeUnit.MILLISECONDS));
+                netTest.setExecutorService(mMatchingEngine.getProbeExecutor());
+                netTest.testSitesOnExecutor(deadline.timeRemaining(TimeUnit.MILLISECONDS));
             } catch (Exception e) {
                 // Allow continuation.
                 Log.e(TAG, "Threaded Execution issue testing site performance: " + "Cause: " + e.getCause() + "Stack: " + e.getStackTrace());
             } finally {
                 netTest.setExecutorService(null);
-                if (executorService != null && !executorService.isShutdown()) {
-                    executorService.shutdown();
-                }
             }
         }
     }
 
+    /*!
+     * Starts throughput tests of sites with a download URL. They run after the latency tests,
+     * not alongside them, on purpose: the downloads share the link, and would inflate latency
+     * samples taken at the same time. Downloads run on the probe executor, which the latency
+     * tests are done with by now, so a threadpool thread waiting on them never waits on work
+     * queued behind itself. Each download is cut short to leave time for connect and first byte
+     * before the deadline.
+     */
+    private CompletableFuture<Void> startThroughputTests(NetTest netTest, Deadline deadline) {
+        if (mMatchingEngine.getThroughputTestPath() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final Site site : netTest.sortedSiteList()) {
+            if (site.throughputL7Path == null) {
+                continue;
+            }
+            futures.add(CompletableFuture.runAsync(() -> {
+                long remaining = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+                if (remaining > 0) {
+                    netTest.Throughput(site, remaining / 2);
+                }
+            }, mMatchingEngine.getProbeExecutor()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /*!
+     * Waits for throughput tests, up to the deadline. Tests still running update scores when done.
+     */
+    private void awaitThroughputTests(CompletableFuture<Void> throughputTests, Deadline deadline) {
+        try {
+            throughputTests.get(Math.max(deadline.timeRemaining(TimeUnit.MILLISECONDS), 0), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            Log.d(TAG, "Throughput tests incomplete: " + e.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private double getMarginAndDoLatencyMigrationCheck(Site bestSite) {
         // If average is better, and de-bouncing margins, allow migration.
         double margin = 0;
@@ -227,11 +412,23 @@ public class FindCloudlet implements Callable {
         double lastBestCloudletLatencyMs = 0;
         double marginReturn = 0;
 
+        // With a scorer, compare scores. The last site is scored now, with the current context.
+        NetTest netTest = mMatchingEngine.getNetTest();
+        SiteScorer scorer = netTest == null ? null : netTest.getSiteScorer();
+        double bestValue = scorer == null ? bestSite.ewmaAverage : bestSite.score;
+
         EdgeEventsConnection edgeEventsConnection = mMatchingEngine.getEdgeEventsConnection();
         if (edgeEventsConnection != null) {
             EdgeEventsConnection.AppInstDetails appInstDetails = edgeEventsConnection.lastConnectionDetails.appInstPerformanceDetails;
             if (appInstDetails != null) {
-                lastBestCloudletLatencyMs = appInstDetails.lastSite.average;
+                Site lastSite = appInstDetails.lastSite;
+                if (scorer == null) {
+                    lastBestCloudletLatencyMs = lastSite.ewmaAverage;
+                } else {
+                    synchronized (lastSite) {
+                        lastBestCloudletLatencyMs = scorer.score(lastSite, netTest.getScoringContext());
+                    }
+                }
             }
         }
 
@@ -239,7 +436,7 @@ public class FindCloudlet implements Callable {
         boolean useConfig = false;
         if (mMaximumLatencyMs > 0) {
             double max = mMaximumLatencyMs;
-            margin = (bestSite.average - max) / max;
+            margin = (bestSite.ewmaAverage - max) / max;
             if (margin < 0) { // Improvement?
                 useConfig = true;
             }
@@ -249,7 +446,7 @@ public class FindCloudlet implements Callable {
         boolean useMeasured = false;
         if (lastBestCloudletLatencyMs > 0) {
             double max = lastBestCloudletLatencyMs;
-            marginLast = (bestSite.average - max) / max;
+            marginLast = (bestValue - max) / max;
             Log.d(TAG, "Last Measured margin: " + marginLast);
             if (marginLast < 0) { // Improvement?
                 useMeasured = true;
@@ -272,49 +469,40 @@ public class FindCloudlet implements Callable {
         return marginReturn;
     }
 
-    private AppClient.FindCloudletReply FindCloudletWithMode()
+    // GetAppInstList, using the same FindCloudlet Request values.
+    private AppClient.AppInstListRequest createAppInstListRequest() {
+        AppClient.AppInstListRequest.Builder appInstListRequestBuilder = GetAppInstList.createFromFindCloudletRequest(mRequest)
+                // Do non-trivial transfer, stuffing Tag to do so.
+                .setCarrierName(mRequest.getCarrierName() == null ?
+                        mMatchingEngine.getLastRegisterClientRequest().getCarrierName() :
+                        mRequest.getCarrierName())
+                .putTags("Buffer", new String(new byte[2048]));
+        String localIP = mMatchingEngine.getLocalIpv4();
+        if (localIP != null) {
+            appInstListRequestBuilder.putTags("ip_user_equipment", localIP);
+        }
+        return appInstListRequestBuilder.build();
+    }
+
+    private AppClient.FindCloudletReply FindCloudletWithMode(Network network, Deadline deadline)
         throws InterruptedException, ExecutionException {
 
         AppClient.FindCloudletReply fcreply;
         ManagedChannel channel = null;
-        NetworkManager nm;
-
-        Stopwatch stopwatch = Stopwatch.createUnstarted();
-        long timeout = mTimeoutInMilliseconds;
-        long remainder = timeout;
 
         try {
-            nm = mMatchingEngine.getNetworkManager();
-            Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
-
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
-            stopwatch.start();
-
             if (mMode == MatchingEngine.FindCloudletMode.PROXIMITY) {
-                fcreply = stub.withDeadlineAfter(timeout, TimeUnit.MILLISECONDS)
+                fcreply = stub.withDeadline(deadline)
                         .findCloudlet(mRequest);
                 return fcreply;
             }
 
             // Remaining mode(s) is Performance:
-
-            // GetAppInstList, using the same FindCloudlet Request values.
-            AppClient.AppInstListRequest.Builder appInstListRequestBuilder = GetAppInstList.createFromFindCloudletRequest(mRequest)
-                    // Do non-trivial transfer, stuffing Tag to do so.
-                    .setCarrierName(mRequest.getCarrierName() == null ?
-                            mMatchingEngine.getLastRegisterClientRequest().getCarrierName() :
-                            mRequest.getCarrierName())
-                    .putTags("Buffer", new String(new byte[2048]));
-            String localIP = mMatchingEngine.getLocalIpv4();
-            if (localIP != null) {
-                appInstListRequestBuilder.putTags("ip_user_equipment", localIP);
-            }
-            AppClient.AppInstListRequest appInstListRequest = appInstListRequestBuilder.build();
-
-            AppClient.AppInstListReply appInstListReply = stub.withDeadlineAfter(remainder, TimeUnit.MILLISECONDS)
-                    .getAppInstList(appInstListRequest);
+            AppClient.AppInstListReply appInstListReply = stub.withDeadline(deadline)
+                    .getAppInstList(createAppInstListRequest());
 
             // Transient state handling, just return what we had before, if it fails, a new FindCloudlet is needed anyway:
             if (appInstListReply == null || appInstListReply.getStatus() != AppClient.AppInstListReply.AIStatus.AI_SUCCESS) {
@@ -323,12 +511,12 @@ public class FindCloudlet implements Callable {
                         .build();
             }
 
-            remainder = timeout - stopwatch.elapsed(TimeUnit.MILLISECONDS);
-            if (remainder <= 0) {
+            if (deadline.isExpired()) {
                 throw new StatusRuntimeException(Status.DEADLINE_EXCEEDED);
             }
 
             // Performance test the new list:
+            NetTest previous = mMatchingEngine.getNetTest();
             NetTest netTest = mMatchingEngine.clearNetTest();
 
             if (appInstListReply.getCloudletsCount() == 0) {
@@ -338,8 +526,12 @@ public class FindCloudlet implements Callable {
                         .setStatus(AppClient.FindCloudletReply.FindStatus.FIND_NOTFOUND)
                         .build();
             }
-            insertAppInstances(netTest, network, appInstListReply);
-            rankSites(netTest, mMatchingEngine.isThreadedPerformanceTest(), remainder, stopwatch);
+            insertAppInstances(netTest, network, selectCandidates(appInstListReply, previous));
+            applySiteScorer(netTest, network);
+            seedFromHistory(netTest, network);
+            rankSites(netTest, mMatchingEngine.isThreadedPerformanceTest(), deadline);
+            recordHistory(netTest, network);
+            awaitThroughputTests(startThroughputTests(netTest, deadline), deadline);
 
             // Using default comparator for selecting the current best.
             Site bestSite = netTest.bestSite();
@@ -366,11 +558,6 @@ public class FindCloudlet implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during FindCloudlet: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(timeout - stopwatch.elapsed(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
-            }
         }
 
         return fcreply;
@@ -387,11 +574,15 @@ public class FindCloudlet implements Callable {
 
         AppClient.FindCloudletReply fcReply;
 
+        // Network selection, the DME calls, latency tests, and EdgeEvents restart all share one deadline.
+        Deadline deadline = mDeadline != null ?
+                mDeadline : Deadline.after(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
         Network network = mMatchingEngine.getNetworkManager()
                 .getCellularNetworkOrWifiBlocking(
                         false,
-                        mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
-        fcReply = FindCloudletWithMode();
+                        mMatchingEngine.getMccMnc(mMatchingEngine.mContext),
+                        deadline);
+        fcReply = FindCloudletWithMode(network, deadline);
 
         // Create message channel for DME EdgeEvents:
         if (mMaximumLatencyMs != -1 && // alt mode for performance swap
@@ -402,17 +593,194 @@ public class FindCloudlet implements Callable {
         } else if (fcReply != null && fcReply.getStatus() == AppClient.FindCloudletReply.FindStatus.FIND_FOUND) {
             // accepted findCloudletReply. If you need to compare before and after, you must get a copy first.
             mMatchingEngine.setFindCloudletResponse(fcReply);
-            try {
-                mMatchingEngine.startEdgeEventsInternal(mHost, mPort, network, mMatchingEngine.mEdgeEventsConfig);
-            } catch (Exception e) {
-                // Non fatal, but print an error. No background events available.
-                Log.e(TAG, "Configured EdgeEventsConfig background tasks cannot be started. Exception was: " + e.getMessage());
-                e.printStackTrace();
-                if (mMatchingEngine.getEdgeEventsBus() != null) {
-                    mMatchingEngine.getEdgeEventsBus().post(EdgeEventsConnection.EdgeEventsError.invalidEdgeEventsSetup);
+            startEdgeEvents(mHost, mPort, network, deadline);
+        }
+        return fcReply;
+    }
+
+    /*!
+     * PERFORMANCE mode FindCloudlet that always returns by the deadline, with the best site
+     * ranked so far and the confidence of that choice. If latency tests are still running at the
+     * deadline and a listener is given, the tests continue for up to another timeout, and the
+     * listener gets the refined answer. The refined answer does not change the current cloudlet
+     * for EdgeEvents; the app decides whether to move.
+     * \param listener (AnytimeFindCloudletReply.RefinementListener) May be null.
+     * \return AnytimeFindCloudletReply
+     */
+    AnytimeFindCloudletReply callAnytime(final AnytimeFindCloudletReply.RefinementListener listener)
+            throws MissingRequestException, InterruptedException, ExecutionException {
+        if (mRequest == null) {
+            throw new MissingRequestException("Usage error: FindCloudlet does not have a request object to use MatchEngine!");
+        }
+        mMatchingEngine.ensureSessionCookie(mRequest.getSessionCookie());
+
+        Deadline deadline = mDeadline != null ?
+                mDeadline : Deadline.after(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        Network network = mMatchingEngine.getNetworkManager()
+                .getCellularNetworkOrWifiBlocking(
+                        false,
+                        mMatchingEngine.getMccMnc(mMatchingEngine.mContext),
+                        deadline);
+
+        final AppClient.AppInstListReply appInstListReply;
+        try {
+            ManagedChannel channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
+            appInstListReply = MatchEngineApiGrpc.newBlockingStub(channel)
+                    .withDeadline(deadline)
+                    .getAppInstList(createAppInstListRequest());
+        } catch (StatusRuntimeException sre) {
+            if (sre.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
+                throw sre;
+            }
+            Log.w(TAG, "No cloudlet list before the deadline.");
+            AppClient.FindCloudletReply unknown = AppClient.FindCloudletReply.newBuilder()
+                    .setStatus(AppClient.FindCloudletReply.FindStatus.FIND_UNKNOWN)
+                    .build();
+            return new AnytimeFindCloudletReply(unknown, null, 0d, true);
+        }
+
+        if (appInstListReply == null ||
+                appInstListReply.getStatus() != AppClient.AppInstListReply.AIStatus.AI_SUCCESS ||
+                appInstListReply.getCloudletsCount() == 0) {
+            AppClient.FindCloudletReply notFound = AppClient.FindCloudletReply.newBuilder()
+                    .setStatus(AppClient.FindCloudletReply.FindStatus.FIND_NOTFOUND)
+                    .build();
+            return new AnytimeFindCloudletReply(notFound, null, 0d, true);
+        }
+
+        NetTest previous = mMatchingEngine.getNetTest();
+        final NetTest netTest = mMatchingEngine.clearNetTest();
+        insertAppInstances(netTest, network, selectCandidates(appInstListReply, previous));
+        applySiteScorer(netTest, network);
+        seedFromHistory(netTest, network);
+
+        // Without a listener, nobody wants results after the deadline.
+        final Deadline testDeadline = listener == null ?
+                deadline : Deadline.after(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        final boolean threaded = mMatchingEngine.isThreadedPerformanceTest();
+        final Network testNetwork = network;
+        // Throughput tests follow the latency tests without holding a threadpool thread.
+        CompletableFuture<Void> tests = CompletableFuture.runAsync(() -> {
+            rankSites(netTest, threaded, testDeadline);
+            recordHistory(netTest, testNetwork);
+        }, mMatchingEngine.threadpool).thenCompose(v -> startThroughputTests(netTest, testDeadline));
+
+        boolean done;
+        try {
+            tests.get(Math.max(deadline.timeRemaining(TimeUnit.MILLISECONDS), 0), TimeUnit.MILLISECONDS);
+            done = true;
+        } catch (TimeoutException te) {
+            done = false;
+        }
+
+        AnytimeFindCloudletReply anytimeReply = rankedReply(netTest, appInstListReply, done);
+        AppClient.FindCloudletReply fcReply = anytimeReply.getReply();
+        if (fcReply != null && fcReply.getStatus() == AppClient.FindCloudletReply.FindStatus.FIND_FOUND) {
+            mMatchingEngine.setFindCloudletResponse(fcReply);
+            startEdgeEvents(mHost, mPort, network, deadline);
+        }
+
+        if (!done && listener != null) {
+            tests.whenComplete((v, t) -> {
+                try {
+                    listener.onRefined(rankedReply(netTest, appInstListReply, true));
+                } catch (Exception e) {
+                    Log.e(TAG, "RefinementListener failed: " + e.getMessage());
                 }
+            });
+        }
+        return anytimeReply;
+    }
+
+    private AnytimeFindCloudletReply rankedReply(NetTest netTest, AppClient.AppInstListReply appInstListReply, boolean isFinal) {
+        Site bestSite = netTest.bestSiteSoFar();
+        if (bestSite == null) {
+            AppClient.FindCloudletReply notFound = AppClient.FindCloudletReply.newBuilder()
+                    .setStatus(AppClient.FindCloudletReply.FindStatus.FIND_NOTFOUND)
+                    .build();
+            return new AnytimeFindCloudletReply(notFound, null, 0d, isFinal);
+        }
+        double confidence = netTest.confidenceOfBest(bestSite);
+        Log.i(TAG, "Best site so far: " + bestSite.host + ", avg: " + bestSite.average + ", confidence: " + confidence + ", final: " + isFinal);
+        return new AnytimeFindCloudletReply(
+                createFindCloudletReplyFromBestSite(appInstListReply, bestSite).build(),
+                bestSite, confidence, isFinal);
+    }
+
+    private void startEdgeEvents(String host, int port, Network network, Deadline deadline) {
+        startEdgeEvents(mMatchingEngine, host, port, network, deadline);
+    }
+
+    /*!
+     * (Re)starts EdgeEvents for the current cloudlet. Also used for cached FindCloudletReplies.
+     * \param host (String) DME host, or null for the last one used.
+     * \param network (Network) May be null, for EdgeEvents to pick one.
+     * \param deadline (Deadline) May be null.
+     */
+    static void startEdgeEvents(MatchingEngine matchingEngine, String host, int port, Network network, Deadline deadline) {
+        try {
+            matchingEngine.startEdgeEventsInternal(host, port, network, matchingEngine.mEdgeEventsConfig, deadline);
+        } catch (Exception e) {
+            // Non fatal, but print an error. No background events available.
+            Log.e(TAG, "Configured EdgeEventsConfig background tasks cannot be started. Exception was: " + e.getMessage());
+            e.printStackTrace();
+            if (matchingEngine.getEdgeEventsBus() != null) {
+                matchingEngine.getEdgeEventsBus().post(EdgeEventsConnection.EdgeEventsError.invalidEdgeEventsSetup);
             }
         }
-        return fcReply;
+    }
+
+    /*!
+     * Non-blocking variant of call(). PROXIMITY mode uses the gRPC future stub and holds no
+     * thread while waiting. PERFORMANCE mode has to run latency tests, so it runs call() on the
+     * MatchingEngine threadpool.
+     * \return CompletableFuture<AppClient.FindCloudletReply>
+     */
+    CompletableFuture<AppClient.FindCloudletReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<AppClient.FindCloudletReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: FindCloudlet does not have a request object to use MatchEngine!"));
+            return failed;
+        }
+
+        if (mMode == MatchingEngine.FindCloudletMode.PERFORMANCE) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, mMatchingEngine.threadpool);
+        }
+
+        try {
+            mMatchingEngine.ensureSessionCookie(mRequest.getSessionCookie());
+        } catch (IllegalArgumentException iae) {
+            CompletableFuture<AppClient.FindCloudletReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(iae);
+            return failed;
+        }
+        final FindCloudletRequest request = mRequest;
+        final String host = mHost;
+        final int port = mPort;
+
+        return AsyncDmeCall.call(mMatchingEngine, host, port, mTimeoutInMilliseconds,
+                stub -> stub.findCloudlet(request),
+                reply -> {
+                    if (reply.getStatus() != AppClient.FindCloudletReply.FindStatus.FIND_FOUND) {
+                        return;
+                    }
+                    mMatchingEngine.setFindCloudletResponse(reply);
+                    // EdgeEvents setup blocks, so keep it off the gRPC callback thread.
+                    CompletableFuture.runAsync(() -> {
+                        try {
+                            Network network = mMatchingEngine.getNetworkManager()
+                                    .getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
+                            startEdgeEvents(host, port, network, null);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Cannot start EdgeEvents after async FindCloudlet: " + e.getMessage());
+                        }
+                    }, mMatchingEngine.threadpool);
+                });
     }
 }
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import distributed_match_engine.AppClient;
+
+/*!
+ * Opt-in cache of FindCloudletReply. Entries are keyed by the geohash cell of the request's GPS
+ * location, the carrier name, the registered app (org, name, version), the session cookie, the
+ * network the request goes out on and the FindCloudletMode, and expire after a TTL. EdgeEvents
+ * that change which cloudlet is best (cloudlet state, maintenance, appInst health, cloudlet
+ * update) drop every entry. Expired entries are pruned when a reply is stored.
+ * \ingroup classes_util
+ */
+public class FindCloudletCache {
+    public static final String TAG = "FindCloudletCache";
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+    // Geohash length 6 is a cell of about 1.2km x 0.6km.
+    public static final int DEFAULT_GEOHASH_PRECISION = 6;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private final Map<List<Object>, Entry> mEntries = new HashMap<>();
+    private boolean mEnabled = false;
+    private long mTtlMs = DEFAULT_TTL_MS;
+    private int mPrecision = DEFAULT_GEOHASH_PRECISION;
+
+    private final AtomicLong mHits = new AtomicLong();
+
+    private static final class Entry {
+        final AppClient.FindCloudletReply reply;
+        final long storedAtMs;
+
+        Entry(AppClient.FindCloudletReply reply, long storedAtMs) {
+            this.reply = reply;
+            this.storedAtMs = storedAtMs;
+        }
+    }
+
+    FindCloudletCache() {
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /*!
+     * Enables or disables the cache. Disabling it drops all entries.
+     * \param enabled (boolean)
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mEntries.clear();
+        }
+    }
+
+    public synchronized long getTtlMs() {
+        return mTtlMs;
+    }
+
+    /*!
+     * \param ttlMs (long) How long a reply is reused. If <= 0, uses default.
+     */
+    public synchronized void setTtlMs(long ttlMs) {
+        mTtlMs = ttlMs <= 0 ? DEFAULT_TTL_MS : ttlMs;
+    }
+
+    public synchronized int getGeohashPrecision() {
+        return mPrecision;
+    }
+
+    /*!
+     * Sets the size of the location cell. Replies are shared between requests in the same cell.
+     * Changing it drops all entries.
+     * \param precision (int) geohash length, 1 to 12.
+     */
+    public synchronized void setGeohashPrecision(int precision) {
+        if (precision < 1 || precision > 12) {
+            throw new IllegalArgumentException("Geohash precision must be from 1 to 12.");
+        }
+        mPrecision = precision;
+        mEntries.clear();
+    }
+
+    /*!
+     * Standard geohash of a location.
+     * \param latitude (double)
+     * \param longitude (double)
+     * \param precision (int) number of characters.
+     * \return String
+     */
+    static String geohash(double latitude, double longitude, int precision) {
+        double[] lat = {-90d, 90d};
+        double[] lon = {-180d, 180d};
+        StringBuilder sb = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (sb.length() < precision) {
+            double[] range = evenBit ? lon : lat;
+            double value = evenBit ? longitude : latitude;
+            double mid = (range[0] + range[1]) / 2d;
+            if (value >= mid) {
+                ch = (ch << 1) | 1;
+                range[0] = mid;
+            } else {
+                ch = ch << 1;
+                range[1] = mid;
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                sb.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    /*!
+     * Cache key for a request. Take it once per call, and use it for both get() and put().
+     * \param request (FindCloudletRequest)
+     * \param registration (RegisterClientRequest) current registration.
+     * \param sessionCookie (String) current session cookie.
+     * \param network (Network) network the request goes out on. May be null.
+     * \param mode (FindCloudletMode)
+     * \return List<Object> cache key, or null if disabled, or the request cannot be cached.
+     */
+    synchronized List<Object> key(AppClient.FindCloudletRequest request,
+                                  AppClient.RegisterClientRequest registration,
+                                  String sessionCookie,
+                                  Network network,
+                                  MatchingEngine.FindCloudletMode mode) {
+        if (!mEnabled || request == null || !request.hasGpsLocation() || registration == null || sessionCookie == null) {
+            return null;
+        }
+        String cell = geohash(request.getGpsLocation().getLatitude(), request.getGpsLocation().getLongitude(), mPrecision);
+        return Arrays.<Object>asList(cell, request.getCarrierName(),
+                registration.getOrgName(), registration.getAppName(), registration.getAppVers(),
+                sessionCookie, network, mode);
+    }
+
+    /*!
+     * \param key (List<Object>) from key(). May be null.
+     * \return FindCloudletReply cached reply, or null if disabled, missing or expired.
+     */
+    synchronized AppClient.FindCloudletReply get(List<Object> key) {
+        if (!mEnabled || key == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.storedAtMs >= mTtlMs) {
+            mEntries.remove(key);
+            return null;
+        }
+        mHits.incrementAndGet();
+        Log.d(TAG, "FindCloudletReply cache hit for cell: " + key.get(0));
+        return entry.reply;
+    }
+
+    /*!
+     * Stores a reply, and drops expired entries. Only FIND_FOUND replies are cached.
+     * \param key (List<Object>) from key(), taken before the call. May be null.
+     * \param reply (FindCloudletReply)
+     */
+    synchronized void put(List<Object> key, AppClient.FindCloudletReply reply) {
+        if (!mEnabled || key == null || reply == null ||
+                reply.getStatus() != AppClient.FindCloudletReply.FindStatus.FIND_FOUND) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().storedAtMs >= mTtlMs) {
+                it.remove();
+            }
+        }
+        mEntries.put(key, new Entry(reply, now));
+    }
+
+    /*!
+     * Drops every cached reply.
+     */
+    public synchronized void invalidateAll() {
+        if (!mEntries.isEmpty()) {
+            Log.d(TAG, "Dropping " + mEntries.size() + " cached FindCloudletReply entries.");
+        }
+        mEntries.clear();
+    }
+
+    /*!
+     * \return true if this server event means cached replies may no longer be the best cloudlet.
+     */
+    static boolean invalidatedBy(AppClient.ServerEdgeEvent.ServerEventType eventType) {
+        switch (eventType) {
+            case EVENT_CLOUDLET_STATE:
+            case EVENT_CLOUDLET_MAINTENANCE:
+            case EVENT_APPINST_HEALTH:
+            case EVENT_CLOUDLET_UPDATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /*!
+     * \return long number of findCloudlet calls answered from the cache.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+}
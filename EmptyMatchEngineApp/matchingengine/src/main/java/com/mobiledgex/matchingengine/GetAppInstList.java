@@ -21,6 +21,7 @@ import android.net.Network;
 import android.util.Log;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -106,7 +107,7 @@ public class GetAppInstList implements Callable {
             nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
@@ -114,11 +115,6 @@ public class GetAppInstList implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during GetAppInstList: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
         mRequest = null;
 
@@ -130,4 +126,24 @@ public class GetAppInstList implements Callable {
 
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(), using the gRPC future stub. No thread waits on the reply.
+     * \return CompletableFuture<AppInstListReply>
+     */
+    CompletableFuture<AppInstListReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<AppInstListReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: GetAppInstList does not have a request object!"));
+            return failed;
+        }
+        final AppInstListRequest request = mRequest;
+        mRequest = null;
+
+        return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                stub -> stub.getAppInstList(request),
+                reply -> {
+                    Log.d(TAG, "Version of AppInstListReply: " + reply.getVer());
+                });
+    }
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.net.Network;
+import android.util.Log;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/*!
+ * One shared OkHttpClient per Network, each with its own keep-alive connection pool, so HTTP
+ * requests on the same network reuse connections instead of paying for a new connect and TLS
+ * handshake each time. A network's pool is dropped when that network changes or is lost.
+ *
+ * Clients are shared: to change timeouts for one use, clone() the client first. Clones share the
+ * connection pool.
+ * \ingroup classes_util
+ */
+public class HttpClientCache implements NetworkManager.NetworkChangeListener {
+    public static final String TAG = "HttpClientCache";
+    public static final int MAX_IDLE_CONNECTIONS = 5;
+    public static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    private static final HttpClientCache sInstance = new HttpClientCache();
+
+    private final ConcurrentHashMap<Network, OkHttpClient> mClients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Network, OkHttpClient> mUnpooledClients = new ConcurrentHashMap<>();
+    private final AtomicBoolean mWatching = new AtomicBoolean(false);
+
+    private HttpClientCache() {
+    }
+
+    public static HttpClientCache getInstance() {
+        return sInstance;
+    }
+
+    /*!
+     * Drops pools when networks change. Once per process is enough.
+     */
+    void watch(NetworkManager networkManager) {
+        if (mWatching.compareAndSet(false, true)) {
+            networkManager.addNetworkChangeListener(this);
+        }
+    }
+
+    /*!
+     * \param network (Network)
+     * \return OkHttpClient bound to the network, with a keep-alive connection pool. Null if there is no network, or no SSL.
+     */
+    public OkHttpClient getClient(Network network) {
+        if (network == null) {
+            return null;
+        }
+        OkHttpClient client = mClients.get(network);
+        if (client != null) {
+            return client;
+        }
+        client = createClient(network, new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS));
+        if (client == null) {
+            return null;
+        }
+        OkHttpClient existing = mClients.putIfAbsent(network, client);
+        return existing != null ? existing : client;
+    }
+
+    /*!
+     * Client that never reuses a connection, for timing a full connect, TLS handshake and request.
+     * \param network (Network)
+     * \return OkHttpClient, or null if there is no network, or no SSL.
+     */
+    public OkHttpClient getUnpooledClient(Network network) {
+        if (network == null) {
+            return null;
+        }
+        OkHttpClient client = mUnpooledClients.get(network);
+        if (client != null) {
+            return client;
+        }
+        client = createClient(network, new ConnectionPool(0, 1));
+        if (client == null) {
+            return null;
+        }
+        OkHttpClient existing = mUnpooledClients.putIfAbsent(network, client);
+        return existing != null ? existing : client;
+    }
+
+    private OkHttpClient createClient(Network network, ConnectionPool connectionPool) {
+        SSLSocketFactory sslSocketFactory = (MobiledgeXSSLSocketFactory) MobiledgeXSSLSocketFactory.getDefault(network);
+        if (sslSocketFactory == null) {
+            return null;
+        }
+        OkHttpClient client = new OkHttpClient();
+        client.setSocketFactory(network.getSocketFactory());
+        client.setSslSocketFactory(sslSocketFactory);
+        client.setConnectionPool(connectionPool);
+        return client;
+    }
+
+    /*!
+     * Closes idle connections on a network, and drops its clients.
+     * \param network (Network)
+     */
+    public void evict(Network network) {
+        if (network == null) {
+            return;
+        }
+        OkHttpClient client = mClients.remove(network);
+        mUnpooledClients.remove(network);
+        if (client != null) {
+            client.getConnectionPool().evictAll();
+            Log.d(TAG, "Dropped HTTP connection pool for network: " + network);
+        }
+    }
+
+    public void evictAll() {
+        for (Network network : mClients.keySet()) {
+            evict(network);
+        }
+        mUnpooledClients.clear();
+    }
+
+    @Override
+    public void onNetworkChanged(Network network) {
+        evict(network);
+    }
+
+    @Override
+    public void onSubscriptionsChanged() {
+        // Pools are per Network, which a SIM change does not reuse.
+    }
+}
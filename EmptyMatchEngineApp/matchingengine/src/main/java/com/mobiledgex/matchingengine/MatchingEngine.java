@@ -45,6 +45,8 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +57,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
@@ -84,8 +91,10 @@ import distributed_match_engine.AppClient.DynamicLocGroupReply;
 import distributed_match_engine.Appcommon;
 import distributed_match_engine.LocOuterClass;
 import distributed_match_engine.LocOuterClass.Loc;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.okhttp.OkHttpChannelBuilder;
 
@@ -95,7 +104,9 @@ import android.util.Log;
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
 import com.mobiledgex.matchingengine.edgeeventsconfig.EdgeEventsConfig;
+import com.mobiledgex.matchingengine.performancemetrics.LatencyHistoryStore;
 import com.mobiledgex.matchingengine.performancemetrics.NetTest;
+import com.mobiledgex.matchingengine.performancemetrics.SiteScorer;
 
 import static android.content.Context.TELEPHONY_SUBSCRIPTION_SERVICE;
 import static android.content.Context.WIFI_SERVICE;
@@ -119,6 +130,34 @@ public class MatchingEngine {
     final ExecutorService threadpool;
     private boolean externalExecutor = false;
 
+    // Shared, bounded pool for NetTest latency probes. Created on first use.
+    private ExecutorService mProbeExecutor;
+    public static final int MAX_PROBE_THREADS = 8;
+
+    // Identical RegisterClient and FindCloudlet calls in flight at the same time share one DME call.
+    private final SingleFlight<RegisterClientReply> mRegisterClientFlights = new SingleFlight<>();
+    private final SingleFlight<FindCloudletReply> mFindCloudletFlights = new SingleFlight<>();
+    // Opt-in saved RegisterClient session, reused across process restarts.
+    private SessionStore mSessionStore;
+    private boolean sessionPersistenceEnabled = false;
+    private ScheduledFuture<?> mSessionRenewal;
+    // Opt-in on-disk latency history, to warm start PERFORMANCE mode ranking. Created on first use.
+    private LatencyHistoryStore mLatencyHistoryStore;
+    private boolean latencyHistoryEnabled = false;
+    // Opt-in FindCloudletReply cache, keyed by location cell, carrier and app.
+    private final FindCloudletCache mFindCloudletCache = new FindCloudletCache();
+
+    // One scheduler thread for all EdgeEvents interval tasks. Created on first use.
+    private ScheduledThreadPoolExecutor mEdgeEventsScheduler;
+
+    // Reused DME gRPC channels, keyed by host, port, network and SSL mode.
+    private final ChannelPool mChannelPool;
+    // DME hostname lookups, keyed by mcc-mnc and network.
+    private final DmeDnsCache mDmeDnsCache;
+    // Races carrier and wifi DME hosts, when enabled.
+    private final DmeHostRacer mDmeHostRacer;
+    private boolean dmeHostRacingEnabled = false;
+
     // State info for engine
     String mSessionCookie; // TODO: Session Map lookup for multiple Edge Apps.
     private String mTokenServerURI;
@@ -153,6 +192,10 @@ public class MatchingEngine {
     Context mContext;
     private NetTest mNetTest;
     private boolean threadedPerformanceTest = false;
+    private boolean adaptivePerformanceTest = false;
+    private int performanceCandidateLimit = 0;
+    private SiteScorer siteScorer = null;
+    private String throughputTestPath = null;
 
 
     private EdgeEventsConnection mEdgeEventsConnection;
@@ -172,6 +215,12 @@ public class MatchingEngine {
         ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
         mNetworkManager = NetworkManager.getInstance(connectivityManager, getSubscriptionManager(context));
         mAppConnectionManager = new AppConnectionManager(mNetworkManager, threadpool);
+        mChannelPool = new ChannelPool(this, connectivityManager);
+        mDmeDnsCache = new DmeDnsCache(threadpool);
+        mNetworkManager.addNetworkChangeListener(mDmeDnsCache);
+        mDmeHostRacer = new DmeHostRacer(threadpool, mDmeDnsCache);
+        mNetworkManager.addNetworkChangeListener(mDmeHostRacer);
+        HttpClientCache.getInstance().watch(mNetworkManager);
         mContext = context;
         mNetTest = new NetTest();
         mEdgeEventBus = new AsyncEventBus(threadpool);
@@ -189,6 +238,12 @@ public class MatchingEngine {
         ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
         mNetworkManager = NetworkManager.getInstance(connectivityManager, getSubscriptionManager(context), threadpool);
         mAppConnectionManager = new AppConnectionManager(mNetworkManager, threadpool);
+        mChannelPool = new ChannelPool(this, connectivityManager);
+        mDmeDnsCache = new DmeDnsCache(threadpool);
+        mNetworkManager.addNetworkChangeListener(mDmeDnsCache);
+        mDmeHostRacer = new DmeHostRacer(threadpool, mDmeDnsCache);
+        mNetworkManager.addNetworkChangeListener(mDmeHostRacer);
+        HttpClientCache.getInstance().watch(mNetworkManager);
         mContext = context;
         mNetTest = new NetTest();
         mEdgeEventBus = new AsyncEventBus(executorService);
@@ -316,6 +371,13 @@ public class MatchingEngine {
     }
 
     synchronized boolean startEdgeEventsInternal(String host, int port, Network network, EdgeEventsConfig edgeEventsConfig) {
+        return startEdgeEventsInternal(host, port, network, edgeEventsConfig, null);
+    }
+
+    /*!
+     * As startEdgeEventsInternal, but closing a running EdgeEvents stream waits no later than the deadline.
+     */
+    synchronized boolean startEdgeEventsInternal(String host, int port, Network network, EdgeEventsConfig edgeEventsConfig, Deadline deadline) {
         if (edgeEventsConfig == null) {
             Log.e(TAG, "No config for EdgeEvents to use. Creating a do nothing config for event monitoring only.");
             edgeEventsConfig = createDefaultEdgeEventsConfig();
@@ -328,7 +390,7 @@ public class MatchingEngine {
 
         if (mEdgeEventsConnection.channelStatus != EdgeEventsConnection.ChannelStatus.closed) {
             stopEdgeEvents();
-            mEdgeEventsConnection.closeInternal(); // Restartable close.
+            mEdgeEventsConnection.closeInternal(deadline); // Restartable close.
         }
         try {
             return startEdgeEvents(host, port, network, edgeEventsConfig);
@@ -532,11 +594,36 @@ public class MatchingEngine {
         }
         mEdgeEventsConnection = null;
         mEdgeEventBus = null;
+        mChannelPool.shutdown();
+        if (mNetworkManager != null) {
+            mNetworkManager.removeNetworkChangeListener(mDmeDnsCache);
+            mNetworkManager.removeNetworkChangeListener(mDmeHostRacer);
+        }
+        mDmeDnsCache.invalidateAll();
+        mFindCloudletCache.invalidateAll();
+        if (mLatencyHistoryStore != null) {
+            // Queued before the threadpool shuts down, which still runs queued tasks.
+            mLatencyHistoryStore.flush();
+        }
 
         // Kill ExecutorService.
         if (!externalExecutor && threadpool != null) {
             threadpool.shutdown();
         }
+        if (mProbeExecutor != null) {
+            mProbeExecutor.shutdownNow();
+            mProbeExecutor = null;
+        }
+        synchronized (this) {
+            if (mSessionRenewal != null) {
+                mSessionRenewal.cancel(false);
+                mSessionRenewal = null;
+            }
+            if (mEdgeEventsScheduler != null) {
+                mEdgeEventsScheduler.shutdownNow();
+                mEdgeEventsScheduler = null;
+            }
+        }
 
         mSessionCookie = null;
         mTokenServerToken = null;
@@ -611,6 +698,32 @@ public class MatchingEngine {
         useOnlyWifi = enabled;
     }
 
+    /*!
+     * Checks if DME host racing is enabled.
+     * \return boolean
+     * \ingroup functions_dmeutils
+     */
+    public boolean isDmeHostRacingEnabled() {
+        return dmeHostRacingEnabled;
+    }
+
+    /*!
+     * Sets DME host racing.
+     * If true, generateDmeHostAddress() connects to the carrier DME and the wifi DME at the same
+     * time, preferring the carrier DME, and uses the first one that answers. The winner is
+     * remembered until the network changes. A carrier DME with no DNS entry then falls back to
+     * the wifi DME instead of throwing DmeDnsException.
+     * Default is false.
+     * \param enabled (boolean)
+     * \ingroup functions_dmeutils
+     */
+    synchronized public void setDmeHostRacingEnabled(boolean enabled) {
+        dmeHostRacingEnabled = enabled;
+        if (!enabled) {
+            mDmeHostRacer.clear();
+        }
+    }
+
     private SubscriptionManager getSubscriptionManager(Context context) {
         return (SubscriptionManager) context.getSystemService(TELEPHONY_SUBSCRIPTION_SERVICE);
     }
@@ -865,9 +978,19 @@ public class MatchingEngine {
      * This will generate the dme host name based on GetMccMnc() -> "mcc-mnc.dme.mobiledgex.net".
      * If GetMccMnc fails or returns null, this will return a fallback dme host: "wifi.dme.mobiledgex.net"(this is the EU + GDDT DME).
      * This function is used by any DME APIs calls where no host and port overloads are provided.
+     * The DNS lookup is cached per mcc-mnc and network, and refreshed in the background.
      * \ingroup functions_dmeutils
      */
     public String generateDmeHostAddress() throws DmeDnsException {
+        return generateDmeHostAddress(null);
+    }
+
+    /*!
+     * generateDmeHostAddress, with the DNS lookup (or DME host race) giving up at the deadline.
+     * \param deadline (Deadline) May be null.
+     * \return String DME hostname.
+     */
+    String generateDmeHostAddress(Deadline deadline) throws DmeDnsException {
 
         if (useOnlyWifi) {
             return wifiOnlyDmeHost;
@@ -894,16 +1017,20 @@ public class MatchingEngine {
 
         String potentialDmeHost = mcc + "-" + mnc + "." + baseDmeHost;
 
-        InetAddress[] addresses;
-        try {
-            addresses = InetAddress.getAllByName(potentialDmeHost);
-        } catch (UnknownHostException uhe) {
-            throw new DmeDnsException(("Could not find mcc-mnc.dme.mobiledgex.net DME server: " + potentialDmeHost), uhe);
+        Network network = mNetworkManager != null ? mNetworkManager.getActiveNetwork() : null;
+        if (dmeHostRacingEnabled) {
+            long timeoutMs = mNetworkManager != null ? mNetworkManager.getTimeout() : 10000;
+            if (deadline != null) {
+                timeoutMs = Math.min(timeoutMs, Math.max(deadline.timeRemaining(TimeUnit.MILLISECONDS), 1));
+            }
+            return mDmeHostRacer.race(
+                    new String[] {mccmnc, WIFIHOST},
+                    new String[] {potentialDmeHost, wifiOnlyDmeHost},
+                    getPort(), network, timeoutMs);
         }
 
-        if (addresses.length < 1) {
-            throw new DmeDnsException(("No IP address for mcc-mnc.dme.mobiledgex.net DME server: " + potentialDmeHost));
-        }
+        // Cached per mcc-mnc and network. Throws DmeDnsException if there is no DNS entry.
+        mDmeDnsCache.resolve(mccmnc, potentialDmeHost, network, deadline);
 
         // Return the constructed DME hostname.
         return potentialDmeHost;
@@ -1389,7 +1516,11 @@ public class MatchingEngine {
     public RegisterClientReply registerClient(RegisterClientRequest request,
                                               long timeoutInMilliseconds)
             throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
-        return registerClient(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
+        RegisterClientReply restored = restoreSession(request, null, getPort());
+        if (restored != null) {
+            return restored;
+        }
+        return registerClientOnDme(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, null, true);
     }
 
     /*!
@@ -1411,20 +1542,54 @@ public class MatchingEngine {
                                               String host, int port,
                                               long timeoutInMilliseconds)
             throws StatusRuntimeException, InterruptedException, ExecutionException {
-        RegisterClient registerClient = new RegisterClient(this); // Instanced, so just add host, port as field.
+        RegisterClientReply restored = restoreSession(request, host, port);
+        if (restored != null) {
+            return restored;
+        }
+        return registerClientOnDme(request, host, port, timeoutInMilliseconds, null, false);
+    }
+
+    // Always asks the DME, even if there is a saved session. The deadline may be null.
+    // defaultHost is true if the host came from generateDmeHostAddress(), not the app.
+    private RegisterClientReply registerClientOnDme(RegisterClientRequest request,
+                                                    String host, int port,
+                                                    long timeoutInMilliseconds,
+                                                    Deadline deadline,
+                                                    boolean defaultHost)
+            throws StatusRuntimeException, InterruptedException, ExecutionException {
+        final RegisterClient registerClient = new RegisterClient(this); // Instanced, so just add host, port as field.
         registerClient.setRequest(request, host, port, timeoutInMilliseconds);
+        registerClient.setDeadline(deadline);
 
         Log.i(TAG, "DME host is: " + host);
-        return registerClient.call();
+        RegisterClientReply reply = mRegisterClientFlights.call(flightKey(request, host, port),
+                flightWaitMs(timeoutInMilliseconds, deadline), new Callable<RegisterClientReply>() {
+            @Override
+            public RegisterClientReply call() throws Exception {
+                return registerClient.call();
+            }
+        });
+        saveSession(request, reply, host, port, defaultHost);
+        return reply;
     }
 
     /*!
      * \ingroup functions_dmeapis
      */
-    public Future<RegisterClientReply> registerClientFuture(RegisterClientRequest request,
-                                                            long timeoutInMilliseconds)
+    public Future<RegisterClientReply> registerClientFuture(final RegisterClientRequest request,
+                                                            final long timeoutInMilliseconds)
             throws DmeDnsException {
-        return registerClientFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
+        RegisterClientReply restored = restoreSession(request, null, getPort());
+        if (restored != null) {
+            return CompletableFuture.completedFuture(restored);
+        }
+        // The DME host is resolved on the threadpool, not the calling thread.
+        return submit(new Callable<RegisterClientReply>() {
+            @Override
+            public RegisterClientReply call() throws Exception {
+                return registerClientOnDme(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, null, true);
+            }
+        });
     }
 
     /*!
@@ -1436,12 +1601,15 @@ public class MatchingEngine {
      * \return Future<RegisterClientReply>
      * \ingroup functions_dmeapis
      */
-    public Future<RegisterClientReply> registerClientFuture(RegisterClientRequest request,
-                                                            String host, int port,
-                                                            long timeoutInMilliseconds) {
-        RegisterClient registerClient = new RegisterClient(this);
-        registerClient.setRequest(request, host, port, timeoutInMilliseconds);
-        return submit(registerClient);
+    public Future<RegisterClientReply> registerClientFuture(final RegisterClientRequest request,
+                                                            final String host, final int port,
+                                                            final long timeoutInMilliseconds) {
+        return submit(new Callable<RegisterClientReply>() {
+            @Override
+            public RegisterClientReply call() throws Exception {
+                return registerClient(request, host, port, timeoutInMilliseconds);
+            }
+        });
     }
 
     /*!
@@ -1459,7 +1627,7 @@ public class MatchingEngine {
     public FindCloudletReply findCloudlet(FindCloudletRequest request,
                                           long timeoutInMilliseconds)
             throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
-        return findCloudlet(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, FindCloudletMode.PROXIMITY, -1);
+        return findCloudletOnDefaultHost(request, timeoutInMilliseconds, FindCloudletMode.PROXIMITY, null);
     }
 
     /*!
@@ -1478,7 +1646,7 @@ public class MatchingEngine {
     public FindCloudletReply findCloudlet(FindCloudletRequest request,
                                           long timeoutInMilliseconds, FindCloudletMode mode)
             throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
-        return findCloudlet(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, mode, -1);
+        return findCloudletOnDefaultHost(request, timeoutInMilliseconds, mode, null);
     }
 
     /*!
@@ -1498,13 +1666,7 @@ public class MatchingEngine {
                                         String host, int port,
                                         long timeoutInMilliseconds)
     throws StatusRuntimeException, InterruptedException, ExecutionException {
-      FindCloudlet findCloudlet = new FindCloudlet(this);
-
-      // This also needs some info for MEL.
-      findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, FindCloudletMode.PROXIMITY, -1);
-
-      Log.i(TAG, "DME host is: " + host);
-      return findCloudlet.call();
+      return findCloudlet(request, host, port, timeoutInMilliseconds, FindCloudletMode.PROXIMITY, -1);
   }
 
     /*!
@@ -1524,13 +1686,7 @@ public class MatchingEngine {
                                           long timeoutInMilliseconds,
                                           FindCloudletMode mode)
             throws StatusRuntimeException, InterruptedException, ExecutionException {
-        FindCloudlet findCloudlet = new FindCloudlet(this);
-
-        // This also needs some info for MEL.
-        findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, mode, -1);
-
-        Log.i(TAG, "DME host is: " + host);
-        return findCloudlet.call();
+        return findCloudlet(request, host, port, timeoutInMilliseconds, mode, -1);
     }
 
     /*!
@@ -1552,13 +1708,127 @@ public class MatchingEngine {
                                           FindCloudletMode mode,
                                           long maxLatencyMs)
             throws StatusRuntimeException, InterruptedException, ExecutionException {
-        FindCloudlet findCloudlet = new FindCloudlet(this);
+        return findCloudlet(request, host, port, timeoutInMilliseconds, mode, maxLatencyMs, null);
+    }
+
+    // The deadline, if not null, bounds the whole call, including network selection, latency tests and EdgeEvents restart.
+    private FindCloudletReply findCloudlet(FindCloudletRequest request,
+                                           String host, int port,
+                                           long timeoutInMilliseconds,
+                                           FindCloudletMode mode,
+                                           long maxLatencyMs,
+                                           Deadline deadline)
+            throws StatusRuntimeException, InterruptedException, ExecutionException {
+        // A max latency check (EdgeEvents latency trigger) always wants a fresh answer.
+        // The one FindCloudletReply cache lookup for blocking and Future calls to a given host.
+        final List<Object> cacheKey = maxLatencyMs < 0 ? findCloudletCacheKey(request, mode) : null;
+        FindCloudletReply cached = mFindCloudletCache.get(cacheKey);
+        if (cached != null) {
+            return useCachedFindCloudletReply(cached, host, port, deadline);
+        }
+        return findCloudletOnDme(request, host, port, timeoutInMilliseconds, mode, maxLatencyMs, deadline, cacheKey);
+    }
+
+    // findCloudlet on the default DME host. The DME host is only resolved on a cache miss, so a
+    // hit skips DNS and the network completely.
+    private FindCloudletReply findCloudletOnDefaultHost(FindCloudletRequest request,
+                                                        long timeoutInMilliseconds,
+                                                        FindCloudletMode mode,
+                                                        Deadline deadline)
+            throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
+        final List<Object> cacheKey = findCloudletCacheKey(request, mode);
+        FindCloudletReply cached = mFindCloudletCache.get(cacheKey);
+        if (cached != null) {
+            return useCachedFindCloudletReply(cached, null, getPort(), deadline);
+        }
+        if (deadline == null) {
+            return findCloudletOnDme(request, generateDmeHostAddress(), getPort(),
+                    timeoutInMilliseconds, mode, -1, null, cacheKey);
+        }
+        String host = generateDmeHostAddress(deadline);
+        return findCloudletOnDme(request, host, getPort(), remainingMs(deadline), mode, -1, deadline, cacheKey);
+    }
+
+    // The FindCloudlet DME call, after a cache miss. Identical calls in flight are merged.
+    private FindCloudletReply findCloudletOnDme(FindCloudletRequest request,
+                                                String host, int port,
+                                                long timeoutInMilliseconds,
+                                                FindCloudletMode mode,
+                                                long maxLatencyMs,
+                                                Deadline deadline,
+                                                final List<Object> cacheKey)
+            throws StatusRuntimeException, InterruptedException, ExecutionException {
+        final FindCloudlet findCloudlet = new FindCloudlet(this);
 
         // This also needs some info for MEL.
         findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, mode, maxLatencyMs);
+        findCloudlet.setDeadline(deadline);
 
         Log.i(TAG, "DME host is: " + host);
-        return findCloudlet.call();
+        FindCloudletReply reply = mFindCloudletFlights.call(flightKey(request, host, port, mode, maxLatencyMs),
+                flightWaitMs(timeoutInMilliseconds, deadline), new Callable<FindCloudletReply>() {
+            @Override
+            public FindCloudletReply call() throws Exception {
+                return findCloudlet.call();
+            }
+        });
+        mFindCloudletCache.put(cacheKey, reply);
+        return reply;
+    }
+
+    /*!
+     * PERFORMANCE mode findCloudlet that always returns by the deadline. Returns the best-ranked
+     * cloudlet so far, and the confidence of that choice. If latency tests are still running at
+     * the deadline, the listener gets a refined answer when they finish. The app can connect at
+     * once, and move only if the refined answer is clearly better.
+     * \param request (FindCloudletRequest)
+     * \param timeoutInMilliseconds (long) Deadline, including DME host lookup.
+     * \param listener (AnytimeFindCloudletReply.RefinementListener) May be null.
+     * \return AnytimeFindCloudletReply
+     * \exception StatusRuntimeException
+     * \exception InterruptedException
+     * \exception ExecutionException
+     * \ingroup functions_dmeapis
+     */
+    public AnytimeFindCloudletReply findCloudletAnytime(FindCloudletRequest request,
+                                                        long timeoutInMilliseconds,
+                                                        AnytimeFindCloudletReply.RefinementListener listener)
+            throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
+        Deadline deadline = Deadline.after(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        String host = generateDmeHostAddress(deadline);
+        return findCloudletAnytime(request, host, getPort(), deadline, listener);
+    }
+
+    /*!
+     * findCloudletAnytime with DME host and port. Only use for testing.
+     * \param request (FindCloudletRequest)
+     * \param host (String): Distributed Matching Engine hostname
+     * \param port (int): Distributed Matching Engine port
+     * \param timeoutInMilliseconds (long)
+     * \param listener (AnytimeFindCloudletReply.RefinementListener) May be null.
+     * \return AnytimeFindCloudletReply
+     * \ingroup functions_dmeapis
+     */
+    public AnytimeFindCloudletReply findCloudletAnytime(FindCloudletRequest request,
+                                                        String host, int port,
+                                                        long timeoutInMilliseconds,
+                                                        AnytimeFindCloudletReply.RefinementListener listener)
+            throws StatusRuntimeException, InterruptedException, ExecutionException {
+        return findCloudletAnytime(request, host, port,
+                Deadline.after(timeoutInMilliseconds, TimeUnit.MILLISECONDS), listener);
+    }
+
+    private AnytimeFindCloudletReply findCloudletAnytime(FindCloudletRequest request,
+                                                         String host, int port,
+                                                         Deadline deadline,
+                                                         AnytimeFindCloudletReply.RefinementListener listener)
+            throws StatusRuntimeException, InterruptedException, ExecutionException {
+        FindCloudlet findCloudlet = new FindCloudlet(this);
+        findCloudlet.setRequest(request, host, port, remainingMs(deadline), FindCloudletMode.PERFORMANCE, -1);
+        findCloudlet.setDeadline(deadline);
+
+        Log.i(TAG, "DME host is: " + host);
+        return findCloudlet.callAnytime(listener);
     }
 
     /*!
@@ -1571,7 +1841,7 @@ public class MatchingEngine {
     public Future<FindCloudletReply> findCloudletFuture(FindCloudletRequest request,
                                           long timeoutInMilliseconds)
             throws DmeDnsException {
-        return findCloudletFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, FindCloudletMode.PROXIMITY);
+        return findCloudletFuture(request, timeoutInMilliseconds, FindCloudletMode.PROXIMITY);
     }
 
     /*!
@@ -1582,11 +1852,16 @@ public class MatchingEngine {
      * \return Future<FindCloudletReply>: cloudlet URI Future.
      * \ingroup functions_dmeapis
    */
-    public Future<FindCloudletReply> findCloudletFuture(FindCloudletRequest request,
-                                                        long timeoutInMilliseconds,
-                                                        FindCloudletMode mode)
+    public Future<FindCloudletReply> findCloudletFuture(final FindCloudletRequest request,
+                                                        final long timeoutInMilliseconds,
+                                                        final FindCloudletMode mode)
         throws DmeDnsException {
-            return findCloudletFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds, mode);
+        return submit(new Callable<FindCloudletReply>() {
+            @Override
+            public FindCloudletReply call() throws Exception {
+                return findCloudletOnDefaultHost(request, timeoutInMilliseconds, mode, null);
+            }
+        });
     }
 
     /*!
@@ -1601,9 +1876,7 @@ public class MatchingEngine {
     public Future<FindCloudletReply> findCloudletFuture(FindCloudletRequest request,
                                                         String host, int port,
                                                         long timeoutInMilliseconds) {
-      FindCloudlet findCloudlet = new FindCloudlet(this);
-      findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, FindCloudletMode.PROXIMITY, -1);
-      return submit(findCloudlet);
+      return findCloudletFuture(request, host, port, timeoutInMilliseconds, FindCloudletMode.PROXIMITY);
     }
 
     /*!
@@ -1616,13 +1889,16 @@ public class MatchingEngine {
      * \return Future<FindCloudletReply>: cloudlet URI Future.
      * \ingroup functions_dmeapis
    */
-    public Future<FindCloudletReply> findCloudletFuture(FindCloudletRequest request,
-                                                        String host, int port,
-                                                        long timeoutInMilliseconds,
-                                                        FindCloudletMode mode) {
-        FindCloudlet findCloudlet = new FindCloudlet(this);
-        findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, mode, -1);
-        return submit(findCloudlet);
+    public Future<FindCloudletReply> findCloudletFuture(final FindCloudletRequest request,
+                                                        final String host, final int port,
+                                                        final long timeoutInMilliseconds,
+                                                        final FindCloudletMode mode) {
+        return submit(new Callable<FindCloudletReply>() {
+            @Override
+            public FindCloudletReply call() throws Exception {
+                return findCloudlet(request, host, port, timeoutInMilliseconds, mode, -1);
+            }
+        });
     }
 
     /*!
@@ -1684,10 +1960,16 @@ public class MatchingEngine {
      * \return Future<VerifyLocationReply>
      * \ingroup functions_dmeapis
      */
-    public Future<VerifyLocationReply> verifyLocationFuture(VerifyLocationRequest request,
-                                                            long timeoutInMilliseconds)
+    public Future<VerifyLocationReply> verifyLocationFuture(final VerifyLocationRequest request,
+                                                            final long timeoutInMilliseconds)
             throws DmeDnsException {
-        return verifyLocationFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
+        // The DME host is resolved on the threadpool, not the calling thread.
+        return submit(new Callable<VerifyLocationReply>() {
+            @Override
+            public VerifyLocationReply call() throws Exception {
+                return verifyLocation(request, timeoutInMilliseconds);
+            }
+        });
     }
 
     /*!
@@ -1753,10 +2035,16 @@ public class MatchingEngine {
      * \return Future<DynamicLocGroupReply>
      * \ingroup functions_dmeapis
      */
-    Future<DynamicLocGroupReply> addUserToGroupFuture(DynamicLocGroupRequest request,
-                                                             long timeoutInMilliseconds)
+    Future<DynamicLocGroupReply> addUserToGroupFuture(final DynamicLocGroupRequest request,
+                                                             final long timeoutInMilliseconds)
             throws DmeDnsException {
-        return addUserToGroupFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
+        // The DME host is resolved on the threadpool, not the calling thread.
+        return submit(new Callable<DynamicLocGroupReply>() {
+            @Override
+            public DynamicLocGroupReply call() throws Exception {
+                return addUserToGroup(request, timeoutInMilliseconds);
+            }
+        });
     }
 
     /*!
@@ -1827,10 +2115,16 @@ public class MatchingEngine {
      * \return Future<AppInstListReply>
      * \ingroup functions_dmeapis
      */
-    public Future<AppInstListReply> getAppInstListFuture(AppInstListRequest request,
-                                                         long timeoutInMilliseconds)
+    public Future<AppInstListReply> getAppInstListFuture(final AppInstListRequest request,
+                                                         final long timeoutInMilliseconds)
             throws DmeDnsException {
-        return getAppInstListFuture(request, generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
+        // The DME host is resolved on the threadpool, not the calling thread.
+        return submit(new Callable<AppInstListReply>() {
+            @Override
+            public AppInstListReply call() throws Exception {
+                return getAppInstList(request, timeoutInMilliseconds);
+            }
+        });
     }
 
     /*!
@@ -1882,12 +2176,16 @@ public class MatchingEngine {
      * \exception ExecutionException
      * \ingroup functions_dmeapis
      */
-    public Future<ChannelIterator<QosPositionKpiReply>> getQosPositionKpiFuture(QosPositionRequest request,
-                                                                  long timeoutInMilliseconds)
+    public Future<ChannelIterator<QosPositionKpiReply>> getQosPositionKpiFuture(final QosPositionRequest request,
+                                                                  final long timeoutInMilliseconds)
             throws DmeDnsException {
-        QosPositionKpi qosPositionKpi = new QosPositionKpi(this);
-        qosPositionKpi.setRequest(request,generateDmeHostAddress(), getPort(), timeoutInMilliseconds);
-        return submit(qosPositionKpi);
+        // The DME host is resolved on the threadpool, not the calling thread.
+        return submit(new Callable<ChannelIterator<QosPositionKpiReply>>() {
+            @Override
+            public ChannelIterator<QosPositionKpiReply> call() throws Exception {
+                return getQosPositionKpi(request, timeoutInMilliseconds);
+            }
+        });
     }
 
     /*!
@@ -2072,11 +2370,248 @@ public class MatchingEngine {
         return submit(qosPrioritySessionDelete);
     }
 
+    // Non-blocking API. These return CompletableFutures driven by the gRPC future stub, so no
+    // thread waits on an in-flight DME call.
+
+    // Resolves the default DME host on the threadpool, so the *Async calls without a host return
+    // before DNS. A DmeDnsException completes the future exceptionally; the callers keep their
+    // throws clauses so existing catch blocks still compile.
+    private CompletableFuture<String> generateDmeHostAddressAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return generateDmeHostAddress();
+            } catch (DmeDnsException dde) {
+                throw new CompletionException(dde);
+            }
+        }, threadpool);
+    }
+
+    /*!
+     * Registers the client without blocking a thread while the DME call is in flight.
+     * \param request (RegisterClientRequest)
+     * \param host (String): Distributed Matching Engine hostname
+     * \param port (int): Distributed Matching Engine port
+     * \param timeoutInMilliseconds (long)
+     * \return CompletableFuture<RegisterClientReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<RegisterClientReply> registerClientAsync(RegisterClientRequest request,
+                                                                      String host, int port,
+                                                                      long timeoutInMilliseconds) {
+        RegisterClientReply restored = restoreSession(request, host, port);
+        if (restored != null) {
+            return CompletableFuture.completedFuture(restored);
+        }
+        return registerClientAsyncOnDme(request, host, port, timeoutInMilliseconds, false);
+    }
+
+    private CompletableFuture<RegisterClientReply> registerClientAsyncOnDme(RegisterClientRequest request,
+                                                                            String host, int port,
+                                                                            long timeoutInMilliseconds,
+                                                                            boolean defaultHost) {
+        final RegisterClient registerClient = new RegisterClient(this);
+        registerClient.setRequest(request, host, port, timeoutInMilliseconds);
+        return mRegisterClientFlights.callAsync(flightKey(request, host, port), registerClient::callAsync)
+                .thenApply(reply -> {
+                    saveSession(request, reply, host, port, defaultHost);
+                    return reply;
+                });
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<RegisterClientReply> registerClientAsync(RegisterClientRequest request,
+                                                                      long timeoutInMilliseconds)
+            throws DmeDnsException {
+        RegisterClientReply restored = restoreSession(request, null, getPort());
+        if (restored != null) {
+            return CompletableFuture.completedFuture(restored);
+        }
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                registerClientAsyncOnDme(request, host, getPort(), timeoutInMilliseconds, true));
+    }
+
+    /*!
+     * findCloudlet without blocking a thread while the DME call is in flight. PERFORMANCE mode
+     * still runs its latency tests on the MatchingEngine threadpool.
+     * \param request (FindCloudletRequest)
+     * \param host (String): Distributed Matching Engine hostname
+     * \param port (int): Distributed Matching Engine port
+     * \param timeoutInMilliseconds (long)
+     * \param mode (FindCloudletMode): algorithm to use to find edge cloudlets.
+     * \return CompletableFuture<FindCloudletReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<FindCloudletReply> findCloudletAsync(FindCloudletRequest request,
+                                                                  String host, int port,
+                                                                  long timeoutInMilliseconds,
+                                                                  FindCloudletMode mode) {
+        // The one FindCloudletReply cache lookup for async calls to a given host.
+        final List<Object> cacheKey = findCloudletCacheKey(request, mode);
+        FindCloudletReply cached = mFindCloudletCache.get(cacheKey);
+        if (cached != null) {
+            return useCachedFindCloudletReplyAsync(cached, host, port);
+        }
+        return findCloudletAsyncOnDme(request, host, port, timeoutInMilliseconds, mode, cacheKey);
+    }
+
+    // The async FindCloudlet DME call, after a cache miss.
+    private CompletableFuture<FindCloudletReply> findCloudletAsyncOnDme(FindCloudletRequest request,
+                                                                        String host, int port,
+                                                                        long timeoutInMilliseconds,
+                                                                        FindCloudletMode mode,
+                                                                        final List<Object> cacheKey) {
+        final FindCloudlet findCloudlet = new FindCloudlet(this);
+        findCloudlet.setRequest(request, host, port, timeoutInMilliseconds, mode, -1);
+        return mFindCloudletFlights.callAsync(flightKey(request, host, port, mode, -1L), findCloudlet::callAsync)
+                .thenApply(reply -> {
+                    mFindCloudletCache.put(cacheKey, reply);
+                    return reply;
+                });
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<FindCloudletReply> findCloudletAsync(FindCloudletRequest request,
+                                                                  long timeoutInMilliseconds,
+                                                                  FindCloudletMode mode)
+            throws DmeDnsException {
+        // The DME host is only resolved on a cache miss.
+        final List<Object> cacheKey = findCloudletCacheKey(request, mode);
+        FindCloudletReply cached = mFindCloudletCache.get(cacheKey);
+        if (cached != null) {
+            return useCachedFindCloudletReplyAsync(cached, null, getPort());
+        }
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                findCloudletAsyncOnDme(request, host, getPort(), timeoutInMilliseconds, mode, cacheKey));
+    }
+
+    /*!
+     * verifyLocation without blocking a thread on the token server or DME calls.
+     * \param request (VerifyLocationRequest)
+     * \param host (String): Distributed Matching Engine hostname
+     * \param port (int): Distributed Matching Engine port
+     * \param timeoutInMilliseconds (long)
+     * \return CompletableFuture<VerifyLocationReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<VerifyLocationReply> verifyLocationAsync(VerifyLocationRequest request,
+                                                                      String host, int port,
+                                                                      long timeoutInMilliseconds) {
+        VerifyLocation verifyLocation = new VerifyLocation(this);
+        verifyLocation.setRequest(request, host, port, timeoutInMilliseconds);
+        return verifyLocation.callAsync();
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<VerifyLocationReply> verifyLocationAsync(VerifyLocationRequest request,
+                                                                      long timeoutInMilliseconds)
+            throws DmeDnsException {
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                verifyLocationAsync(request, host, getPort(), timeoutInMilliseconds));
+    }
+
+    /*!
+     * Retrieve nearby AppInsts without blocking a thread while the DME call is in flight.
+     * \param request (AppInstListRequest)
+     * \param host (String)
+     * \param port (int)
+     * \param timeoutInMilliseconds (long)
+     * \return CompletableFuture<AppInstListReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<AppInstListReply> getAppInstListAsync(AppInstListRequest request,
+                                                                   String host, int port,
+                                                                   long timeoutInMilliseconds) {
+        GetAppInstList getAppInstList = new GetAppInstList(this);
+        getAppInstList.setRequest(request, host, port, timeoutInMilliseconds);
+        return getAppInstList.callAsync();
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<AppInstListReply> getAppInstListAsync(AppInstListRequest request,
+                                                                   long timeoutInMilliseconds)
+            throws DmeDnsException {
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                getAppInstListAsync(request, host, getPort(), timeoutInMilliseconds));
+    }
+
+    /*!
+     * Create a QOS priority session without blocking a thread while the DME call is in flight.
+     * \param request (QosPrioritySessionCreateRequest)
+     * \param host (String)
+     * \param port (int)
+     * \param timeoutInMilliseconds (long)
+     * \return CompletableFuture<QosPrioritySessionReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<QosPrioritySessionReply> qosPrioritySessionCreateAsync(QosPrioritySessionCreateRequest request,
+                                                                                    String host, int port,
+                                                                                    long timeoutInMilliseconds) {
+        QosPrioritySessionCreate qosPrioritySessionCreate = new QosPrioritySessionCreate(this);
+        qosPrioritySessionCreate.setRequest(request, host, port, timeoutInMilliseconds);
+        return qosPrioritySessionCreate.callAsync();
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<QosPrioritySessionReply> qosPrioritySessionCreateAsync(QosPrioritySessionCreateRequest request,
+                                                                                    long timeoutInMilliseconds)
+            throws DmeDnsException {
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                qosPrioritySessionCreateAsync(request, host, getPort(), timeoutInMilliseconds));
+    }
+
+    /*!
+     * Delete a QOS priority session without blocking a thread while the DME call is in flight.
+     * \param request (QosPrioritySessionDeleteRequest)
+     * \param host (String)
+     * \param port (int)
+     * \param timeoutInMilliseconds (long)
+     * \return CompletableFuture<QosPrioritySessionDeleteReply>
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<QosPrioritySessionDeleteReply> qosPrioritySessionDeleteAsync(QosPrioritySessionDeleteRequest request,
+                                                                                          String host, int port,
+                                                                                          long timeoutInMilliseconds) {
+        QosPrioritySessionDelete qosPrioritySessionDelete = new QosPrioritySessionDelete(this);
+        qosPrioritySessionDelete.setRequest(request, host, port, timeoutInMilliseconds);
+        return qosPrioritySessionDelete.callAsync();
+    }
+
+    /*!
+     * \ingroup functions_dmeapis
+     */
+    public CompletableFuture<QosPrioritySessionDeleteReply> qosPrioritySessionDeleteAsync(QosPrioritySessionDeleteRequest request,
+                                                                                          long timeoutInMilliseconds)
+            throws DmeDnsException {
+        return generateDmeHostAddressAsync().thenCompose(host ->
+                qosPrioritySessionDeleteAsync(request, host, getPort(), timeoutInMilliseconds));
+    }
+
+    CompletableFuture<DynamicLocGroupReply> addUserToGroupAsync(DynamicLocGroupRequest request,
+                                                                String host, int port,
+                                                                long timeoutInMilliseconds) {
+        AddUserToGroup addUserToGroup = new AddUserToGroup(this);
+        addUserToGroup.setRequest(request, host, port, timeoutInMilliseconds);
+        return addUserToGroup.callAsync();
+    }
+
     // Combination Convenience methods:
 
     /*!
      * registerAndFindCloudlet with most defaults filled in.
      * Wrapper function for RegisterClient and FindCloudlet. Same functionality as calling them separately. This API cannot be used for Non-Platform APPs.
+     * Both calls share one deadline of getNetworkManager().getTimeout(), from the time this is called.
+     * The deadline starts before the task is queued on the threadpool, so time spent waiting for a
+     * thread, a network, and DNS all count against it.
      * \param context (android.content.Context)
      * \param organizationName (String)
      * \param applicationName (String)
@@ -2097,6 +2632,8 @@ public class MatchingEngine {
                                                              final Map<String, String> tags,
                                                              final FindCloudletMode mode) {
         final MatchingEngine me = this;
+        // One budget for the whole chain: network, DNS, both RPCs and any latency tests.
+        final Deadline deadline = Deadline.after(getNetworkManager().getTimeout(), TimeUnit.MILLISECONDS);
 
         Callable<FindCloudletReply> future = new Callable<FindCloudletReply>() {
             @Override
@@ -2110,7 +2647,7 @@ public class MatchingEngine {
                 }
                 RegisterClientRequest registerClientRequest = registerClientRequestBuilder.build();
 
-                RegisterClientReply registerClientReply = me.registerClient(registerClientRequest, me.getNetworkManager().getTimeout());
+                RegisterClientReply registerClientReply = me.registerClient(registerClientRequest, deadline);
 
                 if (registerClientReply == null) {
                     return null;
@@ -2125,7 +2662,7 @@ public class MatchingEngine {
                 if (useMode == null) {
                     useMode = FindCloudletMode.PROXIMITY;
                 }
-                FindCloudletReply findCloudletReply = me.findCloudlet(findCloudletRequest, me.getNetworkManager().getTimeout(), useMode);
+                FindCloudletReply findCloudletReply = me.findCloudletOnDefaultHost(findCloudletRequest, remainingMs(deadline), useMode, deadline);
 
                 return findCloudletReply;
             }
@@ -2136,6 +2673,9 @@ public class MatchingEngine {
 
     /*!
      * Register and FindCloudlet to get FindCloudletReply for cloudlet AppInsts info all at once:
+     * Both calls share one deadline of getNetworkManager().getTimeout(), from the time this is called.
+     * The deadline starts before the task is queued on the threadpool, so time spent waiting for a
+     * thread, a network, and DNS all count against it.
      * \ingroup functions_dmeapis
      */
     public Future<FindCloudletReply> registerAndFindCloudlet(final Context context,
@@ -2150,6 +2690,8 @@ public class MatchingEngine {
                                                              final FindCloudletMode mode) {
 
         final MatchingEngine me = this;
+        // One budget for the whole chain: network, DNS, both RPCs and any latency tests.
+        final Deadline deadline = Deadline.after(getNetworkManager().getTimeout(), TimeUnit.MILLISECONDS);
 
         Callable<FindCloudletReply> future = new Callable<FindCloudletReply>() {
             @Override
@@ -2157,7 +2699,7 @@ public class MatchingEngine {
                 RegisterClientRequest registerClientRequest = createRegisterClientRequest(context,
                         organizationName, applicationName, appVersion, authToken, uniqueIdType, uniqueId, tags);
 
-                RegisterClientReply registerClientReply = me.registerClient(registerClientRequest, me.getNetworkManager().getTimeout());
+                RegisterClientReply registerClientReply = me.registerClient(registerClientRequest, deadline);
 
                 if (registerClientReply == null) {
                     return null;
@@ -2172,7 +2714,7 @@ public class MatchingEngine {
                 if (useMode == null) {
                     useMode = FindCloudletMode.PROXIMITY;
                 }
-                FindCloudletReply findCloudletReply = me.findCloudlet(findCloudletRequest, me.getNetworkManager().getTimeout(), useMode);
+                FindCloudletReply findCloudletReply = me.findCloudletOnDefaultHost(findCloudletRequest, remainingMs(deadline), useMode, deadline);
 
                 return findCloudletReply;
             }
@@ -2183,6 +2725,9 @@ public class MatchingEngine {
 
     /*!
      * Register and FindCloudlet with DME host and port parameters, to get FindCloudletReply for cloudlet AppInsts info all at once:
+     * Both calls share one deadline of getNetworkManager().getTimeout(), from the time this is called.
+     * The deadline starts before the task is queued on the threadpool, so time spent waiting for a
+     * thread and a network counts against it.
      * \ingroup functions_dmeapis
      * \section registerandfindoverrideexample Example
      * \snippet EngineCallTest.java registerandfindoverrideexample
@@ -2201,6 +2746,8 @@ public class MatchingEngine {
                                                              final FindCloudletMode mode) {
 
         final MatchingEngine me = this;
+        // One budget for the whole chain: network, DNS, both RPCs and any latency tests.
+        final Deadline deadline = Deadline.after(getNetworkManager().getTimeout(), TimeUnit.MILLISECONDS);
 
         Callable<FindCloudletReply> future = new Callable<FindCloudletReply>() {
             @Override
@@ -2208,8 +2755,11 @@ public class MatchingEngine {
                 RegisterClientRequest registerClientRequest = createRegisterClientRequest(context,
                         organizationName, applicationName, appVersion, authToken, uniqueIdType, uniqueId, tags);
 
-                RegisterClientReply registerClientReply = me.registerClient(registerClientRequest,
-                        host, port, me.getNetworkManager().getTimeout());
+                RegisterClientReply registerClientReply = me.restoreSession(registerClientRequest, host, port);
+                if (registerClientReply == null) {
+                    registerClientReply = me.registerClientOnDme(registerClientRequest,
+                            host, port, remainingMs(deadline), deadline, false);
+                }
 
                 if (registerClientReply == null) {
                     return null;
@@ -2225,7 +2775,7 @@ public class MatchingEngine {
                     useMode = FindCloudletMode.PROXIMITY;
                 }
                 FindCloudletReply findCloudletReply = me.findCloudlet(findCloudletRequest,
-                        host, port, me.getNetworkManager().getTimeout(), useMode, -1);
+                        host, port, remainingMs(deadline), useMode, -1, deadline);
 
                 return findCloudletReply;
             }
@@ -2234,6 +2784,29 @@ public class MatchingEngine {
         return threadpool.submit(future);
     }
 
+    /*!
+     * Milliseconds left before the deadline.
+     * \exception StatusRuntimeException DEADLINE_EXCEEDED, if there are none left.
+     */
+    static long remainingMs(Deadline deadline) {
+        long remaining = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+        if (remaining <= 0) {
+            throw new StatusRuntimeException(Status.DEADLINE_EXCEEDED.withDescription("Deadline passed before the call started."));
+        }
+        return remaining;
+    }
+
+    // registerClient on the default DME host, with DNS and the RPC sharing the deadline.
+    private RegisterClientReply registerClient(RegisterClientRequest request, Deadline deadline)
+            throws DmeDnsException, StatusRuntimeException, InterruptedException, ExecutionException {
+        RegisterClientReply restored = restoreSession(request, null, getPort());
+        if (restored != null) {
+            return restored;
+        }
+        String host = generateDmeHostAddress(deadline);
+        return registerClientOnDme(request, host, getPort(), remainingMs(deadline), deadline, true);
+    }
+
     /*!
      * Retrieve the app connection manager associated with this MatchingEngine instance.
      * \return AppConnectionManager
@@ -2250,6 +2823,297 @@ public class MatchingEngine {
         return mNetTest = new NetTest();
     }
 
+    // Longest a merged caller waits on an identical call in flight: its own timeout, or what is left of its deadline.
+    private static long flightWaitMs(long timeoutInMilliseconds, Deadline deadline) {
+        if (deadline == null) {
+            return timeoutInMilliseconds;
+        }
+        return Math.min(timeoutInMilliseconds, deadline.timeRemaining(TimeUnit.MILLISECONDS));
+    }
+
+    // FindCloudletReply cache key: the request, with the current registration, session and network.
+    // Null without location permission, so the call goes to FindCloudlet, which refuses it.
+    private List<Object> findCloudletCacheKey(FindCloudletRequest request, FindCloudletMode mode) {
+        if (!isMatchingEngineLocationAllowed()) {
+            return null;
+        }
+        Network network = mNetworkManager == null ? null : mNetworkManager.getActiveNetwork();
+        return mFindCloudletCache.key(request, mRegisterClientRequest, getSessionCookie(), network, mode);
+    }
+
+    /*!
+     * A cache hit has the side effects of the FindCloudlet call it stands in for: the reply becomes
+     * the current cloudlet, and EdgeEvents is restarted to follow it, unless it already does.
+     * \param host (String) DME host for EdgeEvents, or null for the last one used.
+     */
+    private FindCloudletReply useCachedFindCloudletReply(FindCloudletReply cached, String host, int port, Deadline deadline) {
+        boolean restartEdgeEvents = !isFollowedByEdgeEvents(cached);
+        setFindCloudletResponse(cached);
+        if (restartEdgeEvents) {
+            FindCloudlet.startEdgeEvents(this, host, port, null, deadline);
+        }
+        return cached;
+    }
+
+    // As useCachedFindCloudletReply, with the blocking EdgeEvents restart on the threadpool.
+    private CompletableFuture<FindCloudletReply> useCachedFindCloudletReplyAsync(final FindCloudletReply cached,
+                                                                               final String host, final int port) {
+        boolean restartEdgeEvents = !isFollowedByEdgeEvents(cached);
+        setFindCloudletResponse(cached);
+        if (restartEdgeEvents) {
+            CompletableFuture.runAsync(() -> FindCloudlet.startEdgeEvents(this, host, port, null, null), threadpool);
+        }
+        return CompletableFuture.completedFuture(cached);
+    }
+
+    private synchronized boolean isFollowedByEdgeEvents(FindCloudletReply reply) {
+        EdgeEventsConnection edgeEventsConnection = getEdgeEventsConnection();
+        return edgeEventsConnection != null && !edgeEventsConnection.isShutdown() &&
+                edgeEventsConnection.lastConnectionDetails != null &&
+                reply.equals(edgeEventsConnection.lastConnectionDetails.currentCloudlet);
+    }
+
+    /*!
+     * Key for merging in-flight calls: the call's own arguments, plus the active network.
+     */
+    private Object flightKey(Object... args) {
+        List<Object> key = new ArrayList<>(Arrays.asList(args));
+        key.add(mNetworkManager == null ? null : mNetworkManager.getActiveNetwork());
+        return key;
+    }
+
+    public synchronized boolean isSessionPersistenceEnabled() {
+        return sessionPersistenceEnabled;
+    }
+
+    /*!
+     * Saves successful registerClient sessions on the device. While a saved session's cookie is
+     * still valid, registerClient for the same app returns it without calling the DME, even in a
+     * new process. The session is renewed in the background shortly before it expires.
+     * \param enabled (boolean)
+     * \ingroup functions_dmeutils
+     */
+    public synchronized void setSessionPersistenceEnabled(boolean enabled) {
+        sessionPersistenceEnabled = enabled;
+        if (!enabled && mSessionRenewal != null) {
+            mSessionRenewal.cancel(false);
+            mSessionRenewal = null;
+        }
+    }
+
+    /*!
+     * Deletes the saved registerClient session, if any.
+     * \ingroup functions_dmeutils
+     */
+    public synchronized void clearSavedSession() {
+        SessionStore store = getSessionStore();
+        if (store != null) {
+            store.clear();
+        }
+    }
+
+    public synchronized boolean isLatencyHistoryEnabled() {
+        return latencyHistoryEnabled;
+    }
+
+    /*!
+     * Keeps PERFORMANCE mode latency results on the device, per AppInst, network type and
+     * location cell, with older results decayed. Later tests use it to test the historically best
+     * sites first, and to estimate sites before their first result.
+     * \param enabled (boolean)
+     * \ingroup functions_dmeutils
+     */
+    public synchronized void setLatencyHistoryEnabled(boolean enabled) {
+        latencyHistoryEnabled = enabled;
+    }
+
+    /*!
+     * Deletes all latency history, in memory and on the device.
+     * \ingroup functions_dmeutils
+     */
+    public synchronized void clearLatencyHistory() {
+        LatencyHistoryStore store = createLatencyHistoryStore();
+        if (store != null) {
+            store.clear();
+        }
+    }
+
+    /*!
+     * \return LatencyHistoryStore, or null if latency history is disabled.
+     */
+    synchronized LatencyHistoryStore getLatencyHistoryStore() {
+        if (!latencyHistoryEnabled) {
+            return null;
+        }
+        return createLatencyHistoryStore();
+    }
+
+    private synchronized LatencyHistoryStore createLatencyHistoryStore() {
+        if (mLatencyHistoryStore == null && mContext != null) {
+            mLatencyHistoryStore = new LatencyHistoryStore(mContext.getFilesDir(), threadpool, 0);
+        }
+        return mLatencyHistoryStore;
+    }
+
+    private synchronized SessionStore getSessionStore() {
+        if (mSessionStore == null && mContext != null) {
+            mSessionStore = new SessionStore(mContext);
+        }
+        return mSessionStore;
+    }
+
+    /*!
+     * If session persistence is on and a valid session for this app and DME is saved, makes it
+     * the current session.
+     * \param host (String) DME host, or null for the host generateDmeHostAddress() picks.
+     * \param port (int) DME port.
+     * \return RegisterClientReply saved reply, or null to register with the DME.
+     */
+    private RegisterClientReply restoreSession(RegisterClientRequest request, String host, int port) {
+        SessionStore.Session session;
+        synchronized (this) {
+            if (!sessionPersistenceEnabled || request == null) {
+                return null;
+            }
+            SessionStore store = getSessionStore();
+            session = store == null ? null : store.load(request, host, port);
+            if (session == null) {
+                return null;
+            }
+        }
+        setSessionCookie(session.reply.getSessionCookie());
+        setTokenServerURI(session.reply.getTokenServerUri());
+        setLastRegisterClientRequest(request);
+        setMatchEngineStatus(session.reply);
+        synchronized (this) {
+            if (mSessionRenewal == null || mSessionRenewal.isDone()) {
+                scheduleSessionRenewal(request, session.host, session.port, session.defaultHost, session.expiresAtMs);
+            }
+        }
+        Log.i(TAG, "Reusing saved session, valid for " +
+                (session.expiresAtMs - System.currentTimeMillis()) / 1000 + " more seconds.");
+        return session.reply;
+    }
+
+    private void saveSession(RegisterClientRequest request, RegisterClientReply reply, String host, int port,
+                             boolean defaultHost) {
+        synchronized (this) {
+            if (!sessionPersistenceEnabled || reply == null || reply.getStatus() != AppClient.ReplyStatus.RS_SUCCESS) {
+                return;
+            }
+            SessionStore store = getSessionStore();
+            if (store == null) {
+                return;
+            }
+            store.save(request, reply, host, port, defaultHost);
+            scheduleSessionRenewal(request, host, port, defaultHost, SessionStore.expiresAtMs(reply.getSessionCookie()));
+        }
+    }
+
+    // Runs registerClient again RENEW_BEFORE_EXPIRY_MS before the session cookie expires.
+    private synchronized void scheduleSessionRenewal(final RegisterClientRequest request,
+                                                     final String host, final int port,
+                                                     final boolean defaultHost,
+                                                     long expiresAtMs) {
+        if (mSessionRenewal != null) {
+            mSessionRenewal.cancel(false);
+            mSessionRenewal = null;
+        }
+        if (expiresAtMs <= 0 || host == null || isShutdown()) {
+            return;
+        }
+        long delayMs = Math.max(0, expiresAtMs - SessionStore.RENEW_BEFORE_EXPIRY_MS - System.currentTimeMillis());
+        final long timeoutMs = mNetworkManager != null ? mNetworkManager.getTimeout() : 10000;
+        mSessionRenewal = getEdgeEventsScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                // The scheduler thread is shared, so the DME call runs on the threadpool.
+                threadpool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Log.i(TAG, "Renewing session before it expires.");
+                            registerClientOnDme(request, host, port, timeoutMs, null, defaultHost);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Session renewal failed: " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*!
+     * Returns the FindCloudletReply cache. It is disabled by default. When enabled, findCloudlet
+     * calls from the same location cell, carrier and app reuse a recent reply without any
+     * network access, until the TTL passes or an EdgeEvent changes the cloudlets.
+     * \return FindCloudletCache
+     */
+    public FindCloudletCache getFindCloudletCache() {
+        return mFindCloudletCache;
+    }
+
+    /*!
+     * Number of registerClient calls that shared the reply of an identical call already in
+     * flight, rather than making their own DME round trip.
+     * \return long
+     */
+    public long getMergedRegisterClientCount() {
+        return mRegisterClientFlights.getMergedCount();
+    }
+
+    /*!
+     * Number of findCloudlet calls that shared the reply of an identical call already in
+     * flight, rather than making their own DME round trip (and, in PERFORMANCE mode, NetTest run).
+     * \return long
+     */
+    public long getMergedFindCloudletCount() {
+        return mFindCloudletFlights.getMergedCount();
+    }
+
+    /*!
+     * Returns the shared executor for NetTest latency probes. It has a fixed number of threads, so
+     * PERFORMANCE mode cannot create an unbounded number of probe threads.
+     * \return ExecutorService
+     */
+    synchronized ExecutorService getProbeExecutor() {
+        if (mProbeExecutor == null || mProbeExecutor.isShutdown()) {
+            int np = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), MAX_PROBE_THREADS));
+            mProbeExecutor = Executors.newFixedThreadPool(np);
+        }
+        return mProbeExecutor;
+    }
+
+    /*!
+     * Returns the MatchingEngine threadpool, which runs async calls and EdgeEvents work. Tasks
+     * timed by getEdgeEventsScheduler() run here, so they do not hold up the scheduler thread.
+     * \return ExecutorService
+     */
+    public ExecutorService getThreadPool() {
+        return threadpool;
+    }
+
+    /*!
+     * Returns the scheduler shared by all EdgeEvents interval handlers (location and latency
+     * updates). It has one thread, however many handlers there are or how often EdgeEvents is
+     * restarted. Cancelled tasks are removed from the queue right away.
+     * \return ScheduledExecutorService
+     */
+    public synchronized ScheduledExecutorService getEdgeEventsScheduler() {
+        if (mEdgeEventsScheduler == null || mEdgeEventsScheduler.isShutdown()) {
+            mEdgeEventsScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "EdgeEventsScheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            mEdgeEventsScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return mEdgeEventsScheduler;
+    }
+
     public boolean isThreadedPerformanceTest() {
         return threadedPerformanceTest;
     }
@@ -2258,6 +3122,66 @@ public class MatchingEngine {
         this.threadedPerformanceTest = threadedPerformanceTest;
     }
 
+    public boolean isAdaptivePerformanceTest() {
+        return adaptivePerformanceTest;
+    }
+
+    /*!
+     * PERFORMANCE mode FindCloudlet ranks sites as a race: sites that are clearly slower than the
+     * leader stop being probed, and the remaining close contenders get more samples. Takes
+     * precedence over setThreadedPerformanceTest().
+     * \param adaptivePerformanceTest (boolean)
+     */
+    public void setAdaptivePerformanceTest(boolean adaptivePerformanceTest) {
+        this.adaptivePerformanceTest = adaptivePerformanceTest;
+    }
+
+    public int getPerformanceCandidateLimit() {
+        return performanceCandidateLimit;
+    }
+
+    /*!
+     * PERFORMANCE mode FindCloudlet only latency tests the K cloudlets nearest to the request's
+     * GPS location, plus cloudlets with AppInsts that had good latency in the last test. Use for
+     * apps deployed to many cloudlets, since testing cost grows with the number of sites.
+     * \param k (int) number of nearest cloudlets. 0 tests every cloudlet (default).
+     */
+    public void setPerformanceCandidateLimit(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Candidate limit must not be negative.");
+        }
+        this.performanceCandidateLimit = k;
+    }
+
+    public synchronized SiteScorer getSiteScorer() {
+        return siteScorer;
+    }
+
+    /*!
+     * PERFORMANCE mode FindCloudlet ranks sites, and decides whether to move from the current
+     * cloudlet, by this scorer instead of average latency. See SiteScorer.gaming(),
+     * SiteScorer.streaming() and SiteScorer.bulkTransfer().
+     * \param siteScorer (SiteScorer) null ranks by average latency (default).
+     */
+    public synchronized void setSiteScorer(SiteScorer siteScorer) {
+        this.siteScorer = siteScorer;
+    }
+
+    public synchronized String getThroughputTestPath() {
+        return throughputTestPath;
+    }
+
+    /*!
+     * PERFORMANCE mode FindCloudlet also runs a short download from each TCP AppInst, alongside
+     * the latency tests and under the same deadline. Results only change the ranking with a
+     * SiteScorer that weights throughput (see SiteScorer.Weights.targetMbps).
+     * \param path (String) HTTP path to download from on each AppInst's TCP port, ie. "/download".
+     *   null disables throughput tests (default).
+     */
+    public synchronized void setThroughputTestPath(String path) {
+        this.throughputTestPath = path;
+    }
+
     // Network Wrappers:
     //
 
@@ -2336,6 +3260,26 @@ public class MatchingEngine {
         isSSLEnabled = SSLEnabled;
     }
 
+    /*!
+     * Returns a shared channel to the DME from the channel pool. Do not shutdown the returned
+     * channel; it is reused by later calls, and closed with MatchingEngine.close().
+     * \param host (String)
+     * \param port (int)
+     * \param network (Network)
+     * \return ManagedChannel
+     */
+    ManagedChannel pooledChannel(String host, int port, Network network) {
+        return mChannelPool.acquire(host, port, network, isSSLEnabled());
+    }
+
+    ChannelPool getChannelPool() {
+        return mChannelPool;
+    }
+
+    DmeDnsCache getDmeDnsCache() {
+        return mDmeDnsCache;
+    }
+
     /*!
      * Helper function to return a channel that handles SSL,
      * or returns a more basic ManagedChannelBuilder.
@@ -42,6 +42,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.grpc.Deadline;
 
 import static android.telephony.CarrierConfigManager.KEY_CARRIER_WFC_IMS_AVAILABLE_BOOL;
 
@@ -72,6 +75,18 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
     private boolean mSSLEnabled = true;
     private boolean mAllowSwitchIfNoSubscriberInfo = false;
 
+    /*!
+     * Notified when a network goes away or changes its link properties, or when the SIM
+     * subscriptions change, so per-network cached state can be dropped.
+     */
+    interface NetworkChangeListener {
+        void onNetworkChanged(Network network);
+        void onSubscriptionsChanged();
+    }
+
+    private final List<NetworkChangeListener> mNetworkChangeListeners = new CopyOnWriteArrayList<>();
+    private ConnectivityManager.NetworkCallback mNetworkChangeCallback;
+
     // Source: https://developer.android.com/reference/android/telephony/TelephonyManager
     public enum DataNetworkType {
         NETWORK_TYPE_1xRTT(7),
@@ -186,6 +201,49 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
     synchronized public void onSubscriptionsChanged() throws SecurityException {
         // Store it for inspection later.
         mActiveSubscriptionInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
+        for (NetworkChangeListener listener : mNetworkChangeListeners) {
+            listener.onSubscriptionsChanged();
+        }
+    }
+
+    synchronized void addNetworkChangeListener(NetworkChangeListener listener) {
+        mNetworkChangeListeners.add(listener);
+        if (mNetworkChangeCallback != null) {
+            return;
+        }
+        mNetworkChangeCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                for (NetworkChangeListener l : mNetworkChangeListeners) {
+                    l.onNetworkChanged(network);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                for (NetworkChangeListener l : mNetworkChangeListeners) {
+                    l.onNetworkChanged(network);
+                }
+            }
+        };
+        try {
+            mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkChangeCallback);
+        } catch (SecurityException se) {
+            Log.w(TAG, "Cannot watch for network changes: " + se.getMessage());
+            mNetworkChangeCallback = null;
+        }
+    }
+
+    synchronized void removeNetworkChangeListener(NetworkChangeListener listener) {
+        mNetworkChangeListeners.remove(listener);
+        if (mNetworkChangeListeners.isEmpty() && mNetworkChangeCallback != null) {
+            try {
+                mConnectivityManager.unregisterNetworkCallback(mNetworkChangeCallback);
+            } catch (IllegalArgumentException iae) {
+                Log.d(TAG, "NetworkCallback already unregistered.");
+            }
+            mNetworkChangeCallback = null;
+        }
     }
 
     public void setTimeout(long timeoutInMilliseconds) {
@@ -199,6 +257,23 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
         return mTimeoutInMilliseconds;
     }
 
+    /*!
+     * Time to wait for a network: the configured timeout, or less if the deadline is sooner.
+     * \param deadline (Deadline) May be null.
+     * \return long milliseconds.
+     * \exception TimeoutException if the deadline has already passed.
+     */
+    long getTimeout(Deadline deadline) throws TimeoutException {
+        if (deadline == null) {
+            return mTimeoutInMilliseconds;
+        }
+        long remaining = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+        if (remaining <= 0) {
+            throw new TimeoutException("Deadline passed before a network was available.");
+        }
+        return Math.min(mTimeoutInMilliseconds, remaining);
+    }
+
     public long getNetworkActiveTimeoutMilliseconds() {
         return mNetworkActiveTimeoutMilliseconds;
     }
@@ -352,6 +427,7 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
         NetworkRequest mNetworkRequest;
         boolean activeListenerAdded = false;
         boolean bindProcess = false;
+        long waitMs = mTimeoutInMilliseconds;
         final long start = System.currentTimeMillis();
 
         NetworkSwitcherCallable(NetworkRequest networkRequest) {
@@ -362,6 +438,11 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
             mNetworkRequest = networkRequest;
             this.bindProcess = bindProcess;
         }
+        NetworkSwitcherCallable(NetworkRequest networkRequest, boolean bindProcess, long waitMs) {
+            mNetworkRequest = networkRequest;
+            this.bindProcess = bindProcess;
+            this.waitMs = waitMs;
+        }
         @Override
         public Network call() throws InterruptedException, NetworkRequestTimeoutException, NetworkRequestNoSubscriptionInfoException {
             if (mNetworkSwitchingEnabled == false) {
@@ -458,8 +539,8 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
                     long timeStart = System.currentTimeMillis();
                     long elapsed;
                     while (mWaitingForLink == true &&
-                            (elapsed = System.currentTimeMillis() - timeStart) < mTimeoutInMilliseconds) {
-                        mSyncObject.wait(mTimeoutInMilliseconds - elapsed);
+                            (elapsed = System.currentTimeMillis() - timeStart) < waitMs) {
+                        mSyncObject.wait(waitMs - elapsed);
                     }
                     if (mWaitingForLink) {
                         // Timed out while waiting for available network.
@@ -488,8 +569,10 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
 
                 // Network is available, and link is up, but may not be active yet.
                 if (!mConnectivityManager.isDefaultNetworkActive()) {
+                    long activeWaitMs = Math.min(mNetworkActiveTimeoutMilliseconds,
+                            waitMs - (System.currentTimeMillis() - start));
                     synchronized (mWaitForActiveNetwork) {
-                        mWaitForActiveNetwork.wait(mNetworkActiveTimeoutMilliseconds);
+                        mWaitForActiveNetwork.wait(Math.max(activeWaitMs, 1));
                     }
                 }
             } finally {
@@ -524,6 +607,29 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
         }
     }
 
+    /*!
+     * Transport type of a network, ie. to key per network stats.
+     * \param network (Network)
+     * \return String "cellular", "wifi", "ethernet", or "other".
+     */
+    String getTransportName(Network network) {
+        if (mConnectivityManager == null || network == null) {
+            return "other";
+        }
+        NetworkCapabilities networkCapabilities = mConnectivityManager.getNetworkCapabilities(network);
+        if (networkCapabilities == null) {
+            return "other";
+        }
+        if (networkCapabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return "cellular";
+        } else if (networkCapabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return "wifi";
+        } else if (networkCapabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return "ethernet";
+        }
+        return "other";
+    }
+
     public boolean isNetworkInternetCellularDataCapable(Network network) {
         boolean hasDataCellCapabilities = false;
 
@@ -576,6 +682,15 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
     }
 
     synchronized public Network getCellularNetworkBlocking(boolean bindProcess) throws InterruptedException, ExecutionException {
+        return getCellularNetworkBlocking(bindProcess, null);
+    }
+
+    /*!
+     * getCellularNetworkBlocking, waiting no later than the deadline.
+     * \param bindProcess (boolean)
+     * \param deadline (Deadline) May be null, to wait up to getTimeout().
+     */
+    synchronized Network getCellularNetworkBlocking(boolean bindProcess, Deadline deadline) throws InterruptedException, ExecutionException {
         if (mNetwork == null) {
             mNetwork = mConnectivityManager.getActiveNetwork();
         }
@@ -586,7 +701,7 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
 
         try {
             NetworkRequest request = getCellularNetworkRequest();
-            mNetwork = switchToNetworkBlocking(request, bindProcess);
+            mNetwork = switchToNetworkBlocking(request, bindProcess, deadline);
         } catch (TimeoutException timeoutException) {
             throw new ExecutionException(timeoutException);
         }
@@ -594,15 +709,27 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
     }
 
     synchronized public Network getCellularNetworkOrWifiBlocking(boolean bindProcess, String currentMccMnc) throws InterruptedException, ExecutionException {
+        return getCellularNetworkOrWifiBlocking(bindProcess, currentMccMnc, null);
+    }
+
+    /*!
+     * getCellularNetworkOrWifiBlocking, with the cellular attempt and the WiFi fallback sharing
+     * one deadline, rather than waiting up to getTimeout() each.
+     * \param bindProcess (boolean)
+     * \param currentMccMnc (String)
+     * \param deadline (Deadline) May be null, to wait up to getTimeout() for each.
+     * \return Network
+     */
+    synchronized Network getCellularNetworkOrWifiBlocking(boolean bindProcess, String currentMccMnc, Deadline deadline) throws InterruptedException, ExecutionException {
 
         if (currentMccMnc != null && !currentMccMnc.isEmpty()) {
             try {
-                mNetwork = getCellularNetworkBlocking(bindProcess);
+                mNetwork = getCellularNetworkBlocking(bindProcess, deadline);
             } catch (ExecutionException ee) {
                 // Cellular failed. Try WiFi:
                 Log.e(TAG, "Cellular Switch failed. Reason: " + ee.getLocalizedMessage() + ". Trying Wifi... ");
                 try {
-                    mNetwork = switchToNetworkBlocking(getWifiNetworkRequest(), bindProcess);
+                    mNetwork = switchToNetworkBlocking(getWifiNetworkRequest(), bindProcess, deadline);
                 } catch (TimeoutException timeoutException) {
                     throw new ExecutionException(timeoutException); // rethrow.
                 }
@@ -611,7 +738,7 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
             // Cellular is not available. Let's try wifi:
             Log.i(TAG, "Cellular is not present. Trying Wifi... ");
             try {
-                mNetwork = switchToNetworkBlocking(getWifiNetworkRequest(), bindProcess);
+                mNetwork = switchToNetworkBlocking(getWifiNetworkRequest(), bindProcess, deadline);
             } catch (TimeoutException timeoutException) {
                 throw new ExecutionException(timeoutException); // rethrow.
             }
@@ -656,11 +783,19 @@ public class NetworkManager extends SubscriptionManager.OnSubscriptionsChangedLi
      * Switch to a particular network type in a blocking fashion for synchronous execution blocks.
      */
     synchronized public Network switchToNetworkBlocking(NetworkRequest networkRequest, boolean bindProcess) throws InterruptedException, ExecutionException, TimeoutException {
+        return switchToNetworkBlocking(networkRequest, bindProcess, null);
+    }
+
+    /*!
+     * switchToNetworkBlocking, waiting no later than the deadline.
+     */
+    synchronized Network switchToNetworkBlocking(NetworkRequest networkRequest, boolean bindProcess, Deadline deadline) throws InterruptedException, ExecutionException, TimeoutException {
         Future<Network> networkFuture;
 
         try {
-            networkFuture = mThreadPool.submit(new NetworkSwitcherCallable(networkRequest, bindProcess));
-            return networkFuture.get(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+            long waitMs = getTimeout(deadline);
+            networkFuture = mThreadPool.submit(new NetworkSwitcherCallable(networkRequest, bindProcess, waitMs));
+            return networkFuture.get(waitMs, TimeUnit.MILLISECONDS);
         } catch (TimeoutException timeoutException) {
             Log.e(TAG, "Cannot switch to network. Reason: " + timeoutException.getLocalizedMessage());
             throw timeoutException;
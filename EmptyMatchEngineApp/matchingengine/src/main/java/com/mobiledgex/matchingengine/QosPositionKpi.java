@@ -100,22 +100,15 @@ public class QosPositionKpi implements Callable {
             nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             response = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
                     .getQosPositionKpi(mQosPositionKpiRequest);
 
-            return new ChannelIterator<>(channel, response);
+            return new ChannelIterator<>(channel, response, true);
         } catch (Exception e){
             Log.e(TAG, "Exception during QosPositionKpi: " + e.getMessage());
-            try {
-                if (channel != null && !channel.isShutdown()) {
-                    channel.shutdown();
-                }
-            } catch (Exception inner) {
-                Log.d(TAG, Log.getStackTraceString(inner));
-            }
             throw e;
         }
     }
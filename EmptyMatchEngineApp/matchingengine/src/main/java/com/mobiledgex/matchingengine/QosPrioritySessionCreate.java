@@ -21,6 +21,7 @@ import android.net.Network;
 import android.util.Log;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -85,7 +86,7 @@ public class QosPrioritySessionCreate implements Callable {
             nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
@@ -93,11 +94,6 @@ public class QosPrioritySessionCreate implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during qosPrioritySessionCreate: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
         mRequest = null;
 
@@ -109,4 +105,24 @@ public class QosPrioritySessionCreate implements Callable {
 
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(), using the gRPC future stub. No thread waits on the reply.
+     * \return CompletableFuture<QosPrioritySessionReply>
+     */
+    CompletableFuture<QosPrioritySessionReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<QosPrioritySessionReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: QosPrioritySessionCreate does not have a request object!"));
+            return failed;
+        }
+        final QosPrioritySessionCreateRequest request = mRequest;
+        mRequest = null;
+
+        return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                stub -> stub.qosPrioritySessionCreate(request),
+                reply -> {
+                    Log.d(TAG, "Version of QosPrioritySessionCreate: " + reply.getVer());
+                });
+    }
 }
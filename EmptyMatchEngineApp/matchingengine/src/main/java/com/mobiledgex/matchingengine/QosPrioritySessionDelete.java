@@ -21,6 +21,7 @@ import android.net.Network;
 import android.util.Log;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -82,7 +83,7 @@ public class QosPrioritySessionDelete implements Callable {
             nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
@@ -90,11 +91,6 @@ public class QosPrioritySessionDelete implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during qosPrioritySessionDelete: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
         mRequest = null;
 
@@ -106,4 +102,24 @@ public class QosPrioritySessionDelete implements Callable {
 
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(), using the gRPC future stub. No thread waits on the reply.
+     * \return CompletableFuture<QosPrioritySessionDeleteReply>
+     */
+    CompletableFuture<QosPrioritySessionDeleteReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<QosPrioritySessionDeleteReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: QosPrioritySessionDelete does not have a request object!"));
+            return failed;
+        }
+        final QosPrioritySessionDeleteRequest request = mRequest;
+        mRequest = null;
+
+        return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                stub -> stub.qosPrioritySessionDelete(request),
+                reply -> {
+                    Log.d(TAG, "Version of QosPrioritySessionDeleteReply: " + reply.getVer());
+                });
+    }
 }
@@ -23,11 +23,13 @@ import android.util.Log;
 
 import java.util.HashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import distributed_match_engine.AppClient;
 import distributed_match_engine.MatchEngineApiGrpc;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.StatusRuntimeException;
 
@@ -39,6 +41,7 @@ public class RegisterClient implements Callable {
     private String mHost = null;
     private int mPort = 0;
     private long mTimeoutInMilliseconds = -1;
+    private Deadline mDeadline;
 
     RegisterClient(MatchingEngine matchingEngine) {
         mMatchingEngine = matchingEngine;
@@ -67,6 +70,14 @@ public class RegisterClient implements Callable {
         return true;
     }
 
+    /*!
+     * Bounds the call by a deadline shared with other calls, instead of its own timeout.
+     * \param deadline (Deadline) null to use the timeout.
+     */
+    void setDeadline(Deadline deadline) {
+        mDeadline = deadline;
+    }
+
     private AppClient.RegisterClientRequest.Builder appendDeviceDetails(AppClient.RegisterClientRequest.Builder builder) {
         HashMap<String, String> map = mMatchingEngine.getDeviceInfo();
         builder.putAllTags(map);
@@ -83,18 +94,21 @@ public class RegisterClient implements Callable {
         ManagedChannel channel = null;
         NetworkManager nm;
         Network network;
+        // Time spent picking a network counts against the RPC deadline.
+        Deadline deadline = mDeadline != null ?
+                mDeadline : Deadline.after(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
         try {
             nm = mMatchingEngine.getNetworkManager();
-            network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
+            network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext), deadline);
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             AppClient.RegisterClientRequest.Builder builder = AppClient.RegisterClientRequest.newBuilder(mRequest);
             appendDeviceDetails(builder)
                     .build();
 
-            reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
+            reply = stub.withDeadline(deadline)
                     .registerClient(mRequest);
         } catch (Exception e) {
             Log.e(TAG, "Exception during RegisterClient. DME Server used: " + mHost + ", carrierName: " + mRequest.getCarrierName() + ", appName: " + mRequest.getAppName() + ", appVersion: " + mRequest.getAppVers() + ", organizationName: " + mRequest.getOrgName() + ", Message: " + e.getMessage());
@@ -102,11 +116,6 @@ public class RegisterClient implements Callable {
                 Log.e(TAG, "Please check that the appName, appVersion, and orgName correspond to a valid app definition on MobiledgeX.");
             }
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
 
         int ver;
@@ -127,4 +136,28 @@ public class RegisterClient implements Callable {
 
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(), using the gRPC future stub. No thread waits on the reply.
+     * \return CompletableFuture<AppClient.RegisterClientReply>
+     */
+    CompletableFuture<AppClient.RegisterClientReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<AppClient.RegisterClientReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: RegisterClient does not have a request object!"));
+            return failed;
+        }
+        final AppClient.RegisterClientRequest request = mRequest;
+        mRequest = null;
+
+        return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                stub -> stub.registerClient(request),
+                reply -> {
+                    Log.d(TAG, "Version of Match_Engine_Status: " + reply.getVer());
+                    mMatchingEngine.setSessionCookie(reply.getSessionCookie());
+                    mMatchingEngine.setTokenServerURI(reply.getTokenServerUri());
+                    mMatchingEngine.setLastRegisterClientRequest(request);
+                    mMatchingEngine.setMatchEngineStatus(reply);
+                });
+    }
 }
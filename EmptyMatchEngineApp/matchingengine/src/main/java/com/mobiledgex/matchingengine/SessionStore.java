@@ -0,0 +1,171 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import com.auth0.android.jwt.DecodeException;
+import com.auth0.android.jwt.JWT;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.Date;
+
+import distributed_match_engine.AppClient;
+
+/*!
+ * Saves the last successful RegisterClient session in SharedPreferences, so a new process can
+ * reuse it instead of registering again. A saved session is only returned for a request with the
+ * same app identity and DME host and port, and while its session cookie (a JWT) has at least
+ * MIN_REMAINING_MS left.
+ * \ingroup classes_util
+ */
+class SessionStore {
+    public static final String TAG = "SessionStore";
+    static final String PREFS_NAME = "com.mobiledgex.matchingengine.SessionStore";
+    // A restored session must be valid for at least this long.
+    public static final long MIN_REMAINING_MS = 60 * 1000;
+    // Renew this long before the session cookie expires.
+    public static final long RENEW_BEFORE_EXPIRY_MS = 5 * 60 * 1000;
+
+    private static final String KEY_REQUEST = "registerClientRequest";
+    private static final String KEY_REPLY = "registerClientReply";
+    private static final String KEY_HOST = "host";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_DEFAULT_HOST = "defaultHost";
+
+    static final class Session {
+        final AppClient.RegisterClientRequest request;
+        final AppClient.RegisterClientReply reply;
+        final String host;
+        final int port;
+        final boolean defaultHost; //!< host was picked by the SDK, not the app.
+        final long expiresAtMs;
+
+        Session(AppClient.RegisterClientRequest request, AppClient.RegisterClientReply reply,
+                String host, int port, boolean defaultHost, long expiresAtMs) {
+            this.request = request;
+            this.reply = reply;
+            this.host = host;
+            this.port = port;
+            this.defaultHost = defaultHost;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    SessionStore(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /*!
+     * Expiry of a session cookie, from its JWT "exp" claim.
+     * \param sessionCookie (String)
+     * \return long wall clock milliseconds, or -1 if the cookie is not a JWT or has no expiry.
+     */
+    static long expiresAtMs(String sessionCookie) {
+        if (sessionCookie == null || sessionCookie.isEmpty()) {
+            return -1;
+        }
+        try {
+            Date expiresAt = new JWT(sessionCookie).getExpiresAt();
+            return expiresAt == null ? -1 : expiresAt.getTime();
+        } catch (DecodeException de) {
+            Log.w(TAG, "Session cookie is not a valid JWT: " + de.getMessage());
+            return -1;
+        }
+    }
+
+    /*!
+     * True if both requests register the same app, for the same device and carrier.
+     */
+    static boolean sameIdentity(AppClient.RegisterClientRequest a, AppClient.RegisterClientRequest b) {
+        return a.getOrgName().equals(b.getOrgName()) &&
+                a.getAppName().equals(b.getAppName()) &&
+                a.getAppVers().equals(b.getAppVers()) &&
+                a.getCarrierName().equals(b.getCarrierName()) &&
+                a.getUniqueIdType().equals(b.getUniqueIdType()) &&
+                a.getUniqueId().equals(b.getUniqueId()) &&
+                a.getAuthToken().equals(b.getAuthToken());
+    }
+
+    /*!
+     * \param defaultHost (boolean) true if the host came from generateDmeHostAddress(), not the app.
+     */
+    synchronized void save(AppClient.RegisterClientRequest request, AppClient.RegisterClientReply reply,
+                           String host, int port, boolean defaultHost) {
+        mPrefs.edit()
+                .putString(KEY_REQUEST, Base64.encodeToString(request.toByteArray(), Base64.NO_WRAP))
+                .putString(KEY_REPLY, Base64.encodeToString(reply.toByteArray(), Base64.NO_WRAP))
+                .putString(KEY_HOST, host)
+                .putInt(KEY_PORT, port)
+                .putBoolean(KEY_DEFAULT_HOST, defaultHost)
+                .apply();
+    }
+
+    /*!
+     * Returns the saved session for this request, if it is for the same app and DME, and still valid.
+     * \param request (RegisterClientRequest)
+     * \param host (String) DME host, or null for a session on the SDK's default DME host.
+     * \param port (int) DME port.
+     * \return Session, or null.
+     */
+    synchronized Session load(AppClient.RegisterClientRequest request, String host, int port) {
+        String requestString = mPrefs.getString(KEY_REQUEST, null);
+        String replyString = mPrefs.getString(KEY_REPLY, null);
+        if (requestString == null || replyString == null) {
+            return null;
+        }
+
+        AppClient.RegisterClientRequest savedRequest;
+        AppClient.RegisterClientReply savedReply;
+        try {
+            savedRequest = AppClient.RegisterClientRequest.parseFrom(Base64.decode(requestString, Base64.NO_WRAP));
+            savedReply = AppClient.RegisterClientReply.parseFrom(Base64.decode(replyString, Base64.NO_WRAP));
+        } catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+            Log.w(TAG, "Saved session is unreadable. Dropping it: " + e.getMessage());
+            clear();
+            return null;
+        }
+
+        if (!sameIdentity(request, savedRequest)) {
+            return null;
+        }
+        String savedHost = mPrefs.getString(KEY_HOST, null);
+        int savedPort = mPrefs.getInt(KEY_PORT, 0);
+        boolean savedDefaultHost = mPrefs.getBoolean(KEY_DEFAULT_HOST, false);
+        boolean sameDme = host == null ? savedDefaultHost : host.equals(savedHost);
+        if (!sameDme || port != savedPort) {
+            Log.d(TAG, "Saved session is for another DME.");
+            return null;
+        }
+        long expiresAtMs = expiresAtMs(savedReply.getSessionCookie());
+        if (expiresAtMs - System.currentTimeMillis() < MIN_REMAINING_MS) {
+            Log.d(TAG, "Saved session has expired, or is about to.");
+            return null;
+        }
+        return new Session(savedRequest, savedReply, savedHost, savedPort, savedDefaultHost, expiresAtMs);
+    }
+
+    synchronized void clear() {
+        mPrefs.edit().clear().apply();
+    }
+}
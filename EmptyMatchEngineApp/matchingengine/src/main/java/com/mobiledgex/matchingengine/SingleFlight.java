@@ -0,0 +1,153 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/*!
+ * Merges identical calls that are in flight at the same time. The first caller for a key runs
+ * the call, and later callers with an equal key wait for, and share, its result or exception.
+ * Once the call completes, the next caller for that key starts a new call.
+ * \ingroup classes_util
+ */
+class SingleFlight<V> {
+    public static final String TAG = "SingleFlight";
+
+    private final ConcurrentHashMap<Object, CompletableFuture<V>> mInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mMerged = new AtomicLong();
+
+    /*!
+     * Blocking call. Merged callers wait until the running call completes, and get the same
+     * reply, or the same exception. Each merged caller waits no longer than its own timeout.
+     * \param key (Object) equal keys are merged. Must implement equals() and hashCode().
+     * \param timeoutMs (long) longest wait for a merged caller.
+     * \param call (Callable<V>)
+     * \return V
+     * \exception StatusRuntimeException DEADLINE_EXCEEDED, if a merged caller's timeout runs out first.
+     */
+    V call(Object key, long timeoutMs, Callable<V> call) throws InterruptedException, ExecutionException {
+        mCalls.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = mInFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            mMerged.incrementAndGet();
+            try {
+                return running.get(Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ee) {
+                throw rethrow(ee.getCause(), ee);
+            } catch (TimeoutException te) {
+                // The running call carries on for its own caller.
+                throw new StatusRuntimeException(Status.DEADLINE_EXCEEDED.withDescription(
+                        "Timed out waiting for an identical call in flight."));
+            }
+        }
+
+        try {
+            V reply = call.call();
+            mine.complete(reply);
+            return reply;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw rethrow(e, new ExecutionException(e));
+        } finally {
+            mInFlight.remove(key, mine);
+        }
+    }
+
+    /*!
+     * Non-blocking call. Every caller, including the first, gets a dependent future, so cancelling
+     * one caller's future does not cancel the shared call.
+     * \param key (Object) equal keys are merged.
+     * \param call (Supplier<CompletableFuture<V>>) starts the call.
+     * \return CompletableFuture<V>
+     */
+    CompletableFuture<V> callAsync(final Object key, Supplier<CompletableFuture<V>> call) {
+        mCalls.incrementAndGet();
+        final CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = mInFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            mMerged.incrementAndGet();
+            return running.thenApply(v -> v);
+        }
+
+        CompletableFuture<V> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException re) {
+            started = new CompletableFuture<>();
+            started.completeExceptionally(re);
+        }
+        started.whenComplete((reply, throwable) -> {
+            mInFlight.remove(key, mine);
+            if (throwable != null) {
+                mine.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null ?
+                        throwable.getCause() : throwable);
+            } else {
+                mine.complete(reply);
+            }
+        });
+        return mine.thenApply(v -> v);
+    }
+
+    private static ExecutionException rethrow(Throwable cause, ExecutionException wrapped)
+            throws InterruptedException {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        }
+        if (cause instanceof ExecutionException) {
+            return (ExecutionException) cause;
+        }
+        return wrapped;
+    }
+
+    /*!
+     * \return long number of calls, merged or not.
+     */
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    /*!
+     * \return long number of calls that shared another call's result instead of running.
+     */
+    long getMergedCount() {
+        return mMerged.get();
+    }
+
+    int inFlight() {
+        return mInFlight.size();
+    }
+}
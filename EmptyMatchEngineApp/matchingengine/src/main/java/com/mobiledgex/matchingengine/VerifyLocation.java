@@ -20,6 +20,7 @@ package com.mobiledgex.matchingengine;
 import android.net.Network;
 import android.util.Log;
 
+import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.OkHttpClient;
@@ -28,6 +29,7 @@ import com.squareup.okhttp.Response;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -75,49 +77,84 @@ public class VerifyLocation implements Callable {
         return true;
     }
 
-    private String getToken() throws IOException {
-        String token;
-
+    private OkHttpClient getTokenHttpClient() {
         OkHttpClient httpClient = new OkHttpClient();
         httpClient.setFollowSslRedirects(false);
         httpClient.setFollowRedirects(false);
+        return httpClient;
+    }
 
+    private String getToken() throws IOException {
         Response response = null;
         try {
             Request request = new Request.Builder()
                     .url(mMatchingEngine.getTokenServerURI())
                     .build();
 
-            response = httpClient.newCall(request).execute();
-            if (!response.isRedirect()) {
-                throw new IllegalStateException("Expected a redirect!");
-            } else {
-                Headers headers = response.headers();
-                String locationHeaderUrl = headers.get("Location");
-                if (locationHeaderUrl == null) {
-                    throw new IllegalStateException("Required Location Header Missing.");
-                }
-                HttpUrl url = HttpUrl.parse(locationHeaderUrl);
-                token = url.queryParameter("dt-id");
-                if (token == null) {
-                    throw new IllegalStateException("Required Token ID Missing");
-                }
-            }
+            response = getTokenHttpClient().newCall(request).execute();
+            return parseToken(response);
         } finally {
             if (response != null) {
                 response.body().close();
             }
         }
+    }
 
+    private String parseToken(Response response) {
+        String token;
+        if (!response.isRedirect()) {
+            throw new IllegalStateException("Expected a redirect!");
+        } else {
+            Headers headers = response.headers();
+            String locationHeaderUrl = headers.get("Location");
+            if (locationHeaderUrl == null) {
+                throw new IllegalStateException("Required Location Header Missing.");
+            }
+            HttpUrl url = HttpUrl.parse(locationHeaderUrl);
+            token = url.queryParameter("dt-id");
+            if (token == null) {
+                throw new IllegalStateException("Required Token ID Missing");
+            }
+        }
         return token;
     }
 
-    private VerifyLocationRequest addTokenToRequest(String token) {
+    private CompletableFuture<String> getTokenAsync() {
+        final CompletableFuture<String> tokenFuture = new CompletableFuture<>();
+        Request request = new Request.Builder()
+                .url(mMatchingEngine.getTokenServerURI())
+                .build();
+
+        getTokenHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                tokenFuture.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                try {
+                    tokenFuture.complete(parseToken(response));
+                } catch (Exception e) {
+                    tokenFuture.completeExceptionally(e);
+                } finally {
+                    try {
+                        response.body().close();
+                    } catch (IOException ioe) {
+                        Log.d(TAG, "Token response close: " + ioe.getMessage());
+                    }
+                }
+            }
+        });
+        return tokenFuture;
+    }
+
+    private VerifyLocationRequest addTokenToRequest(VerifyLocationRequest request, String token) {
         VerifyLocationRequest tokenizedRequest = AppClient.VerifyLocationRequest.newBuilder()
-                .setVer(mRequest.getVer())
-                .setSessionCookie(mRequest.getSessionCookie())
-                .setCarrierName(mRequest.getCarrierName())
-                .setGpsLocation(mRequest.getGpsLocation())
+                .setVer(request.getVer())
+                .setSessionCookie(request.getSessionCookie())
+                .setCarrierName(request.getCarrierName())
+                .setGpsLocation(request.getGpsLocation())
                 .setVerifyLocToken(token)
                 .build();
         return tokenizedRequest;
@@ -134,7 +171,7 @@ public class VerifyLocation implements Callable {
 
         // Make One time use of HTTP Request to Token Server:
         String token = getToken(); // This token is short lived.
-        grpcRequest = addTokenToRequest(token);
+        grpcRequest = addTokenToRequest(mRequest, token);
 
         VerifyLocationReply reply;
         ManagedChannel channel = null;
@@ -143,7 +180,7 @@ public class VerifyLocation implements Callable {
             NetworkManager nm = mMatchingEngine.getNetworkManager();
             Network network = nm.getCellularNetworkOrWifiBlocking(false, mMatchingEngine.getMccMnc(mMatchingEngine.mContext));
 
-            channel = mMatchingEngine.channelPicker(mHost, mPort, network);
+            channel = mMatchingEngine.pooledChannel(mHost, mPort, network);
             MatchEngineApiGrpc.MatchEngineApiBlockingStub stub = MatchEngineApiGrpc.newBlockingStub(channel);
 
             reply = stub.withDeadlineAfter(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
@@ -151,11 +188,6 @@ public class VerifyLocation implements Callable {
         } catch (Exception e) {
             Log.e(TAG, "Exception during VerifyLocation: " + e.getMessage());
             throw e;
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
-                channel.awaitTermination(mTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
-            }
         }
         mRequest = null;
 
@@ -170,4 +202,30 @@ public class VerifyLocation implements Callable {
         mMatchingEngine.setVerifyLocationReply(reply);
         return reply;
     }
+
+    /*!
+     * Non-blocking variant of call(). The token server request is queued on OkHttp, and the
+     * DME call uses the gRPC future stub.
+     * \return CompletableFuture<VerifyLocationReply>
+     */
+    CompletableFuture<VerifyLocationReply> callAsync() {
+        if (mRequest == null) {
+            CompletableFuture<VerifyLocationReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new MissingRequestException("Usage error: VerifyLocation does not have a request object to make location verification call!"));
+            return failed;
+        }
+        final VerifyLocationRequest request = mRequest;
+        mRequest = null;
+
+        return getTokenAsync().thenCompose(token -> {
+            final VerifyLocationRequest grpcRequest = addTokenToRequest(request, token);
+            return AsyncDmeCall.call(mMatchingEngine, mHost, mPort, mTimeoutInMilliseconds,
+                    stub -> stub.verifyLocation(grpcRequest),
+                    reply -> {
+                        Log.d(TAG, "Version of VerifyLocationReply: " + reply.getVer());
+                        mMatchingEngine.setTokenServerToken(token);
+                        mMatchingEngine.setVerifyLocationReply(reply);
+                    });
+        });
+    }
 }
@@ -1,30 +1,138 @@
 package com.mobiledgex.matchingengine.edgeeventhandlers;
 
-import java.util.Timer;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.mobiledgex.matchingengine.MatchingEngine;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*!
+ * Base for repeating EdgeEvents tasks. The MatchingEngine's shared scheduler only does the
+ * timing: each run is handed to the MatchingEngine threadpool, so a slow task (ie. a latency
+ * test) does not delay other handlers. First runs are aligned to ALIGNMENT_MS boundaries, so
+ * handlers with the same interval fire together in one wake-up. The next run is scheduled when
+ * a run finishes, on the same boundaries. Runs missed meanwhile are skipped, not run back to back.
+ */
 public abstract class EdgeEventsIntervalHandler {
+    public final static String TAG = "EdgeEventsIntervalHandler";
+    // Start times are rounded up to a multiple of this, in milliseconds.
+    public static final long ALIGNMENT_MS = 1000;
+
     long getNumberOfTimesExecuted = 0;
-    Timer timer;
+    private ScheduledFuture<?> scheduledFuture;
     private boolean isDone = false;
 
+    private MatchingEngine me;
+    private Runnable task;
+    private long intervalMs;
+    private long nextRunMs; // SystemClock.elapsedRealtime() of the next run.
+
     public EdgeEventsIntervalHandler() {
-        timer = new Timer();
     }
 
-    synchronized public void cancel() {
+    /*!
+     * Delay until the first multiple of ALIGNMENT_MS that is at least intervalMs from now.
+     */
+    static long alignedDelayMs(long nowMs, long intervalMs) {
+        long first = nowMs + intervalMs;
+        long aligned = ((first + ALIGNMENT_MS - 1) / ALIGNMENT_MS) * ALIGNMENT_MS;
+        return aligned - nowMs;
+    }
+
+    /*!
+     * Next run after lastRunMs, on the same intervalMs steps, that is still ahead of nowMs.
+     */
+    static long nextRunMs(long lastRunMs, long intervalMs, long nowMs) {
+        long next = lastRunMs + intervalMs;
+        if (next <= nowMs) {
+            next += ((nowMs - next) / intervalMs + 1) * intervalMs;
+        }
+        return next;
+    }
+
+    /*!
+     * Runs the task every intervalMs on the MatchingEngine threadpool, starting one aligned
+     * interval from now. An exception in one run is logged, and does not stop later runs.
+     */
+    synchronized void schedule(MatchingEngine me, final Runnable task, long intervalMs) {
         if (isDone) {
             return;
         }
-        if (timer != null) {
-            timer.cancel();
+        this.me = me;
+        this.task = task;
+        this.intervalMs = Math.max(1, intervalMs);
+        long now = SystemClock.elapsedRealtime();
+        nextRunMs = now + alignedDelayMs(now, this.intervalMs);
+        scheduleNext(now);
+    }
+
+    // Caller holds the lock.
+    private void scheduleNext(long nowMs) {
+        try {
+            scheduledFuture = me.getEdgeEventsScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, nextRunMs - nowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            Log.e(TAG, "Scheduler is shut down. Task not scheduled.");
             isDone = true;
         }
     }
 
-    synchronized public boolean isDone() {
-        if (timer == null) {
-            return isDone = true;
+    // On the scheduler thread: hands the run to the threadpool.
+    private void dispatch() {
+        synchronized (this) {
+            if (isDone) {
+                return;
+            }
+        }
+        try {
+            me.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    runAndReschedule();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            Log.e(TAG, "Threadpool is shut down. Task stopped.");
+            synchronized (this) {
+                isDone = true;
+            }
         }
-        return isDone;
+    }
+
+    private void runAndReschedule() {
+        try {
+            task.run();
+        } catch (Exception e) {
+            Log.e(TAG, "Interval task failed: " + e.getMessage());
+        }
+        synchronized (this) {
+            if (isDone) {
+                return; // Cancelled, possibly by the task itself.
+            }
+            long now = SystemClock.elapsedRealtime();
+            nextRunMs = nextRunMs(nextRunMs, intervalMs, now);
+            scheduleNext(now);
+        }
+    }
+
+    synchronized public void cancel() {
+        if (isDone) {
+            return;
+        }
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+        }
+        isDone = true;
+    }
+
+    synchronized public boolean isDone() {
+        return isDone || me == null; // Never scheduled counts as done.
     }
 }
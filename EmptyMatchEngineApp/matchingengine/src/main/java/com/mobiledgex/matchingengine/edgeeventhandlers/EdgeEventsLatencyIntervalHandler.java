@@ -24,8 +24,6 @@ import com.mobiledgex.matchingengine.MatchingEngine;
 import com.mobiledgex.matchingengine.edgeeventsconfig.UpdateConfig;
 import com.mobiledgex.matchingengine.performancemetrics.NetTest;
 
-import java.util.TimerTask;
-
 import distributed_match_engine.AppClient;
 
 public class EdgeEventsLatencyIntervalHandler extends EdgeEventsIntervalHandler {
@@ -52,12 +50,11 @@ public class EdgeEventsLatencyIntervalHandler extends EdgeEventsIntervalHandler
                     UpdateConfig.UPDATE_INTERVAL_SECONDS_DEFAULT+ " seconds.");
             cfg.updateIntervalSeconds = UpdateConfig.UPDATE_INTERVAL_SECONDS_DEFAULT;
         }
-        timer.schedule(new EdgeEventsLatencyIntervalHandler.LatencyTask(testType, cfg),
-                (long)(cfg.updateIntervalSeconds * 1000), // initial delay
+        schedule(me, new EdgeEventsLatencyIntervalHandler.LatencyTask(testType, cfg),
                 (long)(cfg.updateIntervalSeconds * 1000)); // milliseconds interval
     }
 
-    private class LatencyTask extends TimerTask {
+    private class LatencyTask implements Runnable {
         UpdateConfig ceConfig;
         Location location = null;
 
@@ -88,6 +85,9 @@ public class EdgeEventsLatencyIntervalHandler extends EdgeEventsIntervalHandler
                     case CONNECT:
                         edgeEventsConnection.testConnectAndPostLatencyUpdate(location);
                         break;
+                    case UDP_ECHO:
+                        edgeEventsConnection.testUdpEchoAndPostLatencyUpdate(location);
+                        break;
                     default:
                         Log.e(TAG, "Unexpected test type: " + testType);
                 }
@@ -23,8 +23,6 @@ import com.mobiledgex.matchingengine.EdgeEventsConnection;
 import com.mobiledgex.matchingengine.MatchingEngine;
 import com.mobiledgex.matchingengine.edgeeventsconfig.UpdateConfig;
 
-import java.util.TimerTask;
-
 public class EdgeEventsLocationIntervalHandler extends EdgeEventsIntervalHandler {
     public final static String TAG = "EdgeEventsLocationIntervalHandler";
     private MatchingEngine me;
@@ -46,12 +44,11 @@ public class EdgeEventsLocationIntervalHandler extends EdgeEventsIntervalHandler
             cfg.updateIntervalSeconds = UpdateConfig.UPDATE_INTERVAL_SECONDS_DEFAULT;
         }
 
-        timer.schedule(new LocationTask(cfg),
-                (long)(cfg.updateIntervalSeconds * 1000), // inital delay
+        schedule(me, new LocationTask(cfg),
                 (long)(cfg.updateIntervalSeconds * 1000)); // milliseconds interval
     }
 
-    private class LocationTask extends TimerTask {
+    private class LocationTask implements Runnable {
 
         UpdateConfig ceConfig;
         Location location = null;
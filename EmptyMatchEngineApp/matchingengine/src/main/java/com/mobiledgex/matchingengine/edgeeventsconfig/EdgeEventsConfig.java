@@ -31,10 +31,19 @@ import java.util.EnumSet;
 public class EdgeEventsConfig {
     private static final String TAG = "EdgeEventsConfig";
 
+    /*!
+     * What to drop when the outbound EdgeEvents queue is full.
+     */
+    public enum OutboundOverflowPolicy {
+        DROP_OLDEST, //!< Drop the oldest queued event, so the newest location or latency is sent.
+        DROP_NEWEST  //!< Keep the queued events, and drop the event being posted.
+    }
+    public static final int OUTBOUND_QUEUE_CAPACITY_DEFAULT = 64;
+
     // Configure how to send events
     public int latencyInternalPort; //!< port information for latency testing. This is the AppPort's internal port, not public mapped port for current AppInst. Use 0 for selecting the first available port, favoring TCP.
     public int reconnectDelayMs; // !< reconnect delay in milliseconds.
-    public NetTest.TestType latencyTestType = NetTest.TestType.CONNECT; //!< TCP connect default. Use ping for UDP.
+    public NetTest.TestType latencyTestType = NetTest.TestType.CONNECT; //!< TCP connect default. Use UDP_ECHO for UDP, if the AppInst runs an echo server (see UdpEchoResponder), or PING.
     public UpdateConfig latencyUpdateConfig; //!< config for latency updates
     public UpdateConfig locationUpdateConfig; //!< config for gps location updates
 
@@ -44,6 +53,10 @@ public class EdgeEventsConfig {
     public float performanceSwitchMargin; //!< Average performance must be by better by this latency margin (0 to 1.0f) before notifying of switch.
     public EnumSet<FindCloudletEventTrigger> triggers; //!< events that application wants a new find cloudlet for
 
+    // Configure outbound flow control
+    public int outboundQueueCapacity; //!< most client events waiting to be written to the DME stream.
+    public OutboundOverflowPolicy outboundOverflowPolicy; //!< which event to drop when the outbound queue is full.
+
     public EdgeEventsConfig() {
         latencyInternalPort = 0;
         reconnectDelayMs = 1000;
@@ -52,6 +65,8 @@ public class EdgeEventsConfig {
         latencyTriggerTestMode = MatchingEngine.FindCloudletMode.PERFORMANCE;
         performanceSwitchMargin = 0.05f;
         triggers = EnumSet.allOf(FindCloudletEventTrigger.class);
+        outboundQueueCapacity = OUTBOUND_QUEUE_CAPACITY_DEFAULT;
+        outboundOverflowPolicy = OutboundOverflowPolicy.DROP_OLDEST;
 
         // Sane defaults, onTrigger, and once.
         latencyUpdateConfig = new UpdateConfig();
@@ -81,6 +96,11 @@ public class EdgeEventsConfig {
             triggers = EnumSet.copyOf(edgeEventsConfig.triggers);
         }
 
+        outboundQueueCapacity = edgeEventsConfig.outboundQueueCapacity > 0 ?
+                edgeEventsConfig.outboundQueueCapacity : OUTBOUND_QUEUE_CAPACITY_DEFAULT;
+        outboundOverflowPolicy = edgeEventsConfig.outboundOverflowPolicy == null ?
+                OutboundOverflowPolicy.DROP_OLDEST : edgeEventsConfig.outboundOverflowPolicy;
+
         // Sane defaults
         if (edgeEventsConfig.latencyUpdateConfig != null) {
             latencyUpdateConfig = new UpdateConfig(edgeEventsConfig.latencyUpdateConfig);
@@ -152,6 +172,8 @@ public class EdgeEventsConfig {
         sb.append(", latencyTriggerTestMode: " + latencyTriggerTestMode);
         sb.append(", performanceSwitchMargin: " + performanceSwitchMargin);
         sb.append(", triggers: " + triggers);
+        sb.append(", outboundQueueCapacity: " + outboundQueueCapacity);
+        sb.append(", outboundOverflowPolicy: " + outboundOverflowPolicy);
         sb.append(", latencyUpdateConfig: " + latencyUpdateConfig);
         sb.append(", locationUpdateConfig: " + locationUpdateConfig);
         sb.append("}");
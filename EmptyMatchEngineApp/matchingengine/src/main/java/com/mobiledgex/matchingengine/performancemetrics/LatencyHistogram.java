@@ -0,0 +1,103 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+/*!
+ * Compact log-bucketed latency histogram, in the style of HdrHistogram. Bucket bounds grow by a
+ * fixed ratio, so any percentile is accurate to within RELATIVE_ERROR of the true value. Adding
+ * or removing a sample is constant time, whatever the number of samples.
+ * \ingroup classes_util
+ */
+public class LatencyHistogram {
+    public static final double MIN_MS = 0.1d;
+    public static final double MAX_MS = 60000d;
+    // Bucket width ratio. Percentiles are within about half of this, relative.
+    public static final double RELATIVE_ERROR = 0.05d;
+
+    private static final double LOG_RATIO = Math.log(1d + RELATIVE_ERROR);
+    private static final int NUM_BUCKETS = (int) Math.ceil(Math.log(MAX_MS / MIN_MS) / LOG_RATIO) + 1;
+
+    private final int[] counts = new int[NUM_BUCKETS];
+    private int total;
+
+    static int bucketOf(double ms) {
+        if (Double.isNaN(ms) || ms <= MIN_MS) {
+            return 0;
+        }
+        if (ms >= MAX_MS) {
+            return NUM_BUCKETS - 1;
+        }
+        int b = (int) (Math.log(ms / MIN_MS) / LOG_RATIO);
+        return Math.min(b, NUM_BUCKETS - 1);
+    }
+
+    // Geometric middle of the bucket.
+    static double valueOf(int bucket) {
+        return MIN_MS * Math.exp((bucket + 0.5d) * LOG_RATIO);
+    }
+
+    public void add(double ms) {
+        counts[bucketOf(ms)]++;
+        total++;
+    }
+
+    public void remove(double ms) {
+        int b = bucketOf(ms);
+        if (counts[b] > 0) {
+            counts[b]--;
+            total--;
+        }
+    }
+
+    public int count() {
+        return total;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        total = 0;
+    }
+
+    /*!
+     * Returns the value at the given quantile.
+     * \param quantile (double) 0.0 to 1.0, ie. 0.99 for p99.
+     * \return double latency in milliseconds. NaN if there are no samples.
+     */
+    public double percentile(double quantile) {
+        if (total == 0) {
+            return Double.NaN;
+        }
+        if (quantile < 0d) {
+            quantile = 0d;
+        } else if (quantile > 1d) {
+            quantile = 1d;
+        }
+        // Nearest rank.
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return valueOf(i);
+            }
+        }
+        return valueOf(counts.length - 1);
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*!
+ * On-disk latency history per (AppInst fqdn, port, network type, location cell). Each entry is
+ * an exponentially decayed mean and variance, so older tests count for less, and an entry not
+ * updated for a few half-lives fades out.
+ * Lookups and updates only touch memory. The file is an append-only log, written in batches by
+ * one writer task on the executor, and compacted when it grows well past the number of entries.
+ * The log is read once, in the background; until then, there is no history.
+ * \ingroup classes_util
+ */
+public class LatencyHistoryStore {
+    public static final String TAG = "LatencyHistoryStore";
+    public static final String FILE_NAME = "latency_history.log";
+    public static final long DEFAULT_HALF_LIFE_MS = 24 * 60 * 60 * 1000L;
+    // Entries with less decayed weight than this are treated as missing, and dropped on compaction.
+    static final double MIN_WEIGHT = 0.05d;
+    private static final int COMPACT_MIN_LINES = 1000;
+
+    /*!
+     * History key. Location cell is any string that groups nearby locations, ie. a geohash.
+     */
+    public static final class Key {
+        final String fqdn;
+        final int port;
+        final String networkType;
+        final String cell;
+
+        public Key(String fqdn, int port, String networkType, String cell) {
+            this.fqdn = fqdn == null ? "" : fqdn;
+            this.port = port;
+            this.networkType = networkType == null ? "" : networkType;
+            this.cell = cell == null ? "" : cell;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return port == k.port && fqdn.equals(k.fqdn) && networkType.equals(k.networkType) && cell.equals(k.cell);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = fqdn.hashCode();
+            h = 31 * h + port;
+            h = 31 * h + networkType.hashCode();
+            return 31 * h + cell.hashCode();
+        }
+    }
+
+    /*!
+     * Decayed latency summary, as of the time it was read.
+     */
+    public static final class Summary {
+        public final double average;
+        public final double stddev;
+        // Decayed number of samples behind the summary.
+        public final double weight;
+
+        Summary(double average, double stddev, double weight) {
+            this.average = average;
+            this.stddev = stddev;
+            this.weight = weight;
+        }
+    }
+
+    // Immutable, so readers never see a half updated entry.
+    private static final class Entry {
+        final double mean;
+        final double m2; // Decayed weighted sum of squared deviations.
+        final double weight;
+        final long updatedAtMs;
+
+        Entry(double mean, double m2, double weight, long updatedAtMs) {
+            this.mean = mean;
+            this.m2 = m2;
+            this.weight = weight;
+            this.updatedAtMs = updatedAtMs;
+        }
+    }
+
+    private final File mFile;
+    private final Executor mExecutor;
+    private final long mHalfLifeMs;
+    private final ConcurrentHashMap<Key, Entry> mEntries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Key> mDirty = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mWriting = new AtomicBoolean(false);
+    private volatile boolean mLoaded = false;
+    private volatile boolean mDeleteFile = false;
+    // Writer only.
+    private int mLinesInFile;
+
+    /*!
+     * \param directory (File) ie. Context.getFilesDir().
+     * \param executor (Executor) for file reads and writes.
+     * \param halfLifeMs (long) age at which a sample counts half. If <= 0, uses default.
+     */
+    public LatencyHistoryStore(File directory, Executor executor, long halfLifeMs) {
+        mFile = new File(directory, FILE_NAME);
+        mExecutor = executor;
+        mHalfLifeMs = halfLifeMs <= 0 ? DEFAULT_HALF_LIFE_MS : halfLifeMs;
+        scheduleWrite();
+    }
+
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    private double decay(long ageMs) {
+        return ageMs <= 0 ? 1d : Math.pow(0.5d, (double) ageMs / mHalfLifeMs);
+    }
+
+    /*!
+     * \return Summary decayed to now, or null if there is no history, or it has faded out.
+     */
+    public Summary get(Key key) {
+        Entry e = mEntries.get(key);
+        if (e == null) {
+            return null;
+        }
+        double weight = e.weight * decay(System.currentTimeMillis() - e.updatedAtMs);
+        if (weight < MIN_WEIGHT) {
+            return null;
+        }
+        // Decay scales m2 and weight alike, so the variance is unchanged.
+        double variance = e.weight > 1d ? e.m2 / e.weight : 0d;
+        return new Summary(e.mean, Math.sqrt(variance), weight);
+    }
+
+    /*!
+     * Adds new samples to the history. Memory only; the file is written later, in the background.
+     * \param key (Key)
+     * \param samples (double[]) latency samples, in milliseconds. Negative samples (failed tests) are skipped.
+     * \param count (int) number of samples to use from the start of the array.
+     */
+    public void record(Key key, double[] samples, int count) {
+        long now = System.currentTimeMillis();
+        Entry e;
+        Entry updated;
+        do {
+            e = mEntries.get(key);
+            double mean = e == null ? 0d : e.mean;
+            double decay = e == null ? 0d : decay(now - e.updatedAtMs);
+            double weight = e == null ? 0d : e.weight * decay;
+            double m2 = e == null ? 0d : e.m2 * decay;
+            for (int i = 0; i < count && i < samples.length; i++) {
+                double x = samples[i];
+                if (x < 0) {
+                    continue;
+                }
+                weight += 1d;
+                double delta = x - mean;
+                mean += delta / weight;
+                m2 += delta * (x - mean);
+            }
+            if (weight == 0d) {
+                return;
+            }
+            updated = new Entry(mean, m2, weight, now);
+        } while (e == null ? mEntries.putIfAbsent(key, updated) != null : !mEntries.replace(key, e, updated));
+
+        mDirty.add(key);
+        scheduleWrite();
+    }
+
+    /*!
+     * Writes pending updates now, in the background.
+     */
+    public void flush() {
+        scheduleWrite();
+    }
+
+    // One writer task at a time, so the load, appends and compaction never overlap.
+    private void scheduleWrite() {
+        if (!mWriting.compareAndSet(false, true)) {
+            return; // The running writer picks up new work before it stops.
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!mLoaded) {
+                            load();
+                        }
+                        if (mDeleteFile) {
+                            mDeleteFile = false;
+                            if (mFile.exists() && !mFile.delete()) {
+                                Log.e(TAG, "Cannot delete latency history file.");
+                            }
+                            mLinesInFile = 0;
+                        }
+                        writePending();
+                    } catch (Exception e) {
+                        Log.e(TAG, "History write failed: " + e.getMessage());
+                    } finally {
+                        mWriting.set(false);
+                        // Work added after this writer last looked.
+                        if (!mDirty.isEmpty() || mDeleteFile) {
+                            scheduleWrite();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            mWriting.set(false);
+            Log.w(TAG, "Executor is shut down. Latency history not written.");
+        }
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (mDeleteFile) {
+                    break; // Cleared while loading.
+                }
+                lines++;
+                String[] f = line.split("\t");
+                if (f.length != 8) {
+                    continue; // Partial write. Skip.
+                }
+                try {
+                    Key key = new Key(f[0], Integer.parseInt(f[1]), f[2], f[3]);
+                    Entry fromFile = new Entry(Double.parseDouble(f[4]), Double.parseDouble(f[5]),
+                            Double.parseDouble(f[6]), Long.parseLong(f[7]));
+                    // Updates recorded before the load finished are newer than the file.
+                    Entry inMemory = mEntries.get(key);
+                    if (inMemory == null || inMemory.updatedAtMs < fromFile.updatedAtMs) {
+                        mEntries.put(key, fromFile);
+                    }
+                } catch (NumberFormatException nfe) {
+                    // Skip.
+                }
+            }
+        } catch (FileNotFoundException fnfe) {
+            Log.d(TAG, "No latency history yet.");
+        } catch (IOException ioe) {
+            Log.e(TAG, "Cannot read latency history: " + ioe.getMessage());
+        }
+        mLinesInFile = lines;
+        mLoaded = true;
+        Log.d(TAG, "Latency history loaded. Entries: " + mEntries.size() + ", took ms: " + (System.currentTimeMillis() - now));
+    }
+
+    private void writePending() {
+        Set<Key> keys = new LinkedHashSet<>();
+        Key key;
+        while ((key = mDirty.poll()) != null) {
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        if (mLinesInFile + keys.size() > Math.max(COMPACT_MIN_LINES, 4 * mEntries.size())) {
+            compact();
+            return;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(mFile, true))) {
+            for (Key k : keys) {
+                Entry e = mEntries.get(k);
+                if (e != null) {
+                    writeLine(writer, k, e);
+                    mLinesInFile++;
+                }
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Cannot append latency history: " + ioe.getMessage());
+        }
+    }
+
+    // Rewrites the log with one line per live entry, then swaps it in.
+    private void compact() {
+        long now = System.currentTimeMillis();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        int lines = 0;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp, false))) {
+            for (Map.Entry<Key, Entry> me : mEntries.entrySet()) {
+                Entry e = me.getValue();
+                if (e.weight * decay(now - e.updatedAtMs) < MIN_WEIGHT) {
+                    mEntries.remove(me.getKey(), e);
+                    continue;
+                }
+                writeLine(writer, me.getKey(), e);
+                lines++;
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Cannot compact latency history: " + ioe.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Cannot replace latency history file.");
+            tmp.delete();
+            return;
+        }
+        mLinesInFile = lines;
+        Log.d(TAG, "Latency history compacted. Entries: " + lines);
+    }
+
+    private static void writeLine(BufferedWriter writer, Key k, Entry e) throws IOException {
+        writer.write(k.fqdn.replace('\t', ' ') + "\t" + k.port + "\t" + k.networkType + "\t" + k.cell + "\t" +
+                e.mean + "\t" + e.m2 + "\t" + e.weight + "\t" + e.updatedAtMs);
+        writer.newLine();
+    }
+
+    /*!
+     * Drops all history, in memory and on disk. The file is deleted without being read.
+     */
+    public void clear() {
+        // Nothing on disk is wanted any more, so the writer skips the load.
+        mLoaded = true;
+        mDeleteFile = true;
+        mEntries.clear();
+        mDirty.clear();
+        scheduleWrite();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+}
@@ -30,15 +30,25 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
-import com.mobiledgex.matchingengine.MobiledgeXSSLSocketFactory;
+import com.mobiledgex.matchingengine.HttpClientCache;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
@@ -60,24 +70,72 @@ public class NetTest
      * Type of test to run
      * Connect: Times a socket connect+disconnect
      * Ping: ICMP Ping
+     * UDP_ECHO: Times a burst of datagrams to a UDP echo server (see UdpEchoResponder). Measures loss and reordering too.
+     * THROUGHPUT: Short timed download (see Throughput()). Time to first byte is the sample.
      */
     public enum TestType
     {
         PING,
         CONNECT,
+        UDP_ECHO,
+        THROUGHPUT,
     }
 
-    public boolean runTest;
+    /*!
+     * How CONNECT tests with an L7Path time the GET.
+     * COLD: each GET on a new connection, so connect and TLS handshake are included.
+     * WARM: GETs reuse a pooled keep-alive connection. The first GET to a site warms the
+     * connection, and its time is kept in Site.coldRequestMs instead of the samples.
+     */
+    public enum L7ProbeMode
+    {
+        COLD,
+        WARM,
+    }
+
+    public volatile boolean runTest;
+    public L7ProbeMode l7ProbeMode = L7ProbeMode.COLD;
 
-    private Thread testThread;
+    // Continuous tests (doTest()) of every NetTest share a small fixed pool. Each round schedules
+    // the next when it ends, so a test holds a thread only while a round runs. Idle threads exit.
+    private static final int CONTINUOUS_TEST_THREADS = 2;
+    private static final long CONTINUOUS_TEST_KEEP_ALIVE_MS = 30 * 1000;
+    private static final ScheduledThreadPoolExecutor sContinuousTestExecutor = createContinuousTestExecutor();
+    private ScheduledFuture<?> continuousTest; // Next round. Guarded by this.
+    private volatile int continuousTestGeneration; // Bumped by doTest(false); older rounds stop.
+    private final Object roundLock = new Object(); // Held while a continuous round runs.
+    private final AtomicLong completedRounds = new AtomicLong();
     public int TestIntervalMS = 100;
     public int TestTimeoutMS = 2000;
+    // Datagrams per UDP_ECHO test. Each echo is one sample, each lost datagram one failed test.
+    public int udpEchoBurst = 5;
+    // Throughput(): longest download after the first byte, download cap, and upload size (0 for none).
+    public long throughputDurationMs = 1000;
+    public long throughputMaxBytes = 4 * 1024 * 1024;
+    public long throughputUploadBytes = 0;
+
+    // Ranking cost of one failed test, in milliseconds. About one probe timeout and a retry.
+    public static final double LOSS_PENALTY_MS = 500d;
+
+    // testSitesRacing(): rounds before any site can be dropped, and a suggested sample window.
+    public static final int RACING_MIN_SAMPLES = 3;
+    public static final int RACING_MAX_SAMPLES = 10;
+    // Smallest confidence interval half width, in milliseconds.
+    static final double RACING_RESOLUTION_MS = 1d;
+    // Two-sided 95% Student's t critical values, indexed by degrees of freedom - 1.
+    private static final double[] T_95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086};
 
     /*!
-     * Synchronized List of Sites.
+     * Copy-on-write List of Sites. Iterating works on a snapshot, so tests and readers never lock
+     * it, and sites can be added during a test run.
      */
-    private List<Site> sites;
-    private Comparator<Site> siteComparator;
+    private final CopyOnWriteArrayList<Site> sites = new CopyOnWriteArrayList<>();
+    // Lookups and ranking, kept up to date as results come in. Readers do not lock.
+    private final SiteIndex siteIndex = new SiteIndex();
+    // Sites whose stats changed outside of NetTest tests. Re-ranked on the next ranked read.
+    private final Set<Site> changedSites = ConcurrentHashMap.newKeySet();
+    private volatile Comparator<Site> siteComparator;
 
     class DefaultSiteComparator implements Comparator<Site>{
 
@@ -88,17 +146,17 @@ public class NetTest
                 return s1.size > s2.size ? -1 : 1;
             }
 
-            if (s1.average < s2.average) {
-                return -1;
-            }
-            if (s1.average > s2.average) {
-                return 1;
+            // Time-decayed stats, so recent samples count more than old ones. Failed tests are
+            // penalized, so a lossy site loses to a slightly slower one.
+            int c = Double.compare(s1.lossPenalizedAverage(LOSS_PENALTY_MS), s2.lossPenalizedAverage(LOSS_PENALTY_MS));
+            if (c != 0) {
+                return c;
             }
 
-            if (s1.stddev < s2.stddev) {
+            if (s1.ewmaStddev < s2.ewmaStddev) {
                 return -1;
             }
-            if (s1.stddev > s2.stddev) {
+            if (s1.ewmaStddev > s2.ewmaStddev) {
                 return 1;
             }
             else {
@@ -107,7 +165,31 @@ public class NetTest
         }
     }
 
+    /*!
+     * Ranks sites by tail latency (p90), then by ewmaAverage. For real-time apps where occasional
+     * slow responses matter more than the mean. Use with setSiteComparator().
+     */
+    public static class TailLatencySiteComparator implements Comparator<Site> {
+
+        @Override
+        public int compare(Site s1, Site s2) {
+            // If there's no samples, the other is automatically better.
+            if (s1.size == 0 || s2.size == 0) {
+                return s1.size > s2.size ? -1 : 1;
+            }
+
+            int c = Double.compare(s1.p90(), s2.p90());
+            if (c != 0) {
+                return c;
+            }
+            return Double.compare(s1.ewmaAverage, s2.ewmaAverage);
+        }
+    }
+
     private ExecutorService mExecutorService;
+    // Optional. If set, each site is scored once per test result, and ranked by score.
+    private volatile SiteScorer mSiteScorer;
+    private volatile SiteScorer.Context mScoringContext;
 
     /*!
      * Constructor for NetTest
@@ -115,8 +197,6 @@ public class NetTest
     public NetTest()
     {
         siteComparator = new DefaultSiteComparator();
-        List<Site> list = new ArrayList<Site>();
-        sites = Collections.synchronizedList(list);
     }
 
     public Comparator<Site> getSiteComparator() {
@@ -127,6 +207,90 @@ public class NetTest
         this.siteComparator = siteComparator;
     }
 
+    /*!
+     * Ranks sites by a SiteScorer. Scores are computed when a site gets a new test result, not on
+     * each comparison. Replaces the site comparator; null restores the default comparator.
+     * \param siteScorer (SiteScorer) may be null.
+     * \param context (SiteScorer.Context) device state for this test. May be null.
+     */
+    public void setSiteScorer(SiteScorer siteScorer, SiteScorer.Context context) {
+        mSiteScorer = siteScorer;
+        mScoringContext = context;
+        siteComparator = siteScorer == null ? new DefaultSiteComparator() : SiteScorer.SCORE_COMPARATOR;
+        for (Site s : sites) {
+            synchronized (s) {
+                updateScore(s);
+                updateRank(s);
+            }
+        }
+    }
+
+    public SiteScorer getSiteScorer() {
+        return mSiteScorer;
+    }
+
+    public SiteScorer.Context getScoringContext() {
+        return mScoringContext;
+    }
+
+    // Caller holds the site lock.
+    private void updateScore(Site site) {
+        SiteScorer scorer = mSiteScorer;
+        site.score = scorer == null ? Double.NaN : scorer.score(site, mScoringContext);
+    }
+
+    // Ranking value used by bestSiteSoFar(), racing and confidenceOfBest(). Caller holds the site lock.
+    private double rankValue(Site site) {
+        return mSiteScorer == null ? site.lossPenalizedAverage(LOSS_PENALTY_MS) : site.score;
+    }
+
+    // Publishes the site's stats, and moves it in the index to match. Same order as the default
+    // comparator, or SiteScorer.SCORE_COMPARATOR with a scorer. Caller holds the site lock.
+    private void updateRank(Site site) {
+        // Covers any change the caller made under the lock.
+        changedSites.remove(site);
+        site.publishStats();
+        boolean tested = site.size > 0;
+        siteIndex.update(site, tested,
+                tested ? rankValue(site) : Double.POSITIVE_INFINITY,
+                mSiteScorer == null ? site.ewmaStddev : 0d);
+    }
+
+    /*!
+     * Re-ranks a site now. Not needed after Site.addSample(), addFailure() or recalculateStats():
+     * those mark the site, and it is re-ranked on the next ranked read.
+     * \param site (Site)
+     */
+    public void siteChanged(Site site) {
+        synchronized (site) {
+            updateScore(site);
+            updateRank(site);
+        }
+    }
+
+    // Called by Site when its stats change.
+    void markChanged(Site site) {
+        changedSites.add(site);
+    }
+
+    // Re-ranks sites whose stats changed outside of NetTest tests. Cheap when there are none.
+    private void rerankChanged() {
+        if (changedSites.isEmpty()) {
+            return;
+        }
+        for (Site site : changedSites) {
+            siteChanged(site);
+        }
+    }
+
+    // True if the index order is the comparator's order, so no sort is needed.
+    private boolean rankedByIndex() {
+        Comparator<Site> comparator = siteComparator;
+        return mSiteScorer == null ?
+                comparator instanceof DefaultSiteComparator :
+                comparator == SiteScorer.SCORE_COMPARATOR;
+    }
+
     /*!
      * Set the executorService to use if using the async Future versions.
      * \param executorService (ExecutorService)
@@ -136,20 +300,35 @@ public class NetTest
         return this.mExecutorService = executorService;
     }
 
-    private OkHttpClient getHttpClientOnNetwork(Network sourceNetwork) {
-        OkHttpClient httpClient;
-        MobiledgeXSSLSocketFactory mobiledgexSSLSocketFactory = (MobiledgeXSSLSocketFactory)MobiledgeXSSLSocketFactory.getDefault(sourceNetwork);
-
-        // TODO: GetConnection to connect from a particular network interface endpoint
-        httpClient = new OkHttpClient();
+    private OkHttpClient getHttpClientOnNetwork(Network sourceNetwork, boolean pooled) {
+        // Shared per network. The clone shares the connection pool, with this test's timeout.
+        OkHttpClient sharedClient = pooled ?
+                HttpClientCache.getInstance().getClient(sourceNetwork) :
+                HttpClientCache.getInstance().getUnpooledClient(sourceNetwork);
+        if (sharedClient == null) {
+            return null;
+        }
+        OkHttpClient httpClient = sharedClient.clone();
         httpClient.setConnectTimeout(TestTimeoutMS, TimeUnit.MILLISECONDS);
         // Read write Timeouts are on defaults.
-
-        httpClient.setSslSocketFactory(mobiledgexSSLSocketFactory);
-        httpClient.setSocketFactory(sourceNetwork.getSocketFactory());
         return httpClient;
     }
 
+    private long timedGet(OkHttpClient httpClient, Request request) throws IOException {
+        // The nature of this app specific GET API call is to expect some kind of
+        // stateless empty body return also 200 OK.
+        Stopwatch stopWatch = Stopwatch.createStarted();
+        Response result = httpClient.newCall(request).execute();
+        long elapsed = stopWatch.stop().elapsed(TimeUnit.MILLISECONDS);
+        try {
+            // Read the body, so the connection can go back to the pool.
+            result.body().bytes();
+        } finally {
+            result.body().close();
+        }
+        return result.isSuccessful() ? elapsed : -1;
+    }
+
     /*!
      * Create a client and connect/disconnect on a raw TCP server port from a device network Interface.
      * \param site (Site)
@@ -193,45 +372,42 @@ public class NetTest
     }
 
     /*!
-     * Test and gather stats on site using TCP connection to host.
+     * Test and gather stats on site using an HTTP GET on the site's L7Path. See l7ProbeMode for
+     * whether the GET includes a new connection.
      * \param site Site
      * \return long
      */
     public long ConnectAndDisconnect(Site site)
     {
-        Response result;
-
         try {
-            Stopwatch stopWatch;
-
             Request request = new Request.Builder()
                     .url(site.L7Path)
                     .get()
                     .build();
 
-            OkHttpClient httpClient;
-            if (site.network != null) {
-                httpClient = getHttpClientOnNetwork(site.network);
-            } else {
+            boolean warm = l7ProbeMode == L7ProbeMode.WARM;
+            OkHttpClient httpClient = site.network == null ? null : getHttpClientOnNetwork(site.network, warm);
+            if (httpClient == null) {
                 return -1;
             }
 
-            // The nature of this app specific GET API call is to expect some kind of
-            // stateless empty body return also 200 OK.
-            stopWatch = Stopwatch.createStarted();
-            result = httpClient.newCall(request).execute();
-            long elapsed = stopWatch.stop().elapsed(TimeUnit.MILLISECONDS);
-
-            if (result.isSuccessful()) {
-                return elapsed;
+            if (warm && Double.isNaN(site.coldRequestMs)) {
+                // First GET opens the pooled connection.
+                long cold = timedGet(httpClient, request);
+                if (cold < 0) {
+                    return -1; // Error, GET on L7 Path didn't return success.
+                }
+                site.coldRequestMs = cold;
             }
-
+            long elapsed = timedGet(httpClient, request);
+            if (!warm) {
+                site.coldRequestMs = elapsed < 0 ? site.coldRequestMs : elapsed;
+            }
+            return elapsed;
         } catch (IOException ioe) {
             ioe.printStackTrace();
             return -1;
         }
-        // Error, GET on L7 Path didn't return success.
-        return -1;
     }
 
     /*!
@@ -275,66 +451,177 @@ public class NetTest
         return elapsedMS;
     }
 
-    public boolean doTest(boolean enable)
+    /*!
+     * UDP echo test. Sends a burst of udpEchoBurst datagrams over the site's Network, and records
+     * each echo RTT as a sample, and each lost datagram as a failed test. Unlike Ping(), this can
+     * test from a specific network interface.
+     * \param site (Site) host and public UDP port of an echo server.
+     * \return long average RTT of the burst, or -1 if every datagram was lost.
+     */
+    public long UdpEcho(Site site)
     {
-        if (runTest == true && enable == true)
-        {
-            return true;
-        }
-
-        runTest = enable;
-        if (runTest)
-        {
-            testThread = new Thread() {
-                @Override
-                public void run() {
-                    // Exits on runTest == false;
-                    RunNetTest();
-                }
-            };
-            testThread.start();
-        }
-        else
-        {
-            try {
-                testThread.join(TestTimeoutMS);
-            } catch (InterruptedException ie) {
-                // Nothing to do.
-            } finally {
-                testThread = null;
+        UdpEchoProber.Result result;
+        try {
+            result = UdpEchoProber.probe(site, udpEchoBurst, TestTimeoutMS);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "UDP echo failed: " + site.host + ":" + site.port + ", " + e.getMessage());
+            for (int i = 0; i < udpEchoBurst; i++) {
+                recordSample(site, -1);
             }
+            return -1;
         }
-        return runTest;
+
+        double sum = 0d;
+        for (double rtt : result.rttsMs) {
+            recordSample(site, rtt);
+            sum += rtt;
+        }
+        for (int i = 0; i < result.lost(); i++) {
+            recordSample(site, -1);
+        }
+        synchronized (site) {
+            site.reordered += result.reordered;
+        }
+        Log.d(TAG, "UDP echo: " + site.host + ":" + site.port + ", sent: " + result.sent + ", received: " + result.received + ", reordered: " + result.reordered);
+        return result.received == 0 ? -1 : Math.round(sum / result.received);
     }
 
+    /*!
+     * Throughput test. Downloads from the site's throughputL7Path (or L7Path) on the site's Network
+     * for up to throughputDurationMs, or throughputMaxBytes. Without either URL, it reads whatever
+     * the server at the site's host and port streams after connect. Sets the site's throughputMbps,
+     * uploadMbps and ttfbMs, and updates its score, but does not record a latency sample.
+     * \param site (Site)
+     * \return long time to first byte, or -1 if the test failed.
+     */
+    public long Throughput(Site site)
+    {
+        return Throughput(site, throughputDurationMs);
+    }
 
-    public Site getSite(String hostOrL7Path) {
-        synchronized (sites) {
-            for (Site s : sites) {
-                if ((s.L7Path != null && s.L7Path.equals(hostOrL7Path)) ||
-                        (s.host != null && s.host.equals(hostOrL7Path))) {
-                    return s;
-                }
+    /*!
+     * Throughput test, with a shorter download if needed to finish within a caller's deadline.
+     * \param site (Site)
+     * \param durationMs (long) longest download after the first byte. Capped at throughputDurationMs.
+     * \return long time to first byte, or -1 if the test failed.
+     */
+    public long Throughput(Site site, long durationMs)
+    {
+        ThroughputProber.Result result;
+        try {
+            result = ThroughputProber.probe(site, TestTimeoutMS, Math.max(0, Math.min(durationMs, throughputDurationMs)),
+                    throughputMaxBytes, throughputUploadBytes);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Throughput test failed: " + site.host + ":" + site.port + ", " + e.getMessage());
+            return -1;
+        }
+
+        synchronized (site) {
+            double mbps = result.downloadMbps();
+            if (!Double.isNaN(mbps)) {
+                site.throughputMbps = mbps;
+            }
+            if (!Double.isNaN(result.uploadMbps)) {
+                site.uploadMbps = result.uploadMbps;
             }
+            site.ttfbMs = result.ttfbMs;
+            updateScore(site);
+            updateRank(site);
         }
-        return null;
+        Log.d(TAG, "Throughput: " + site.host + ":" + site.port + ", bytes: " + result.bytes + ", Mbps: " + site.throughputMbps + ", ttfb: " + result.ttfbMs);
+        return Math.round(result.ttfbMs);
     }
 
-    public boolean addSite(Site site) {
+    /*!
+     * Starts or stops continuous tests of every site, every TestIntervalMS. Rounds run on a small
+     * pool shared by all NetTests. They never lock the site list, so bestSite(), getSite() and
+     * sortedSiteList() stay available. Stopping waits for a round in progress, which ends after
+     * its current site, so a following doTest(true) never overlaps it.
+     * \param enable (boolean)
+     * \return boolean true if tests are running.
+     */
+    public boolean doTest(boolean enable)
+    {
+        if (enable) {
+            synchronized (this) {
+                if (continuousTest == null) {
+                    runTest = true;
+                    scheduleRound(continuousTestGeneration, 0);
+                }
+                return runTest;
+            }
+        }
+        synchronized (this) {
+            runTest = false;
+            continuousTestGeneration++;
+            if (continuousTest != null) {
+                continuousTest.cancel(false);
+                continuousTest = null;
+            }
+        }
+        // Not under the NetTest lock: the round may need it to finish.
+        synchronized (roundLock) {
+            return runTest;
+        }
+    }
 
-        synchronized (sites) {
-            for (Site s : sites) {
-                if (s.sameSite(site)) {
-                    return false;
+    // Caller holds the NetTest lock.
+    private void scheduleRound(final int generation, long delayMs) {
+        continuousTest = sContinuousTestExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (roundLock) {
+                    if (generation != continuousTestGeneration) {
+                        return;
+                    }
+                    runTestRound(generation);
+                }
+                synchronized (NetTest.this) {
+                    if (generation == continuousTestGeneration && runTest) {
+                        scheduleRound(generation, Math.max(1, TestIntervalMS));
+                    }
                 }
             }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
 
-            int size = sites.size();
-            if (site.L7Path == null) {
-                sites.add(site);
-            } else {
-                sites.add(site);
+    private static ScheduledThreadPoolExecutor createContinuousTestExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(CONTINUOUS_TEST_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-continuous-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setKeepAliveTime(CONTINUOUS_TEST_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /*!
+     * \param hostOrL7Path (String)
+     * \return Site with that L7Path or host, or null. Hash lookup.
+     */
+    public Site getSite(String hostOrL7Path) {
+        return siteIndex.get(hostOrL7Path);
+    }
+
+    public boolean addSite(Site site) {
+
+        // SiteIndex.add() is atomic, so only one of two same sites gets in.
+        if (!siteIndex.add(site)) {
+            return false; // Same site. See Site.sameSite().
+        }
+        sites.add(site);
+        synchronized (site) {
+            site.owner = this;
+            updateScore(site);
+            updateRank(site);
         }
 
         return true;
@@ -345,30 +632,147 @@ public class NetTest
      * \return List<Site>
      */
     public List<Site> sortedSiteList() {
-        List<Site> listSites = new ArrayList<>();
-        synchronized (sites) {
-            listSites.addAll(sites); // Pre-sorted.
+        rerankChanged();
+        if (rankedByIndex()) {
+            return siteIndex.ranked();
         }
+        List<Site> listSites = new ArrayList<>(sites);
+        listSites.sort(siteComparator);
         return listSites;
     }
 
     /*!
-     * Best site, from collection.
-     * return Site
+     * Immutable stats of every site, best first. Does not lock, so it is safe to poll while
+     * continuous tests run.
+     * \return List<SiteStats>
+     */
+    public List<SiteStats> rankedStats() {
+        List<Site> ranked = sortedSiteList();
+        List<SiteStats> stats = new ArrayList<>(ranked.size());
+        for (Site s : ranked) {
+            stats.add(s.getStats());
+        }
+        return stats;
+    }
+
+    /*!
+     * Best site, from collection. With the default comparator, or a SiteScorer, this reads the
+     * head of a ranking kept up to date as results come in, without sorting or locking. A custom
+     * comparator sorts a copy of the sites.
+     * \return Site, or null if there are no sites.
      */
     public Site bestSite() {
-        synchronized (sites) {
-            sites.sort(siteComparator); // Sort after testing, or for current best.
-            if (sites.size() > 0) {
-                return sites.get(0);
+        rerankChanged();
+        if (rankedByIndex()) {
+            return siteIndex.first();
+        }
+        List<Site> listSites = sortedSiteList();
+        return listSites.isEmpty() ? null : listSites.get(0);
+    }
+
+    /*!
+     * Best site from the stats gathered so far, by the default ranking, or the SiteScorer if set.
+     * Safe to call while tests are still running. If no site has a successful test yet, returns
+     * the first site added (or first by latency history, see orderByHistory()).
+     * \return Site, or null if there are no sites.
+     */
+    public Site bestSiteSoFar() {
+        rerankChanged();
+        return siteIndex.first();
+    }
+
+    /*!
+     * Estimated probability that a site really ranks first, from the stats gathered so far. Compares
+     * the same value the ranking uses: the loss-penalized EWMA latency, or the SiteScorer score.
+     * Uses a normal approximation of the gap to the runner-up. It is scaled by the fraction of
+     * sites with a successful test, since an untested site could still win.
+     * \param best (Site) ie. from bestSiteSoFar().
+     * \return double 0.0 to 1.0.
+     */
+    public double confidenceOfBest(Site best) {
+        if (best == null) {
+            return 0d;
+        }
+        List<Site> siteList = new ArrayList<>(sites);
+        double bestValue;
+        double bestVar;
+        synchronized (best) {
+            if (best.size == 0) {
+                return 0d;
             }
+            bestValue = rankValue(best);
+            bestVar = meanVariance(best);
         }
-        return null;
+        if (Double.isNaN(bestValue) || bestValue == Double.POSITIVE_INFINITY) {
+            return 0d;
+        }
+
+        int tested = 0;
+        double confidence = 1d;
+        for (Site s : siteList) {
+            synchronized (s) {
+                if (s.size == 0) {
+                    continue;
+                }
+                tested++;
+                if (s == best) {
+                    continue;
+                }
+                double value = rankValue(s);
+                double p;
+                if (Double.isNaN(value)) {
+                    p = 0.5d;
+                } else if (value == Double.POSITIVE_INFINITY) {
+                    p = 1d; // Every recent test failed.
+                } else {
+                    double spread = Math.sqrt(bestVar + meanVariance(s));
+                    p = Double.isInfinite(spread) ? 0.5d : normalCdf((value - bestValue) / spread);
+                }
+                confidence = Math.min(confidence, p);
+            }
+        }
+        return confidence * tested / siteList.size();
+    }
+
+    // Variance of a site's time-decayed mean. Infinite with fewer than 2 samples.
+    private static double meanVariance(Site site) {
+        if (site.size < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double sd = Math.max(site.ewmaStddev, RACING_RESOLUTION_MS);
+        return sd * sd / site.size;
+    }
+
+    // Standard normal CDF, from the Abramowitz and Stegun 7.1.26 erf approximation (error < 1.5e-7).
+    static double normalCdf(double z) {
+        double x = Math.abs(z) / Math.sqrt(2d);
+        double t = 1d / (1d + 0.3275911d * x);
+        double erf = 1d - (((((1.061405429d * t - 1.453152027d) * t) + 1.421413741d) * t - 0.284496736d) * t + 0.254829592d) * t * Math.exp(-x * x);
+        return z >= 0 ? 0.5d * (1d + erf) : 0.5d * (1d - erf);
+    }
+
+    /*!
+     * Orders sites by latency history, best first, so they are tested (and, with no results yet,
+     * returned by bestSiteSoFar()) in that order. Sites without history go last, in the order added.
+     */
+    public void orderByHistory() {
+        // Sorts a new copy of the array, so iterations already running are not affected.
+        sites.sort(new Comparator<Site>() {
+            @Override
+            public int compare(Site s1, Site s2) {
+                boolean h1 = !Double.isNaN(s1.historyAverage);
+                boolean h2 = !Double.isNaN(s2.historyAverage);
+                if (h1 != h2) {
+                    return h1 ? -1 : 1;
+                }
+                return h1 ? Double.compare(s1.historyAverage, s2.historyAverage) : 0;
+            }
+        });
+        siteIndex.reorder(sites);
     }
 
     public double testSite(Site site) {
         double elapsed = -1;
-        String msg = null;
 
         switch (site.testType) {
             case CONNECT:
@@ -383,18 +787,38 @@ public class NetTest
                 elapsed = Ping(site);
             }
             break;
+            case UDP_ECHO:
+                // Records one result per datagram itself.
+                return UdpEcho(site);
+            case THROUGHPUT:
+                elapsed = Throughput(site);
+                break;
         }
+        recordSample(site, elapsed);
+        return elapsed;
+    }
+
+    /*!
+     * Records one test result in the site. Negative elapsed means the test failed.
+     */
+    void recordSample(Site site, double elapsed) {
+        String msg;
         synchronized (site) {
             site.lastPingMs = elapsed;
-            if (elapsed >= 0) {
+            if (elapsed < 0) {
+                site.addFailure();
+                updateScore(site);
+                updateRank(site);
+                Log.d(TAG, "site host: " + site.host + ", port: " + site.port + ", test failed. Failures: " + site.failures + " of " + site.attempts);
+            } else {
                 site.addSample(elapsed);
                 site.recalculateStats();
-                msg = "site host: " + site.host + ", port: " + site.port + ", L7Path: " + site.L7Path + ", rtt: " + elapsed + ", avg: " + site.average + ", stddev: " + site.stddev + ", from net interface id: " + site.network.toString();
+                updateScore(site);
+                updateRank(site);
+                msg = "site host: " + site.host + ", port: " + site.port + ", L7Path: " + site.L7Path + ", rtt: " + elapsed + ", avg: " + site.average + ", stddev: " + site.stddev + ", from net interface id: " + site.network;
                 Log.d(TAG, msg);
             }
         }
-
-        return elapsed;
     }
 
     /*!
@@ -403,84 +827,282 @@ public class NetTest
     public void testSites(long TimeoutMS) {
         Stopwatch testStopwatch = Stopwatch.createStarted();
 
-        synchronized (sites) {
-            Log.d(TAG, "Number of sites to test: " + sites.size());
-            for (Site s : sites) {
+        List<Site> siteList = new ArrayList<>(sites);
+        Log.d(TAG, "Number of sites to test: " + siteList.size());
+        for (Site s : siteList) {
+            if (TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS) < 0) {
+                Log.d(TAG, "Timeout hit.");
+                return;
+            }
+            for (int n = 0; n < s.samples.length; n++) {
+                testSite(s);
+            }
+        }
+    }
+
+    /*!
+     * Gather metrics for sites from a single thread. Plain host and port CONNECT sites are all
+     * probed at once with non-blocking sockets on one Selector, one round per sample. Other
+     * sites (L7Path, PING) are tested one at a time afterwards.
+     * \param TimeoutMS (long) overall deadline.
+     */
+    public void testSitesOnSelector(long TimeoutMS) {
+        Stopwatch testStopwatch = Stopwatch.createStarted();
+
+        List<Site> nioSites = new ArrayList<>();
+        List<Site> otherSites = new ArrayList<>();
+        int rounds = 0;
+        for (Site s : sites) {
+            if (NioConnectProber.canProbe(s)) {
+                nioSites.add(s);
+            } else {
+                otherSites.add(s);
+            }
+            rounds = Math.max(rounds, s.samples.length);
+        }
+        Log.d(TAG, "Number of sites to test: " + (nioSites.size() + otherSites.size()));
+
+        NioConnectProber prober = new NioConnectProber(this);
+        for (int n = 0; n < rounds && !nioSites.isEmpty(); n++) {
+            long remaining = TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS);
+            if (remaining <= 0) {
+                Log.d(TAG, "Timeout hit.");
+                return;
+            }
+            prober.probeRound(nioSites, Math.min(remaining, TestTimeoutMS));
+        }
+
+        for (Site s : otherSites) {
+            for (int n = 0; n < s.samples.length; n++) {
                 if (TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS) < 0) {
                     Log.d(TAG, "Timeout hit.");
                     return;
                 }
-                for (int n = 0; n < s.samples.length; n++) {
-                    testSite(s);
-                }
+                testSite(s);
             }
         }
     }
 
     /*!
      * Parallel gather of sites added to NetTest over on executorService configured in NetTest.
+     * All samples for all sites are queued at once, round by round, so a bounded executor still
+     * gives every site its first sample before any site gets a second. Everything shares one
+     * deadline. When it passes, queued probes are dropped and the stats gathered so far are kept.
+     * \param TimeoutMS (long) overall deadline.
      */
     public void testSitesOnExecutor(long TimeoutMS) {
-        Stopwatch testStopwatch = Stopwatch.createStarted();
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TimeoutMS);
 
-        synchronized (sites) {
-            for (final Site s : sites) {
-                if (TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS) < 0) {
-                    Log.d(TAG, "Timeout hit.");
-                    return;
-                }
+        List<Site> siteList = new ArrayList<>(sites);
+        int rounds = 0;
+        for (Site s : siteList) {
+            rounds = Math.max(rounds, s.samples.length);
+        }
 
-                // Create some CompletableFutures per round of sites:
-                CompletableFuture<Double>[] cfArray = new CompletableFuture[s.samples.length];
-                for (int n = 0; n < s.samples.length; n++) {
-                    CompletableFuture<Double> future;
-                    if (mExecutorService == null) {
-                        future = CompletableFuture.supplyAsync(new Supplier<Double>() {
-                            @Override
-                            public Double get() {
-                                return testSite(s);
-                            }
-                        });
-                    } else {
-                        future = CompletableFuture.supplyAsync(new Supplier<Double>() {
-                            @Override
-                            public Double get() {
-                                return testSite(s);
-                            }
-                        }, mExecutorService);
+        List<CompletableFuture<Double>> futures = new ArrayList<>();
+        for (int n = 0; n < rounds; n++) {
+            for (final Site s : siteList) {
+                if (n >= s.samples.length) {
+                    continue;
+                }
+                Supplier<Double> probe = new Supplier<Double>() {
+                    @Override
+                    public Double get() {
+                        if (System.nanoTime() - deadlineNanos >= 0) {
+                            return -1d; // Out of time. Skip.
+                        }
+                        return testSite(s);
                     }
-                    cfArray[n] = future;
+                };
+                futures.add(mExecutorService == null ?
+                        CompletableFuture.supplyAsync(probe) :
+                        CompletableFuture.supplyAsync(probe, mExecutorService));
+            }
+        }
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+        try {
+            all.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException te) {
+            int done = 0;
+            for (CompletableFuture<Double> f : futures) {
+                // Probes already running finish on their own TestTimeoutMS.
+                if (f.isDone() || !f.cancel(false)) {
+                    done++;
                 }
+            }
+            Log.d(TAG, "Timeout hit. Probes finished or running: " + done + " of " + futures.size());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            for (CompletableFuture<Double> f : futures) {
+                f.cancel(false);
+            }
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Probe failure: " + ee.getMessage());
+        }
+    }
+
+    /*!
+     * Half width of the 95% confidence interval on a site's time-decayed mean latency, from
+     * ewmaStddev. Infinite until the site has 2 samples. Never narrower than RACING_RESOLUTION_MS,
+     * since blocking probes are timed in whole milliseconds and identical samples would otherwise
+     * give a zero width interval.
+     * \param site (Site)
+     * \return double milliseconds
+     */
+    static double confidenceHalfWidth(Site site) {
+        int n = site.size;
+        if (n < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double t = (n - 1) < T_95.length ? T_95[n - 1] : 1.96d;
+        return Math.max(t * site.ewmaStddev / Math.sqrt(n), RACING_RESOLUTION_MS);
+    }
 
-                // Wait for all to complete:
-                CompletableFuture.allOf(cfArray).join(); // Every test has TimeoutMS.
+    /*!
+     * Drops sites that are clearly worse than the leader, by the ranking's value (loss-penalized
+     * EWMA latency, or SiteScorer score): a site goes once the lower bound of its interval is
+     * above the upper bound of the best interval. Sites without any successful sample, or whose
+     * recent tests all failed, are dropped too.
+     */
+    private void eliminate(List<Site> contenders) {
+        double bestUpper = Double.POSITIVE_INFINITY;
+        for (Site s : contenders) {
+            synchronized (s) {
+                if (s.size > 0) {
+                    bestUpper = Math.min(bestUpper, rankValue(s) + confidenceHalfWidth(s));
+                }
+            }
+        }
+
+        Iterator<Site> it = contenders.iterator();
+        while (it.hasNext()) {
+            Site s = it.next();
+            synchronized (s) {
+                double value = rankValue(s);
+                if (s.size == 0 || value == Double.POSITIVE_INFINITY || value - confidenceHalfWidth(s) > bestUpper) {
+                    Log.d(TAG, "Dropping site from race: " + s.host + ":" + s.port + ", value: " + value + ", samples: " + s.size);
+                    it.remove();
+                }
             }
         }
     }
 
+    private int probeRacingRound(NioConnectProber prober, List<Site> round, Stopwatch testStopwatch, long TimeoutMS) {
+        List<Site> nioSites = new ArrayList<>();
+        List<Site> otherSites = new ArrayList<>();
+        for (Site s : round) {
+            if (NioConnectProber.canProbe(s)) {
+                nioSites.add(s);
+            } else {
+                otherSites.add(s);
+            }
+        }
+
+        int probes = 0;
+        if (!nioSites.isEmpty()) {
+            long remaining = TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS);
+            prober.probeRound(nioSites, Math.min(remaining, TestTimeoutMS));
+            probes += nioSites.size();
+        }
+        for (Site s : otherSites) {
+            if (TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS) < 0) {
+                break;
+            }
+            testSite(s);
+            probes++;
+        }
+        return probes;
+    }
+
+    /*!
+     * Gather metrics for sites, stopping early on sites that are clearly not going to win.
+     * Every site is probed once per round. After RACING_MIN_SAMPLES rounds, a site is dropped
+     * from the race once its 95% confidence interval lies entirely above the leader's, so later
+     * rounds only spend probes on close contenders. The race ends when one site remains, each
+     * site's sample window is full, or the deadline passes. Dropped sites keep the stats they
+     * have, so bestSite() still ranks every site.
+     * Sites should be created with more samples than usual (ie. RACING_MAX_SAMPLES), since the
+     * window bounds how long close contenders are sampled.
+     * \param TimeoutMS (long) overall deadline.
+     * \return int number of probes run.
+     */
+    public int testSitesRacing(long TimeoutMS) {
+        Stopwatch testStopwatch = Stopwatch.createStarted();
+
+        List<Site> contenders = new ArrayList<>(sites);
+        int rounds = 0;
+        for (Site s : contenders) {
+            rounds = Math.max(rounds, s.samples.length);
+        }
+        Log.d(TAG, "Number of sites to race: " + contenders.size());
+
+        NioConnectProber prober = new NioConnectProber(this);
+        int probes = 0;
+        for (int n = 0; n < rounds && !contenders.isEmpty(); n++) {
+            if (TimeoutMS - testStopwatch.elapsed(TimeUnit.MILLISECONDS) <= 0) {
+                Log.d(TAG, "Timeout hit.");
+                break;
+            }
+            List<Site> round = new ArrayList<>();
+            for (Site s : contenders) {
+                if (n < s.samples.length) {
+                    round.add(s);
+                }
+            }
+            probes += probeRacingRound(prober, round, testStopwatch, TimeoutMS);
+
+            if (n + 1 >= RACING_MIN_SAMPLES) {
+                eliminate(contenders);
+                if (contenders.size() <= 1) {
+                    break;
+                }
+            }
+        }
+        Log.d(TAG, "Race finished with " + contenders.size() + " contender(s), probes run: " + probes);
+        return probes;
+    }
+
     /*!
-     * Basic utility function to connect and disconnect from any TCP port.
+     * Tests every site, every TestIntervalMS, on the calling thread until runTest is false.
+     * doTest(true) runs the same rounds on a shared executor instead.
      */
     public void RunNetTest()
     {
         while (runTest) {
-            double elapsed = -1d;
+            runTestRound(continuousTestGeneration);
             try {
-                synchronized (sites) {
-                    for (Site site : sites) {
-                        testSite(site);
-                    }
-                    sites.notifyAll(); // Notify all netTests that's waiting() a test run cycle is done.
-                    // Must run inside a thread:
-                    Thread.sleep(TestIntervalMS);
-                }
+                Thread.sleep(TestIntervalMS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
             }
-            catch (Exception ie) {
-                // Nothing.
-                Log.e(TAG, "Exception during test");
+        }
+    }
+
+    // One round of continuous tests, on a snapshot of the sites. Stops early on doTest(false).
+    private void runTestRound(int generation) {
+        try {
+            for (Site site : sites) {
+                if (!runTest || generation != continuousTestGeneration) {
+                    return;
+                }
+                testSite(site);
             }
+            completedRounds.incrementAndGet();
+        } catch (Exception e) {
+            // Must not throw, or the executor cancels the remaining rounds.
+            Log.e(TAG, "Exception during test: " + e.getMessage());
         }
     }
 
+    /*!
+     * Rounds of continuous tests completed, ie. to see that new stats are available.
+     * \return long
+     */
+    public long getCompletedRounds() {
+        return completedRounds.get();
+    }
+
 }
 
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*!
+ * Runs TCP connect probes to many Sites at once from one thread. Each Site gets a non-blocking
+ * SocketChannel bound to its Network, and all of them wait on one Selector. A probe is timed
+ * from the connect() call until the channel is ready for OP_CONNECT.
+ * \ingroup classes_util
+ */
+class NioConnectProber {
+    public static final String TAG = "NioConnectProber";
+
+    private static final class Probe {
+        final Site site;
+        final SocketChannel channel;
+        final long startNanos;
+
+        Probe(Site site, SocketChannel channel, long startNanos) {
+            this.site = site;
+            this.channel = channel;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final NetTest mNetTest;
+    // Resolved once per prober, so later rounds do not pay for DNS again.
+    private final Map<Site, InetAddress> mAddresses = new HashMap<>();
+
+    NioConnectProber(NetTest netTest) {
+        mNetTest = netTest;
+    }
+
+    /*!
+     * Only plain host and port CONNECT sites can be probed with a SocketChannel.
+     */
+    static boolean canProbe(Site site) {
+        return site.testType == NetTest.TestType.CONNECT && site.L7Path == null && site.network != null;
+    }
+
+    private InetAddress resolve(Site site) throws IOException {
+        InetAddress address = mAddresses.get(site);
+        if (address == null) {
+            address = site.network.getByName(site.host);
+            mAddresses.put(site, address);
+        }
+        return address;
+    }
+
+    /*!
+     * Runs one connect probe against every site, all in flight together, and records the results
+     * in each Site. Sites that do not connect before the deadline record a failed (-1) test.
+     * Addresses are resolved before any probe starts, so DNS time is not added to a probe. The
+     * deadline covers the whole round, DNS included.
+     * \param sites (List<Site>) Sites that pass canProbe().
+     * \param timeoutMs (long) Deadline for this round.
+     * \return int number of successful probes.
+     */
+    int probeRound(List<Site> sites, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int successes = 0;
+        List<Probe> pending = new ArrayList<>();
+        Selector selector = null;
+
+        // Resolve first. A lookup cannot be cut short, but no more are started after the deadline.
+        List<Site> resolved = new ArrayList<>(sites.size());
+        for (Site site : sites) {
+            if (deadline - System.nanoTime() <= 0) {
+                mNetTest.recordSample(site, -1);
+                continue;
+            }
+            try {
+                resolve(site);
+                resolved.add(site);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "Cannot resolve " + site.host + ", " + e.getMessage());
+                mNetTest.recordSample(site, -1);
+            }
+        }
+
+        try {
+            selector = Selector.open();
+            for (Site site : resolved) {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    site.network.bindSocket(channel.socket());
+
+                    long start = System.nanoTime();
+                    if (channel.connect(new InetSocketAddress(mAddresses.get(site), site.port))) {
+                        // Connected right away (ie. loopback).
+                        mNetTest.recordSample(site, elapsedMs(start));
+                        successes++;
+                        channel.close();
+                    } else {
+                        Probe probe = new Probe(site, channel, start);
+                        channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                        pending.add(probe);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.d(TAG, "Cannot start probe to " + site.host + ":" + site.port + ", " + e.getMessage());
+                    mNetTest.recordSample(site, -1);
+                    closeQuietly(channel);
+                }
+                // Time early connects now, not after the rest have started.
+                if (selector.selectNow() > 0) {
+                    successes += completeSelected(selector, pending);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    break;
+                }
+                selector.select(remainingMs);
+                successes += completeSelected(selector, pending);
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Selector failure: " + ioe.getMessage());
+        } finally {
+            // Whatever is left timed out.
+            for (Probe probe : pending) {
+                mNetTest.recordSample(probe.site, -1);
+                closeQuietly(probe.channel);
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                    // Done.
+                }
+            }
+        }
+        return successes;
+    }
+
+    // Records the probes whose connect finished. Returns the number that succeeded.
+    private int completeSelected(Selector selector, List<Probe> pending) {
+        int successes = 0;
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Probe probe = (Probe) key.attachment();
+            key.cancel();
+            pending.remove(probe);
+            try {
+                if (probe.channel.finishConnect()) {
+                    mNetTest.recordSample(probe.site, elapsedMs(probe.startNanos));
+                    successes++;
+                } else {
+                    mNetTest.recordSample(probe.site, -1);
+                }
+            } catch (IOException ioe) {
+                mNetTest.recordSample(probe.site, -1);
+            } finally {
+                closeQuietly(probe.channel);
+            }
+        }
+        return successes;
+    }
+
+    private static double elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000d;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // Done.
+        }
+    }
+}
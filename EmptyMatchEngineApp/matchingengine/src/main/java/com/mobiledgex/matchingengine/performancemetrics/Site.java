@@ -20,6 +20,7 @@ package com.mobiledgex.matchingengine.performancemetrics;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
+import android.os.SystemClock;
 import android.util.Log;
 
 import distributed_match_engine.AppClient;
@@ -44,13 +45,60 @@ public class Site
     int idx;
     int size;
     public double[] samples;
+    // Monotonic (SystemClock.elapsedRealtimeNanos()) time of each sample, same slots as samples.
+    long[] sampleTimesNs;
 
     public double average;
     public double stddev;
 
+    // Time-decayed EWMA over all samples. A sample's weight halves every ewmaHalfLifeMs, so the
+    // estimate follows current network conditions. Used for ranking and latency triggers.
+    public static final long DEFAULT_EWMA_HALF_LIFE_MS = 10 * 1000;
+    public double ewmaAverage = Double.NaN;
+    public double ewmaStddev;
+    private long ewmaHalfLifeNs = DEFAULT_EWMA_HALF_LIFE_MS * 1000000L;
+    private double ewmaWeight;
+    private double ewmaMean;
+    private double ewmaS; // Decayed weighted sum of squared deviations.
+    private long ewmaLastNs;
+
+    // Last SiteScorer score, set by NetTest after each test of this site. Lower is better.
+    public double score = Double.NaN;
+
+    // Test attempts and failures (timeout, refused, unreachable), since the Site was created.
+    public int attempts;
+    public int failures;
+    // Same, decayed with the EWMA half-life, for lossRate().
+    private double decayedAttempts;
+    private double decayedFailures;
+    private long lossLastNs;
+    // CONNECT tests with an L7Path: last GET time on a new connection (connect, TLS handshake and
+    // request), or NaN. In NetTest.L7ProbeMode.WARM, samples are warm requests and exclude this.
+    public double coldRequestMs = Double.NaN;
+    // UDP_ECHO tests: echoes that arrived after an echo of a later datagram.
+    public int reordered;
+    // THROUGHPUT tests: URL to download from, instead of L7Path. Null uses L7Path, or the raw
+    // host and port if there is no L7Path.
+    public String throughputL7Path;
+    // Last NetTest.Throughput() results, or NaN if none succeeded yet.
+    public double throughputMbps = Double.NaN;
+    public double uploadMbps = Double.NaN;
+    public double ttfbMs = Double.NaN;
+
+    // Running (Welford) mean and sum of squared deviations over the sample window.
+    private int statCount;
+    private double runningMean;
+    private double runningM2;
+    // Percentiles over the same sample window.
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
     public AppClient.Appinstance appInstance;
     public LocOuterClass.Loc cloudlet_location;
 
+    // Decayed latency from earlier tests (LatencyHistoryStore), or NaN. Not part of the sample window.
+    public double historyAverage = Double.NaN;
+    public double historyStddev;
+
     public static final int DEFAULT_NUM_SAMPLES = 3;
 
     /*!
@@ -72,6 +120,7 @@ public class Site
             numSamples = DEFAULT_NUM_SAMPLES;
         }
         samples = new double[numSamples];
+        sampleTimesNs = new long[numSamples];
         for (int i = 0; i < samples.length; i++) {
             samples[i] = -1;
         }
@@ -96,6 +145,7 @@ public class Site
             numSamples = DEFAULT_NUM_SAMPLES;
         }
         samples = new double[numSamples];
+        sampleTimesNs = new long[numSamples];
         for (int i = 0; i < samples.length; i++) {
             samples[i] = -1;
         }
@@ -115,37 +165,284 @@ public class Site
         return this.cloudlet_location = cloudlet_location;
     }
 
+    /*!
+     * Adds a sample to the window, replacing the oldest once the window is full. Running stats
+     * and the histogram are updated in constant time.
+     * \param time (double)
+     */
     public void addSample(double time)
     {
+        addSample(time, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /*!
+     * Adds a sample taken at a specific monotonic time.
+     * \param time (double) latency, in milliseconds.
+     * \param timestampNs (long) SystemClock.elapsedRealtimeNanos() when the sample was taken.
+     */
+    public void addSample(double time, long timestampNs)
+    {
+        if (size == samples.length) {
+            // Window is full, idx is the oldest sample.
+            removeFromStats(samples[idx]);
+        }
         samples[idx] = time;
+        sampleTimesNs[idx] = timestampNs;
+        addToStats(time);
+        addToEwma(time, timestampNs);
+        addAttempt(false, timestampNs);
         idx++;
         if (size < samples.length) size++;
         idx = idx % samples.length;
+        if (idx == 0) {
+            // Once per pass over the window, recompute exactly so add/remove rounding can't drift.
+            resyncStats();
+        }
+        statsChanged();
     }
 
-    public boolean hasSuccessfulTests() {
-        return size > 0;
+    private void addToStats(double x) {
+        statCount++;
+        double delta = x - runningMean;
+        runningMean += delta / statCount;
+        runningM2 += delta * (x - runningMean);
+        histogram.add(x);
     }
 
-    public void recalculateStats()
+    /*!
+     * Records a failed test: timeout, refused connection, or unreachable. There is no sample.
+     */
+    public void addFailure()
     {
-        double acc = 0d;
-        double vsum = 0d;
-        double d;
+        addFailure(SystemClock.elapsedRealtimeNanos());
+    }
 
-        for (int i = 0; i < size; i++) {
-            acc += samples[i];
+    /*!
+     * Records a failed test at a specific monotonic time.
+     * \param timestampNs (long) SystemClock.elapsedRealtimeNanos() when the test failed.
+     */
+    public void addFailure(long timestampNs)
+    {
+        addAttempt(true, timestampNs);
+        statsChanged();
+    }
+
+    private void addAttempt(boolean failed, long timestampNs) {
+        if (decayedAttempts > 0d) {
+            long ageNs = Math.max(0L, timestampNs - lossLastNs);
+            double decay = Math.pow(0.5d, (double) ageNs / ewmaHalfLifeNs);
+            decayedAttempts *= decay;
+            decayedFailures *= decay;
+        }
+        attempts++;
+        decayedAttempts += 1d;
+        if (failed) {
+            failures++;
+            decayedFailures += 1d;
+        }
+        lossLastNs = Math.max(lossLastNs, timestampNs);
+    }
+
+    /*!
+     * Fraction of recent tests that failed. Older tests count less, like ewmaAverage.
+     * \return double 0.0 to 1.0. 0 if there are no tests yet.
+     */
+    public double lossRate() {
+        return decayedAttempts > 0d ? decayedFailures / decayedAttempts : 0d;
+    }
+
+    /*!
+     * Expected latency when each failed test costs a retry after penaltyMs. With loss rate p, that
+     * is ewmaAverage + penaltyMs * p / (1 - p).
+     * \param penaltyMs (double) cost of one failure, ie. a probe timeout.
+     * \return double. Infinity if every recent test failed. NaN if there are no samples.
+     */
+    public double lossPenalizedAverage(double penaltyMs) {
+        double p = lossRate();
+        if (p >= 1d) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ewmaAverage + penaltyMs * p / (1d - p);
+    }
+
+    private void addToEwma(double x, long timestampNs) {
+        if (ewmaWeight > 0d) {
+            // Samples from concurrent tests may arrive slightly out of order. Treat as same time.
+            long ageNs = Math.max(0L, timestampNs - ewmaLastNs);
+            double decay = Math.pow(0.5d, (double) ageNs / ewmaHalfLifeNs);
+            ewmaWeight *= decay;
+            ewmaS *= decay;
+        }
+        ewmaWeight += 1d;
+        double delta = x - ewmaMean;
+        ewmaMean += delta / ewmaWeight;
+        ewmaS += delta * (x - ewmaMean);
+        ewmaLastNs = Math.max(ewmaLastNs, timestampNs);
+    }
+
+    /*!
+     * Sets how fast older samples lose weight in ewmaAverage and ewmaStddev.
+     * \param halfLifeMs (long) age at which a sample counts half as much as a new one. Must be > 0.
+     */
+    public void setEwmaHalfLifeMs(long halfLifeMs) {
+        if (halfLifeMs <= 0) {
+            throw new IllegalArgumentException("EWMA half-life must be positive.");
+        }
+        ewmaHalfLifeNs = halfLifeMs * 1000000L;
+    }
+
+    public long getEwmaHalfLifeMs() {
+        return ewmaHalfLifeNs / 1000000L;
+    }
+
+    /*!
+     * Decayed number of samples behind ewmaAverage, as of now. Near 0 means the estimate is stale.
+     * \return double
+     */
+    public double ewmaWeight() {
+        if (ewmaWeight <= 0d) {
+            return 0d;
         }
-        average = acc / size;
+        long ageNs = Math.max(0L, SystemClock.elapsedRealtimeNanos() - ewmaLastNs);
+        return ewmaWeight * Math.pow(0.5d, (double) ageNs / ewmaHalfLifeNs);
+    }
+
+    /*!
+     * Wall clock time of a sample in the window.
+     * \param index (int) index into samples.
+     * \return long milliseconds since epoch, or 0 if there is no sample there.
+     */
+    public long sampleTimeMillis(int index) {
+        if (index < 0 || index >= samples.length || samples[index] < 0) {
+            return 0;
+        }
+        long ageMs = (SystemClock.elapsedRealtimeNanos() - sampleTimesNs[index]) / 1000000L;
+        return System.currentTimeMillis() - ageMs;
+    }
+
+    private void removeFromStats(double x) {
+        histogram.remove(x);
+        if (statCount <= 1) {
+            statCount = 0;
+            runningMean = 0d;
+            runningM2 = 0d;
+            return;
+        }
+        double oldMean = runningMean;
+        runningMean = (statCount * runningMean - x) / (statCount - 1);
+        runningM2 -= (x - oldMean) * (x - runningMean);
+        if (runningM2 < 0d) {
+            runningM2 = 0d;
+        }
+        statCount--;
+    }
+
+    private void resyncStats() {
+        double mean = 0d;
+        double m2 = 0d;
         for (int i = 0; i < size; i++) {
-            d = samples[i];
-            vsum += (d - average) * (d - average);
+            double delta = samples[i] - mean;
+            mean += delta / (i + 1);
+            m2 += delta * (samples[i] - mean);
+        }
+        statCount = size;
+        runningMean = mean;
+        runningM2 = m2;
+    }
+
+    /*!
+     * Seeds the stats from latency history. Until the first sample, average and stddev report
+     * the history. Samples replace it.
+     * \param average (double)
+     * \param stddev (double)
+     */
+    public void seedHistory(double average, double stddev) {
+        historyAverage = average;
+        historyStddev = stddev;
+        recalculateStats();
+    }
+
+    // Last published stats. Replaced, never changed, so readers need no lock.
+    private volatile SiteStats stats;
+    // NetTest this site was last added to. Its ranking is told when the stats change.
+    volatile NetTest owner;
+
+    private void statsChanged() {
+        NetTest netTest = owner;
+        if (netTest != null) {
+            netTest.markChanged(this);
+        }
+    }
+
+    /*!
+     * Publishes an immutable copy of the current stats. NetTest does this after each result.
+     * \return SiteStats
+     */
+    public synchronized SiteStats publishStats() {
+        return stats = new SiteStats(this);
+    }
+
+    /*!
+     * Last published stats, without locking. Stats changed outside of NetTest tests are seen
+     * after the next ranked read of its NetTest (ie. bestSite()), or publishStats().
+     * \return SiteStats
+     */
+    public SiteStats getStats() {
+        SiteStats s = stats;
+        return s != null ? s : publishStats();
+    }
+
+    public boolean hasSuccessfulTests() {
+        return size > 0;
+    }
+
+    /*!
+     * Updates average, stddev, ewmaAverage and ewmaStddev from the running stats. Constant time.
+     */
+    public void recalculateStats()
+    {
+        if (ewmaWeight > 0d) {
+            ewmaAverage = ewmaMean;
+            ewmaStddev = Math.sqrt(ewmaS / ewmaWeight);
+        } else {
+            ewmaAverage = historyAverage;
+            ewmaStddev = Double.isNaN(historyAverage) ? 0d : historyStddev;
         }
-        if (size > 1) {
-            // Bias Corrected Sample Variance
-            vsum /= (size - 1);
+        if (statCount == 0) {
+            average = historyAverage;
+            stddev = Double.isNaN(historyAverage) ? 0d : historyStddev;
+        } else {
+            average = runningMean;
+            double variance = runningM2;
+            if (statCount > 1) {
+                // Bias Corrected Sample Variance
+                variance /= (statCount - 1);
+            }
+            stddev = Math.sqrt(variance);
         }
-        stddev = Math.sqrt(vsum);
+        statsChanged();
+    }
+
+    /*!
+     * Latency at a quantile of the sample window, from a log-bucketed histogram. Accurate to
+     * within LatencyHistogram.RELATIVE_ERROR.
+     * \param quantile (double) 0.0 to 1.0, ie. 0.9 for p90.
+     * \return double. NaN if there are no samples.
+     */
+    public double percentile(double quantile) {
+        return histogram.percentile(quantile);
+    }
+
+    public double p50() {
+        return histogram.percentile(0.50d);
+    }
+
+    public double p90() {
+        return histogram.percentile(0.90d);
+    }
+
+    public double p99() {
+        return histogram.percentile(0.99d);
     }
 
     /*!
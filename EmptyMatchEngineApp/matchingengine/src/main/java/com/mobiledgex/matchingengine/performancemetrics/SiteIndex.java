@@ -0,0 +1,192 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*!
+ * Hash lookups and a ranking of the Sites in a NetTest. Lookups match Site.sameSite(): same
+ * L7Path, or same host and port. The ranking is a skip list of immutable rank keys, moved when
+ * a site's stats change, so the best site is the head of the list.
+ *
+ * Adds are serialized. Reads never lock, and see each site at its last ranked position.
+ * \ingroup classes_util
+ */
+class SiteIndex {
+    public static final String TAG = "SiteIndex";
+
+    /*!
+     * Immutable rank key. Tested sites first, by value, then tiebreak. Then by order added.
+     */
+    static final class Rank implements Comparable<Rank> {
+        final Site site;
+        final boolean tested;
+        final double value;
+        final double tiebreak;
+        final long order;
+
+        Rank(Site site, boolean tested, double value, double tiebreak, long order) {
+            this.site = site;
+            this.tested = tested;
+            this.value = value;
+            this.tiebreak = tiebreak;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Rank o) {
+            if (tested != o.tested) {
+                return tested ? -1 : 1;
+            }
+            int c = Double.compare(value, o.value);
+            if (c != 0) {
+                return c;
+            }
+            c = Double.compare(tiebreak, o.tiebreak);
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(order, o.order); // Unique per site.
+        }
+    }
+
+    private final ConcurrentHashMap<String, Site> mByL7Path = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Site> mByHostPort = new ConcurrentHashMap<>();
+    // getSite() lookups, by host or L7Path. First site added wins.
+    private final ConcurrentHashMap<String, Site> mByName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Rank> mRanks = new ConcurrentSkipListSet<>();
+    // Sites have no equals(), so this is keyed by identity.
+    private final ConcurrentHashMap<Site, Rank> mRankOf = new ConcurrentHashMap<>();
+    private final AtomicLong mOrder = new AtomicLong();
+
+    private static String hostPort(Site site) {
+        return site.host + ":" + site.port;
+    }
+
+    /*!
+     * \param site (Site)
+     * \return Site already indexed that is the same site, or null.
+     */
+    Site find(Site site) {
+        if (site.L7Path != null) {
+            Site s = mByL7Path.get(site.L7Path);
+            if (s != null) {
+                return s;
+            }
+        }
+        return mByHostPort.get(hostPort(site));
+    }
+
+    /*!
+     * Indexes a site, unranked until its first rank update.
+     * \return boolean false if the same site is already indexed.
+     */
+    synchronized boolean add(Site site) {
+        if (find(site) != null) {
+            return false;
+        }
+        if (site.L7Path != null) {
+            mByL7Path.put(site.L7Path, site);
+            mByName.putIfAbsent(site.L7Path, site);
+        }
+        mByHostPort.put(hostPort(site), site);
+        if (site.host != null) {
+            mByName.putIfAbsent(site.host, site);
+        }
+        Rank rank = new Rank(site, false, Double.POSITIVE_INFINITY, 0d, mOrder.getAndIncrement());
+        mRankOf.put(site, rank);
+        mRanks.add(rank);
+        return true;
+    }
+
+    Site get(String hostOrL7Path) {
+        return hostOrL7Path == null ? null : mByName.get(hostOrL7Path);
+    }
+
+    /*!
+     * Moves a site to its new rank. Callers hold the site lock, so updates to one site do not
+     * interleave. The new key goes in before the old one comes out, so readers never miss the site.
+     */
+    void update(Site site, boolean tested, double value, double tiebreak) {
+        Rank old = mRankOf.get(site);
+        if (old == null) {
+            return; // Not indexed.
+        }
+        Rank rank = new Rank(site, tested, value, tiebreak, old.order);
+        if (rank.compareTo(old) == 0) {
+            return;
+        }
+        mRanks.add(rank);
+        mRankOf.put(site, rank);
+        mRanks.remove(old);
+    }
+
+    /*!
+     * Reassigns the order added, ie. for sites without test results yet.
+     * \param order (List<Site>) sites, first to last.
+     */
+    void reorder(List<Site> order) {
+        for (Site site : order) {
+            synchronized (site) {
+                Rank old = mRankOf.get(site);
+                if (old == null) {
+                    continue;
+                }
+                Rank rank = new Rank(site, old.tested, old.value, old.tiebreak, mOrder.getAndIncrement());
+                mRanks.add(rank);
+                mRankOf.put(site, rank);
+                mRanks.remove(old);
+            }
+        }
+    }
+
+    /*!
+     * \return Site ranked first, or null if there are no sites.
+     */
+    Site first() {
+        Iterator<Rank> it = mRanks.iterator();
+        return it.hasNext() ? it.next().site : null;
+    }
+
+    /*!
+     * \return List<Site> every site, best first.
+     */
+    List<Site> ranked() {
+        List<Site> list = new ArrayList<>(mRankOf.size());
+        // A site moving during the walk can be seen at both its old and new ranks.
+        Set<Site> seen = Collections.newSetFromMap(new IdentityHashMap<Site, Boolean>());
+        for (Rank rank : mRanks) {
+            if (seen.add(rank.site)) {
+                list.add(rank.site);
+            }
+        }
+        return list;
+    }
+
+    int size() {
+        return mRankOf.size();
+    }
+}
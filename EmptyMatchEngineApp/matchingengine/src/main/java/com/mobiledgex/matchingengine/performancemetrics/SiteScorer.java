@@ -0,0 +1,223 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import android.location.Location;
+import android.net.Network;
+
+import java.util.Comparator;
+
+import distributed_match_engine.LocOuterClass;
+
+/*!
+ * Scores a Site from weighted objectives: mean latency, a tail percentile, jitter, loss, throughput,
+ * distance, cellular signal strength, and a bonus for staying on the current cloudlet. Each objective is
+ * converted to milliseconds, and the score is their weighted sum. Lower is better.
+ * Use a preset (gaming(), streaming(), bulkTransfer()), or set Weights directly.
+ * \ingroup classes_util
+ */
+public class SiteScorer {
+    public static final String TAG = "SiteScorer";
+    // Highest SignalStrength.getLevel().
+    public static final int MAX_SIGNAL_LEVEL = 4;
+
+    /*!
+     * Objective weights. Each converts one objective to milliseconds of score.
+     */
+    public static class Weights {
+        public double mean = 1d; //!< per ms of time-decayed average latency.
+        public double tail = 0d; //!< per ms of latency at tailQuantile.
+        public double tailQuantile = 0.9d; //!< 0.0 to 1.0, ie. 0.99 for p99.
+        public double jitter = 0d; //!< per ms of time-decayed latency stddev.
+        public double lossPenaltyMs = NetTest.LOSS_PENALTY_MS; //!< cost of one failed test. Adds lossPenaltyMs * p / (1 - p), for loss rate p.
+        public double perKm = 0d; //!< per km from the device to the cloudlet.
+        public double perMissingSignalLevel = 0d; //!< per signal level below MAX_SIGNAL_LEVEL, for sites tested over cellular.
+        public double stickinessBonusMs = 0d; //!< subtracted for the current cloudlet, so small gains do not cause a switch.
+        public double targetMbps = 0d; //!< download throughput the app needs. Sites without a throughput test are not penalized.
+        public double perMissingMbps = 0d; //!< per Mbps of measured throughput below targetMbps.
+
+        public Weights() {
+        }
+
+        public Weights(Weights weights) {
+            mean = weights.mean;
+            tail = weights.tail;
+            tailQuantile = weights.tailQuantile;
+            jitter = weights.jitter;
+            lossPenaltyMs = weights.lossPenaltyMs;
+            perKm = weights.perKm;
+            perMissingSignalLevel = weights.perMissingSignalLevel;
+            stickinessBonusMs = weights.stickinessBonusMs;
+            targetMbps = weights.targetMbps;
+            perMissingMbps = weights.perMissingMbps;
+        }
+
+        @Override
+        public String toString() {
+            return "Weights{mean=" + mean + ", tail=" + tail + ", tailQuantile=" + tailQuantile +
+                    ", jitter=" + jitter + ", lossPenaltyMs=" + lossPenaltyMs + ", perKm=" + perKm +
+                    ", perMissingSignalLevel=" + perMissingSignalLevel +
+                    ", stickinessBonusMs=" + stickinessBonusMs +
+                    ", targetMbps=" + targetMbps + ", perMissingMbps=" + perMissingMbps + "}";
+        }
+    }
+
+    /*!
+     * What the device knows at the time of a test. Same for every site in the test.
+     */
+    public static final class Context {
+        final LocOuterClass.Loc deviceLocation;
+        final String currentFqdn;
+        final int signalLevel;
+        final Network cellularNetwork;
+
+        /*!
+         * \param deviceLocation (Loc) may be null.
+         * \param currentFqdn (String) AppInst fqdn of the current cloudlet. May be null.
+         * \param signalLevel (int) 0 to MAX_SIGNAL_LEVEL, or -1 if unknown.
+         * \param cellularNetwork (Network) cellular network used for tests, or null.
+         */
+        public Context(LocOuterClass.Loc deviceLocation, String currentFqdn, int signalLevel, Network cellularNetwork) {
+            this.deviceLocation = deviceLocation;
+            this.currentFqdn = currentFqdn;
+            this.signalLevel = signalLevel;
+            this.cellularNetwork = cellularNetwork;
+        }
+    }
+
+    /*!
+     * Orders sites by their last computed score. Sites without samples go last.
+     */
+    public static final Comparator<Site> SCORE_COMPARATOR = new Comparator<Site>() {
+        @Override
+        public int compare(Site s1, Site s2) {
+            // If there's no samples, the other is automatically better.
+            if (s1.size == 0 || s2.size == 0) {
+                return s1.size > s2.size ? -1 : (s1.size < s2.size ? 1 : 0);
+            }
+            return Double.compare(s1.score, s2.score);
+        }
+    };
+
+    private final Weights mWeights;
+
+    public SiteScorer(Weights weights) {
+        mWeights = new Weights(weights);
+    }
+
+    /*!
+     * Favors low tail latency and jitter, and avoids loss. Nearby cloudlets are slightly preferred.
+     */
+    public static SiteScorer gaming() {
+        Weights w = new Weights();
+        w.mean = 0.5d;
+        w.tail = 0.5d;
+        w.tailQuantile = 0.99d;
+        w.jitter = 2d;
+        w.lossPenaltyMs = 1000d;
+        w.perKm = 0.01d;
+        w.perMissingSignalLevel = 10d;
+        w.stickinessBonusMs = 5d;
+        return new SiteScorer(w);
+    }
+
+    /*!
+     * Favors steady delivery over the lowest latency, and avoids switching mid-stream.
+     */
+    public static SiteScorer streaming() {
+        Weights w = new Weights();
+        w.mean = 0.5d;
+        w.tail = 1d;
+        w.tailQuantile = 0.9d;
+        w.jitter = 0.5d;
+        w.lossPenaltyMs = 2000d;
+        w.perMissingSignalLevel = 15d;
+        w.stickinessBonusMs = 20d;
+        w.targetMbps = 8d;
+        w.perMissingMbps = 10d;
+        return new SiteScorer(w);
+    }
+
+    /*!
+     * Favors short, reliable paths. Latency variation matters little, but loss and a weak cellular
+     * signal cut throughput, and a transfer in progress should not move.
+     */
+    public static SiteScorer bulkTransfer() {
+        Weights w = new Weights();
+        w.mean = 1d;
+        w.lossPenaltyMs = 1000d;
+        w.perKm = 0.005d;
+        w.perMissingSignalLevel = 20d;
+        w.stickinessBonusMs = 50d;
+        w.targetMbps = 50d;
+        w.perMissingMbps = 4d;
+        return new SiteScorer(w);
+    }
+
+    public Weights getWeights() {
+        return new Weights(mWeights);
+    }
+
+    /*!
+     * \param site (Site) with stats already calculated.
+     * \param context (Context) may be null.
+     * \return double milliseconds. Lower is better. Infinity if the site has no samples, or every recent test failed.
+     */
+    public double score(Site site, Context context) {
+        if (site.size == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        Weights w = mWeights;
+        double score = w.mean * site.ewmaAverage + w.jitter * site.ewmaStddev;
+        if (w.tail != 0d) {
+            score += w.tail * site.percentile(w.tailQuantile);
+        }
+        double p = site.lossRate();
+        if (p >= 1d) {
+            return Double.POSITIVE_INFINITY;
+        }
+        score += w.lossPenaltyMs * p / (1d - p);
+        if (w.perMissingMbps != 0d && !Double.isNaN(site.throughputMbps)) {
+            score += w.perMissingMbps * Math.max(0d, w.targetMbps - site.throughputMbps);
+        }
+
+        if (context == null) {
+            return score;
+        }
+        if (w.perKm != 0d && context.deviceLocation != null && site.cloudlet_location != null) {
+            float[] results = new float[1];
+            Location.distanceBetween(context.deviceLocation.getLatitude(), context.deviceLocation.getLongitude(),
+                    site.cloudlet_location.getLatitude(), site.cloudlet_location.getLongitude(), results);
+            score += w.perKm * results[0] / 1000d;
+        }
+        if (w.perMissingSignalLevel != 0d && context.signalLevel >= 0 &&
+                context.cellularNetwork != null && context.cellularNetwork.equals(site.network)) {
+            score += w.perMissingSignalLevel * (MAX_SIGNAL_LEVEL - Math.min(context.signalLevel, MAX_SIGNAL_LEVEL));
+        }
+        if (context.currentFqdn != null && site.appInstance != null &&
+                context.currentFqdn.equals(site.appInstance.getFqdn())) {
+            score -= w.stickinessBonusMs;
+        }
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SiteScorer{" + mWeights + "}";
+    }
+}
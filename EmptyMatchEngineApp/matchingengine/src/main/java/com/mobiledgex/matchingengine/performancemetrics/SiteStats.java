@@ -0,0 +1,76 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import android.os.SystemClock;
+
+/*!
+ * Immutable copy of a Site's stats, taken after a test result. Safe to read from any thread
+ * while tests keep running, without locking the Site. See Site.getStats().
+ * \ingroup classes_util
+ */
+public final class SiteStats {
+    public final Site site;
+    public final String host;
+    public final int port;
+    public final String L7Path;
+
+    public final int size; //!< samples in the window.
+    public final double lastPingMs;
+    public final double average;
+    public final double stddev;
+    public final double ewmaAverage;
+    public final double ewmaStddev;
+    public final int attempts;
+    public final int failures;
+    public final double lossRate;
+    public final double score;
+    public final double throughputMbps;
+    public final long timestampNs; //!< SystemClock.elapsedRealtimeNanos() when taken.
+
+    // Caller holds the site lock.
+    SiteStats(Site site) {
+        this.site = site;
+        host = site.host;
+        port = site.port;
+        L7Path = site.L7Path;
+        size = site.size;
+        lastPingMs = site.lastPingMs;
+        average = site.average;
+        stddev = site.stddev;
+        ewmaAverage = site.ewmaAverage;
+        ewmaStddev = site.ewmaStddev;
+        attempts = site.attempts;
+        failures = site.failures;
+        lossRate = site.lossRate();
+        score = site.score;
+        throughputMbps = site.throughputMbps;
+        timestampNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public boolean hasSuccessfulTests() {
+        return size > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SiteStats{host=" + host + ", port=" + port + ", L7Path=" + L7Path + ", size=" + size +
+                ", ewmaAverage=" + ewmaAverage + ", ewmaStddev=" + ewmaStddev +
+                ", lossRate=" + lossRate + ", score=" + score + "}";
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import com.mobiledgex.matchingengine.HttpClientCache;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/*!
+ * Short timed download (and optional upload) to measure throughput and time to first byte.
+ * With a URL (Site.throughputL7Path, or Site.L7Path), it GETs the URL on the site's Network.
+ * Otherwise it connects to the site's host and port, and reads whatever the server streams.
+ * Reads go into one reused direct ByteBuffer per thread, and are discarded without copying.
+ * \ingroup classes_util
+ */
+class ThroughputProber {
+    public static final String TAG = "ThroughputProber";
+    static final int BUFFER_BYTES = 64 * 1024;
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_BYTES);
+        }
+    };
+
+    /*!
+     * Result of one test. Negative or NaN values were not measured.
+     */
+    static final class Result {
+        double ttfbMs = -1;
+        long bytes;
+        double transferMs;
+        double uploadMbps = Double.NaN;
+
+        double downloadMbps() {
+            return transferMs > 0 ? (bytes * 8d / 1000000d) / (transferMs / 1000d) : Double.NaN;
+        }
+    }
+
+    private ThroughputProber() {
+    }
+
+    /*!
+     * \param site (Site)
+     * \param connectTimeoutMs (long) connect, and wait for the first byte.
+     * \param durationMs (long) longest download (and upload) time, after the first byte.
+     * \param maxBytes (long) stops the download early after this many bytes.
+     * \param uploadBytes (long) bytes to upload first, or 0 for none.
+     * \return Result
+     * \exception IOException if the test fails, ie. no connection, HTTP error, or no first byte in time.
+     */
+    static Result probe(Site site, long connectTimeoutMs, long durationMs, long maxBytes, long uploadBytes)
+            throws IOException {
+        if (site.network == null) {
+            throw new IOException("Site has no network.");
+        }
+        String url = site.throughputL7Path != null ? site.throughputL7Path : site.L7Path;
+        return url != null ?
+                probeHttp(site, url, connectTimeoutMs, durationMs, maxBytes, uploadBytes) :
+                probeTcp(site, connectTimeoutMs, durationMs, maxBytes, uploadBytes);
+    }
+
+    private static Result probeHttp(Site site, String url, long connectTimeoutMs, long durationMs,
+                                    long maxBytes, long uploadBytes) throws IOException {
+        OkHttpClient sharedClient = HttpClientCache.getInstance().getClient(site.network);
+        if (sharedClient == null) {
+            throw new IOException("No HTTP client for network.");
+        }
+        OkHttpClient client = sharedClient.clone();
+        client.setConnectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(connectTimeoutMs + durationMs, TimeUnit.MILLISECONDS);
+        Result result = new Result();
+
+        if (uploadBytes > 0) {
+            // Sized in memory, so keep uploads small.
+            Request post = new Request.Builder()
+                    .url(url)
+                    .post(RequestBody.create(OCTET_STREAM, new byte[(int) Math.min(uploadBytes, Integer.MAX_VALUE)]))
+                    .build();
+            long start = System.nanoTime();
+            Response response = client.newCall(post).execute();
+            response.body().close();
+            double ms = (System.nanoTime() - start) / 1000000d;
+            if (response.isSuccessful() && ms > 0) {
+                result.uploadMbps = (uploadBytes * 8d / 1000000d) / (ms / 1000d);
+            }
+        }
+
+        Request get = new Request.Builder().url(url).get().build();
+        long start = System.nanoTime();
+        Response response = client.newCall(get).execute();
+        long firstByte = System.nanoTime();
+        result.ttfbMs = (firstByte - start) / 1000000d;
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("HTTP status: " + response.code());
+        }
+
+        long end = firstByte + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        ByteBuffer buffer = sBuffer.get();
+        try (ReadableByteChannel channel = Channels.newChannel(response.body().byteStream())) {
+            while (result.bytes < maxBytes && System.nanoTime() < end) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                result.bytes += n;
+            }
+        }
+        result.transferMs = (System.nanoTime() - firstByte) / 1000000d;
+        return result;
+    }
+
+    private static Result probeTcp(Site site, long connectTimeoutMs, long durationMs,
+                                   long maxBytes, long uploadBytes) throws IOException {
+        Result result = new Result();
+        InetAddress address = site.network.getByName(site.host);
+        ByteBuffer buffer = sBuffer.get();
+
+        try (SocketChannel channel = SocketChannel.open();
+             Selector selector = Selector.open()) {
+            site.network.bindSocket(channel.socket());
+            long start = System.nanoTime();
+            channel.socket().connect(new InetSocketAddress(address, site.port), (int) connectTimeoutMs);
+            channel.configureBlocking(false);
+
+            if (uploadBytes > 0) {
+                long uploadStart = System.nanoTime();
+                long uploadEnd = uploadStart + TimeUnit.MILLISECONDS.toNanos(durationMs);
+                long sent = 0;
+                SelectionKey key = channel.register(selector, SelectionKey.OP_WRITE);
+                while (sent < uploadBytes && System.nanoTime() < uploadEnd) {
+                    buffer.clear();
+                    if (uploadBytes - sent < buffer.capacity()) {
+                        buffer.limit((int) (uploadBytes - sent));
+                    }
+                    int n = channel.write(buffer);
+                    if (n == 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(uploadEnd - System.nanoTime())));
+                        selector.selectedKeys().clear();
+                    }
+                    sent += n;
+                }
+                double ms = (System.nanoTime() - uploadStart) / 1000000d;
+                if (ms > 0) {
+                    result.uploadMbps = (sent * 8d / 1000000d) / (ms / 1000d);
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+
+            long firstByte = 0;
+            long firstByteDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs);
+            long end = Long.MAX_VALUE;
+            while (result.bytes < maxBytes) {
+                long now = System.nanoTime();
+                long stopAt = firstByte == 0 ? firstByteDeadline : end;
+                if (now >= stopAt) {
+                    break;
+                }
+                if (selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(stopAt - now))) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                if (n > 0 && firstByte == 0) {
+                    firstByte = System.nanoTime();
+                    result.ttfbMs = (firstByte - start) / 1000000d;
+                    end = firstByte + TimeUnit.MILLISECONDS.toNanos(durationMs);
+                }
+                result.bytes += n;
+            }
+            if (firstByte == 0) {
+                throw new IOException("No data from server.");
+            }
+            result.transferMs = (System.nanoTime() - firstByte) / 1000000d;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*!
+ * Sends a burst of small timestamped datagrams to a Site's UDP port, over a DatagramChannel bound
+ * to the Site's Network, and times the echoes. Any server that sends each datagram back unchanged
+ * works, ie. UdpEchoResponder.
+ *
+ * Packet: magic (int), probe id (long), sequence number (int), send time (long, System.nanoTime()),
+ * zero padded to PACKET_BYTES. The probe id drops late echoes from earlier probes.
+ * \ingroup classes_util
+ */
+class UdpEchoProber {
+    public static final String TAG = "UdpEchoProber";
+    static final int MAGIC = 0x4D455545; // "MEUE"
+    static final int PACKET_BYTES = 32;
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 8;
+
+    private static final Random sRandom = new SecureRandom();
+
+    /*!
+     * Result of one burst.
+     */
+    static final class Result {
+        int sent;
+        int received;
+        int reordered; // Echoes that arrived after an echo of a later packet.
+        final List<Double> rttsMs = new ArrayList<>();
+
+        int lost() {
+            return sent - received;
+        }
+    }
+
+    private UdpEchoProber() {
+    }
+
+    /*!
+     * \param site (Site) host and UDP port. If the site has no Network, uses the default network.
+     * \param packets (int) burst size.
+     * \param timeoutMs (long) wait for echoes, from the first send.
+     * \return Result. Packets without an echo by the deadline are lost.
+     * \exception IOException if the channel cannot be set up, or the port is unreachable.
+     */
+    static Result probe(Site site, int packets, long timeoutMs) throws IOException {
+        Result result = new Result();
+        InetAddress address = site.network != null ? site.network.getByName(site.host) : InetAddress.getByName(site.host);
+
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            if (site.network != null) {
+                site.network.bindSocket(channel.socket());
+            }
+            channel.connect(new InetSocketAddress(address, site.port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            long probeId = sRandom.nextLong();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            ByteBuffer out = ByteBuffer.allocate(PACKET_BYTES);
+            for (int seq = 0; seq < packets; seq++) {
+                out.clear();
+                out.putInt(MAGIC).putLong(probeId).putInt(seq).putLong(System.nanoTime());
+                while (out.hasRemaining()) {
+                    out.put((byte) 0);
+                }
+                out.flip();
+                channel.write(out);
+                result.sent++;
+            }
+
+            boolean[] echoed = new boolean[packets];
+            int highestSeq = -1;
+            ByteBuffer in = ByteBuffer.allocateDirect(PACKET_BYTES * 2);
+            while (result.received < packets) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    break;
+                }
+                if (selector.select(remainingMs) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+
+                while (channel.read(in) > 0) {
+                    long now = System.nanoTime();
+                    in.flip();
+                    if (in.remaining() >= HEADER_BYTES && in.getInt() == MAGIC && in.getLong() == probeId) {
+                        int seq = in.getInt();
+                        long sentAt = in.getLong();
+                        if (seq >= 0 && seq < packets && !echoed[seq]) {
+                            echoed[seq] = true;
+                            result.received++;
+                            result.rttsMs.add((now - sentAt) / 1000000d);
+                            if (seq < highestSeq) {
+                                result.reordered++;
+                            }
+                            highestSeq = Math.max(highestSeq, seq);
+                        }
+                    }
+                    in.clear();
+                }
+            }
+        }
+        return result;
+    }
+}
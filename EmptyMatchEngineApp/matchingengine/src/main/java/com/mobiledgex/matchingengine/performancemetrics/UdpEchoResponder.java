@@ -0,0 +1,129 @@
+/**
+ * Copyright 2018-2021 MobiledgeX, Inc. All rights and licenses reserved.
+ * MobiledgeX, Inc. 156 2nd Street #408, San Francisco, CA 94105
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiledgex.matchingengine.performancemetrics;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/*!
+ * Echo server for NetTest.TestType.UDP_ECHO tests. Sends UdpEchoProber packets back to their
+ * sender, unchanged. Other datagrams are ignored, so the responder cannot be used to reflect
+ * traffic at a third party. Embed it in a UDP edge app server, on the UDP port the app exposes
+ * for latency tests, or run it on a port of its own.
+ * \ingroup classes_util
+ */
+public class UdpEchoResponder implements Closeable {
+    public static final String TAG = "UdpEchoResponder";
+    // Receive buffer size. Only datagrams of UdpEchoProber.PACKET_BYTES are echoed.
+    public static final int MAX_DATAGRAM_BYTES = 1500;
+
+    private final DatagramChannel mChannel;
+    private Thread mThread;
+
+    /*!
+     * Binds the responder. Call start() to begin echoing.
+     * \param port (int) UDP port, on all interfaces. 0 picks a free port.
+     * \exception IOException if the port cannot be bound.
+     */
+    public UdpEchoResponder(int port) throws IOException {
+        mChannel = DatagramChannel.open();
+        try {
+            mChannel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException ioe) {
+            mChannel.close();
+            throw ioe;
+        }
+    }
+
+    public int getLocalPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    /*!
+     * Starts echoing on a daemon thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                echoLoop();
+            }
+        }, TAG + ":" + getLocalPort());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void echoLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+        while (mChannel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress from = mChannel.receive(buffer);
+                if (from == null) {
+                    continue;
+                }
+                buffer.flip();
+                if (!isProbe(buffer)) {
+                    continue;
+                }
+                mChannel.send(buffer, from);
+            } catch (ClosedChannelException cce) {
+                break; // Closed.
+            } catch (IOException ioe) {
+                // One bad sender should not stop the responder.
+                Log.w(TAG, "Echo failed: " + ioe.getMessage());
+            }
+        }
+    }
+
+    // Exactly one UdpEchoProber packet: PACKET_BYTES long, starting with MAGIC.
+    static boolean isProbe(ByteBuffer datagram) {
+        return datagram.remaining() == UdpEchoProber.PACKET_BYTES &&
+                datagram.getInt(datagram.position()) == UdpEchoProber.MAGIC;
+    }
+
+    /*!
+     * Stops echoing and releases the port.
+     */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}